@@ -28,6 +28,10 @@ package com.guimonsters.network;
  * LOGIN_FALSE     - Sent by the server when the user failed to log in.
  * LOGIN_TRUE      - Sent by the server when the user logged in successfully.
  * 
+ * HEARTBEAT       - Sent by the server to a quiet client to check that it is
+ *                   still there. The client answers with a HEARTBEAT of its own.
+ *                   Must stay last, framed clients send directives by number.
+ * 
  * @author Elijah Atkinson
  * @version 2.00, 2013-05-06
  *
@@ -40,5 +44,6 @@ public enum Directive {
 	SERV_CREATE_ACCOUNT,
 	CHAT,
 	LOGIN_FALSE,
-	LOGIN_TRUE
+	LOGIN_TRUE,
+	HEARTBEAT
 }
\ No newline at end of file
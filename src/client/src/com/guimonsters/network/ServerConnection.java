@@ -12,9 +12,15 @@ public class ServerConnection {
 	private boolean connected;
 	private String ipAddress;
 	private int port;
+	//How long to wait for the server to answer the framed protocol handshake.
+	private static final int HANDSHAKE_TIMEOUT = 5000;
 	private Socket socket;
+	private boolean framed;
 	private ObjectOutputStream outToServer;
 	private ObjectInputStream inFromServer;
+	private DataOutputStream frameOut;
+	private DataInputStream frameIn;
+	private FrameCompression compression;
 	
 	
 	/**
@@ -47,9 +53,77 @@ public class ServerConnection {
 	/**
 	 * Attempt to connect to the server. Sets this ServerConnection's connected
 	 * status to true if successful and opens a connection with the server.
+	 * Tries the framed protocol first and falls back to object streams
+	 * for servers that do not understand it.
 	 * @return success The boolean that indicates if the connection succeeded.
 	 */
 	public boolean connect() {
+		boolean success = this.connectFramed();
+		if(!success) {
+			success = this.connectLegacy();
+		}
+		return success;
+	}
+	
+	/**
+	 * Attempt to connect to the server with the framed protocol.
+	 * @return success The boolean that indicates if the server accepted the handshake.
+	 */
+	private boolean connectFramed() {
+		boolean success = false;
+		try {
+			socket = new Socket(ipAddress, port);
+			
+			frameOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			frameIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			
+			//Ask for the binary codec, offer compression and wait for the server to echo the handshake back.
+			byte[] handshake = FrameProtocol.handshake((byte) (FrameProtocol.CODEC_BINARY | FrameProtocol.FLAG_DEFLATE));
+			frameOut.write(handshake);
+			frameOut.flush();
+			
+			byte[] reply = new byte[FrameProtocol.HANDSHAKE_LENGTH];
+			socket.setSoTimeout(HANDSHAKE_TIMEOUT);
+			frameIn.readFully(reply);
+			socket.setSoTimeout(0);
+			
+			if(FrameProtocol.isHandshake(reply) && FrameProtocol.codecOf(reply) == FrameProtocol.CODEC_BINARY) {
+				//The server only echoes the deflate flag if it is going to compress.
+				//The client never compresses, so the threshold and level are not used.
+				if(FrameProtocol.isDeflate(reply)) {
+					compression = new FrameCompression(0, -1);
+				}
+				else {
+					compression = null;
+				}
+				success = true;
+				framed = true;
+				connected = true;
+			}
+			else {
+				socket.close();
+			}
+		}
+		catch (IOException exception) {
+			success = false;
+			try {
+				if(socket != null) {
+					socket.close();
+				}
+			}
+			catch (IOException e) {
+				//The socket is already unusable.
+			}
+		}
+		
+		return success;
+	}
+	
+	/**
+	 * Attempt to connect to the server with Java object streams.
+	 * @return success The boolean that indicates if the connection succeeded.
+	 */
+	private boolean connectLegacy() {
 		boolean success = false;
 		//Attempt to connect to the server.
 		try {
@@ -62,6 +136,7 @@ public class ServerConnection {
 			inFromServer = new ObjectInputStream(socket.getInputStream());
 						
 			success = true;
+			framed = false;
 			connected = true;
 		}
 		catch (IOException exception) {
@@ -80,8 +155,14 @@ public class ServerConnection {
 		boolean success = false;
 		
 		try {
-			outToServer.close();
-			inFromServer.close();
+			if(framed) {
+				frameOut.close();
+				frameIn.close();
+			}
+			else {
+				outToServer.close();
+				inFromServer.close();
+			}
 			socket.close();
 			
 			success = true;
@@ -96,13 +177,31 @@ public class ServerConnection {
 	
 	/**
 	 * Read the next packet from the server if one exists.
+	 * Heartbeats from the server are answered here and never returned.
 	 * @return serverPacket The Packet sent from the server.
 	 * 						Returns null if no packet exists in stream.
 	 */
 	public Packet read() {
 		Packet serverPacket;
 		try {
-			serverPacket = (Packet) inFromServer.readObject();
+			do {
+				if(framed) {
+					if(compression != null) {
+						serverPacket = compression.readFrame(frameIn, FrameProtocol.CODEC_BINARY);
+					}
+					else {
+						serverPacket = FrameProtocol.readFrame(frameIn, FrameProtocol.CODEC_BINARY);
+					}
+				}
+				else {
+					serverPacket = (Packet) inFromServer.readObject();
+				}
+				
+				//Let the server know we are still here.
+				if(serverPacket != null && serverPacket.getDirective() == Directive.HEARTBEAT) {
+					this.write(new Packet(null, Directive.HEARTBEAT));
+				}
+			} while(serverPacket != null && serverPacket.getDirective() == Directive.HEARTBEAT);
 		} catch (IOException | ClassNotFoundException e) {
 			serverPacket = null;
 		}
@@ -114,11 +213,26 @@ public class ServerConnection {
 	 * @param command The String to send to the server.
 	 */
 	public boolean write(String command) {
+		return this.write(new Packet(command));
+	}
+	
+	/**
+	 * Send a packet object to the server.
+	 * The reader answers heartbeats while the player types commands,
+	 * so packets are written one at a time.
+	 * @param packet The Packet to send to the server.
+	 */
+	public synchronized boolean write(Packet packet) {
 		boolean success;
-		Packet packet = new Packet(command);
 		
 		try {
-			outToServer.writeObject(packet);
+			if(framed) {
+				FrameProtocol.writeFrame(frameOut, packet, FrameProtocol.CODEC_BINARY);
+				frameOut.flush();
+			}
+			else {
+				outToServer.writeObject(packet);
+			}
 			success = true;
 		} catch (IOException e) {
 			success = false;
@@ -0,0 +1,546 @@
+package com.guimonsters.network;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A non-blocking connection to a client that speaks the framed protocol.
+ * The socket channel is owned by a single selector thread, which calls
+ * receive() and send() when the channel is ready. Decoded packets are
+ * queued for the client session and packets written by the session are
+ * queued for the selector thread, so no session thread ever blocks on the socket.
+ * The outbound queue is kept within the server's OutboundLimits, and a
+ * client that falls too far behind is evicted.
+ *
+ * @author Elijah Atkinson
+ * @version 1.00, 2013-05-10
+ */
+public class ChannelConnection implements Connection {
+
+	//Queued behind the last packet once the client has disconnected.
+	private static final Packet END_OF_STREAM = new Packet(null, Directive.DISCONNECT);
+	private static final int INITIAL_BUFFER_SIZE = 4096;
+	//Most frames handed to the channel in a single gathering write.
+	private static final int MAX_BATCH = 64;
+
+	//Data fields
+	private volatile boolean connected;
+	private volatile boolean closeRequested;
+	private volatile boolean abortRequested;
+	private boolean handshaking;
+	private boolean legacy;
+	private byte codec;
+	private SocketChannel channel;
+	private Selector selector;
+	private Queue<ChannelConnection> writeRequests;
+	private AtomicBoolean writeRequested;
+	private ByteBuffer readBuffer;
+	private LinkedBlockingQueue<Packet> inbound;
+	private ConcurrentLinkedQueue<ByteBuffer> outbound;
+	private ByteBuffer[] batch;
+	private int batchStart;
+	private int batchEnd;
+	private OutboundLimits limits;
+	private AtomicInteger queuedPackets;
+	private AtomicLong queuedBytes;
+	private AtomicBoolean evicted;
+	private volatile ByteBuffer abortFrame;
+	private volatile String closeReason;
+	private ConnectionOptions options;
+	private volatile FrameCompression compression;
+	private Object attachment;
+
+	/**
+	 * Construct a ChannelConnection for a newly accepted socket channel.
+	 * @param channel The non-blocking SocketChannel of the client.
+	 * @param selector The Selector the channel is registered with.
+	 * @param writeRequests The queue the selector thread drains to find
+	 *                      connections with packets waiting to be sent.
+	 * @param limits The OutboundLimits to apply, or null for no limits.
+	 * @param options The ConnectionOptions to set the connection up with.
+	 */
+	public ChannelConnection(SocketChannel channel, Selector selector, Queue<ChannelConnection> writeRequests,
+			OutboundLimits limits, ConnectionOptions options) {
+		this.connected = true;
+		this.closeRequested = false;
+		this.abortRequested = false;
+		this.handshaking = true;
+		this.legacy = false;
+		this.channel = channel;
+		this.selector = selector;
+		this.writeRequests = writeRequests;
+		this.writeRequested = new AtomicBoolean(false);
+		this.readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+		this.inbound = new LinkedBlockingQueue<Packet>();
+		this.outbound = new ConcurrentLinkedQueue<ByteBuffer>();
+		this.batch = new ByteBuffer[MAX_BATCH];
+		this.batchStart = 0;
+		this.batchEnd = 0;
+		this.limits = limits;
+		this.queuedPackets = new AtomicInteger();
+		this.queuedBytes = new AtomicLong();
+		this.evicted = new AtomicBoolean(false);
+		this.abortFrame = null;
+		this.options = options;
+		this.compression = null;
+		this.closeReason = null;
+	}
+
+	//========================================================================
+	//Selector thread methods.
+	//--------------------------------------
+	//These methods must only be called by the thread that owns the channel.
+	//========================================================================
+
+	/**
+	 * Read whatever bytes are available from the channel and decode every
+	 * complete frame into the inbound packet queue.
+	 * @return count The number of packets decoded, or -1 if the client
+	 *               closed its end of the connection.
+	 */
+	public int receive() throws IOException {
+		int count = 0;
+
+		if(!this.readBuffer.hasRemaining()) {
+			this.growReadBuffer(this.readBuffer.capacity() * 2);
+		}
+		if(this.channel.read(this.readBuffer) == -1) {
+			return -1;
+		}
+		this.readBuffer.flip();
+
+		if(this.handshaking) {
+			this.readHandshake();
+		}
+
+		//Decode frames until only a partial frame is left in the buffer.
+		while(!this.handshaking && !this.legacy && this.readBuffer.remaining() >= FrameProtocol.HEADER_LENGTH) {
+			int length = this.readBuffer.getInt(this.readBuffer.position());
+			if(length < 0 || length > FrameProtocol.MAX_FRAME_LENGTH) {
+				throw new StreamCorruptedException("Invalid frame length: "+length);
+			}
+			if(this.readBuffer.remaining() < FrameProtocol.HEADER_LENGTH + length) {
+				if(this.readBuffer.capacity() < FrameProtocol.HEADER_LENGTH + length) {
+					this.readBuffer.compact();
+					this.growReadBuffer(FrameProtocol.HEADER_LENGTH + length);
+					this.readBuffer.flip();
+				}
+				break;
+			}
+			int start = this.readBuffer.position() + FrameProtocol.HEADER_LENGTH;
+			this.inbound.offer(FrameProtocol.decode(this.readBuffer.array(), start, length, this.codec));
+			this.readBuffer.position(start + length);
+			count++;
+		}
+
+		if(!this.legacy) {
+			this.readBuffer.compact();
+		}
+		return count;
+	}
+
+	/**
+	 * Write queued frames to the channel until the queue is empty or
+	 * the socket send buffer is full. Frames are taken off the queue in
+	 * batches and each batch is sent with one gathering write.
+	 * Closes the channel once every frame has been sent if a disconnect was requested.
+	 * @return flushed True if every queued frame was written.
+	 */
+	public boolean send() throws IOException {
+		this.writeRequested.set(false);
+
+		if(this.abortRequested) {
+			this.abort();
+			return true;
+		}
+
+		while(true) {
+			//Refill the batch once the previous one has been sent.
+			if(this.batchStart == this.batchEnd) {
+				this.batchStart = 0;
+				this.batchEnd = 0;
+				ByteBuffer frame;
+				while(this.batchEnd < MAX_BATCH && (frame = this.outbound.poll()) != null) {
+					this.queuedPackets.decrementAndGet();
+					this.queuedBytes.addAndGet(-frame.remaining());
+					this.batch[this.batchEnd++] = frame;
+				}
+				if(this.batchEnd == 0) {
+					break;
+				}
+			}
+
+			this.channel.write(this.batch, this.batchStart, this.batchEnd - this.batchStart);
+			while(this.batchStart < this.batchEnd && !this.batch[this.batchStart].hasRemaining()) {
+				this.batch[this.batchStart++] = null;
+			}
+			if(this.batchStart < this.batchEnd) {
+				return false;
+			}
+		}
+
+		if(this.closeRequested) {
+			this.close();
+		}
+		return true;
+	}
+
+	/**
+	 * Send the eviction notice if the client is between frames, then close the channel.
+	 * The notice is only tried once, because the client is not reading.
+	 */
+	private void abort() {
+		boolean betweenFrames = this.batchStart == this.batchEnd || this.batch[this.batchStart].position() == 0;
+		if(betweenFrames && this.abortFrame != null) {
+			try {
+				this.channel.write(this.abortFrame);
+			}
+			catch (IOException e) {
+				//The client is gone, there is nobody to tell.
+			}
+		}
+		this.close();
+	}
+
+	/**
+	 * Close the channel immediately and wake up any reader.
+	 */
+	public void close() {
+		if(!this.channel.isOpen()) {
+			return;
+		}
+		this.connected = false;
+		this.inbound.offer(END_OF_STREAM);
+		try {
+			this.channel.close();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Return every byte read from the channel so far.
+	 * Used to hand a legacy client over to a blocking ClientConnection.
+	 * @return bytes The bytes read but not decoded.
+	 */
+	public byte[] takeBufferedBytes() {
+		byte[] bytes = new byte[this.readBuffer.remaining()];
+		this.readBuffer.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Check the start of the connection for the client handshake.
+	 * Queues the handshake reply when the handshake is valid, which
+	 * accepts the packet codec the client asked for.
+	 */
+	private void readHandshake() throws IOException {
+		//Legacy clients start with the object stream header instead of a handshake.
+		if(this.readBuffer.remaining() > 0 && (this.readBuffer.get(0) & 0xFF) == FrameProtocol.STREAM_MAGIC_0) {
+			this.legacy = true;
+			return;
+		}
+		if(this.readBuffer.remaining() >= FrameProtocol.HANDSHAKE_LENGTH) {
+			byte[] handshake = new byte[FrameProtocol.HANDSHAKE_LENGTH];
+			this.readBuffer.get(handshake);
+			if(!FrameProtocol.isHandshake(handshake)) {
+				throw new StreamCorruptedException("Unsupported client handshake.");
+			}
+			this.handshaking = false;
+			//The deflate flag is only echoed if compression is turned on.
+			this.codec = FrameProtocol.codecOf(handshake);
+			if(FrameProtocol.isDeflate(handshake)) {
+				this.compression = this.options.newCompression();
+			}
+			if(this.compression == null) {
+				handshake[3] = this.codec;
+			}
+			this.queueFrame(ByteBuffer.wrap(handshake));
+		}
+	}
+
+	/**
+	 * Replace the read buffer with a larger one holding the same bytes.
+	 * The buffer must be in write mode.
+	 * @param capacity The minimum capacity of the new buffer.
+	 */
+	private void growReadBuffer(int capacity) throws IOException {
+		if(capacity > FrameProtocol.MAX_FRAME_LENGTH + FrameProtocol.HEADER_LENGTH) {
+			throw new StreamCorruptedException("Client sent more than one frame length without a frame.");
+		}
+		ByteBuffer larger = ByteBuffer.allocate(Math.max(capacity, this.readBuffer.capacity()));
+		this.readBuffer.flip();
+		larger.put(this.readBuffer);
+		this.readBuffer = larger;
+	}
+
+	//========================================================================
+	//Session methods.
+	//--------------------------------------
+	//These methods are safe to call from any thread.
+	//========================================================================
+
+	/**
+	 * Read a packet from the client. Blocks until a packet arrives.
+	 * Blocking inside a ForkJoinPool lets the pool add a spare worker
+	 * so other sessions keep running while this one waits.
+	 * @return clientPacket The Packet sent from the client.
+	 */
+	public Packet read() throws IOException {
+		PacketBlocker blocker = new PacketBlocker();
+		try {
+			ForkJoinPool.managedBlock(blocker);
+		}
+		catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while waiting for the client.");
+		}
+		if(blocker.packet == END_OF_STREAM) {
+			this.inbound.offer(END_OF_STREAM);
+			throw new EOFException("Client closed the connection.");
+		}
+		return blocker.packet;
+	}
+
+	/**
+	 * Take the next packet from the client without blocking.
+	 * @return clientPacket The next Packet, or null if none is queued
+	 *                      or the client has disconnected.
+	 */
+	public Packet poll() {
+		Packet clientPacket = this.inbound.poll();
+		if(clientPacket == END_OF_STREAM) {
+			this.inbound.offer(END_OF_STREAM);
+			clientPacket = null;
+		}
+		return clientPacket;
+	}
+
+	/**
+	 * Return true if packets from the client are waiting to be processed.
+	 * @return waiting The boolean indicating if packets are queued.
+	 */
+	public boolean hasPackets() {
+		Packet next = this.inbound.peek();
+		return next != null && next != END_OF_STREAM;
+	}
+
+	/**
+	 * Send a packet object containing a message to the client.
+	 * @param command The command to send to the client inside a packet.
+	 */
+	public void write(String command) throws IOException {
+		this.write(new Packet(command));
+	}
+
+	/**
+	 * Queue a packet to be sent to the client by the selector thread.
+	 * @param p The Packet object to write to the client.
+	 */
+	public void write(Packet p) throws IOException {
+		this.write(new EncodedPacket(p));
+	}
+
+	/**
+	 * Queue a packet that may be shared with other connections.
+	 * The frame bytes are shared, only the buffer view is per connection.
+	 * @param p The EncodedPacket to write to the client.
+	 */
+	public void write(EncodedPacket p) throws IOException {
+		if(!this.connected) {
+			throw new IOException("Connection is closed.");
+		}
+
+		if(this.limits != null) {
+			OutboundLimits.Action action = this.limits.admit(p.getPacket().getDirective(), p.size(this.codec),
+					this.queuedPackets.get(), this.queuedBytes.get());
+			if(action == OutboundLimits.Action.DROP) {
+				return;
+			}
+			if(action == OutboundLimits.Action.EVICT) {
+				this.evict(OutboundLimits.EVICTION_REASON, true);
+				return;
+			}
+		}
+
+		if(this.compression != null) {
+			//Frames must be queued in the order they went through the compression dictionary.
+			synchronized (this.compression) {
+				this.queueFrame(p.compressedFrame(this.compression, this.codec));
+			}
+		}
+		else {
+			this.queueFrame(p.frame(this.codec));
+		}
+	}
+
+	/**
+	 * Disconnect a client that has stopped keeping up or gone quiet.
+	 * Everything still queued for it is thrown away, and the selector thread
+	 * closes the channel the next time it handles this connection.
+	 * @param reason The reason the client was disconnected.
+	 */
+	public void evict(String reason) {
+		this.evict(reason, false);
+	}
+
+	/**
+	 * Disconnect the client right away. Only the first call has any effect.
+	 * @param reason The reason the client was disconnected.
+	 * @param fellBehind True if the client is evicted for going over the outbound limits.
+	 */
+	private void evict(String reason, boolean fellBehind) {
+		if(!this.evicted.compareAndSet(false, true)) {
+			return;
+		}
+		if(fellBehind) {
+			this.limits.recordEviction();
+		}
+		try {
+			Packet notice = new Packet(reason, Directive.DISCONNECT);
+			if(this.compression != null) {
+				//Sent out of order, so it must not go through the compression dictionary.
+				byte[] payload = FrameProtocol.encode(notice, this.codec);
+				this.abortFrame = FrameCompression.raw(payload, 0, payload.length);
+			}
+			else {
+				this.abortFrame = FrameProtocol.frame(notice, this.codec);
+			}
+		}
+		catch (IOException e) {
+			this.abortFrame = null;
+		}
+		this.connected = false;
+		this.closeRequested = true;
+		this.abortRequested = true;
+		this.closeReason = reason;
+		this.outbound.clear();
+		this.inbound.offer(END_OF_STREAM);
+		this.requestWrite();
+	}
+
+	/**
+	 * Close the connection once every queued packet has been sent.
+	 * Sets this ChannelConnection's connected status to false.
+	 * @return success Always true, the channel is closed by the selector thread.
+	 */
+	public boolean disconnect() {
+		this.connected = false;
+		this.closeRequested = true;
+		this.inbound.offer(END_OF_STREAM);
+		this.requestWrite();
+		return true;
+	}
+
+	/**
+	 * Return the connected status of this ChannelConnection instance.
+	 * @return connected The boolean indicating connection status.
+	 */
+	public boolean isConnected() {
+		return this.connected;
+	}
+
+	/**
+	 * Return the compression state of this connection.
+	 * @return compression The FrameCompression, or null if the connection is not compressed.
+	 */
+	public FrameCompression getCompression() {
+		return this.compression;
+	}
+
+	/**
+	 * Return the reason the server closed this connection.
+	 * @return closeReason The reason, or null if the connection was closed normally.
+	 */
+	public String getCloseReason() {
+		return this.closeReason;
+	}
+
+	/**
+	 * Add a frame to the outbound queue and ask the selector thread to send it.
+	 * @param frame The frame to send.
+	 */
+	private void queueFrame(ByteBuffer frame) {
+		this.queuedPackets.incrementAndGet();
+		this.queuedBytes.addAndGet(frame.remaining());
+		this.outbound.offer(frame);
+		this.requestWrite();
+	}
+
+	/**
+	 * Ask the selector thread to flush this connection.
+	 * Only the first request before a flush wakes up the selector.
+	 */
+	private void requestWrite() {
+		if(this.writeRequested.compareAndSet(false, true)) {
+			this.writeRequests.offer(this);
+			this.selector.wakeup();
+		}
+	}
+
+	//Getters and setters
+	//------------------------------
+
+	public boolean isHandshaking() {
+		return this.handshaking;
+	}
+
+	/**
+	 * Return true if the client speaks the framed protocol.
+	 * Legacy clients are handed to a ClientConnection, so sessions only see framed ones.
+	 * @return framed The boolean indicating if the connection is framed.
+	 */
+	public boolean isFramed() {
+		return !this.legacy;
+	}
+
+	public boolean isLegacy() {
+		return this.legacy;
+	}
+
+	public SocketChannel getChannel() {
+		return this.channel;
+	}
+
+	public Object getAttachment() {
+		return this.attachment;
+	}
+
+	public void setAttachment(Object attachment) {
+		this.attachment = attachment;
+	}
+
+	/**
+	 * Waits for the next inbound packet on behalf of read().
+	 */
+	private class PacketBlocker implements ForkJoinPool.ManagedBlocker {
+
+		private Packet packet;
+
+		public boolean block() throws InterruptedException {
+			if(this.packet == null) {
+				this.packet = inbound.take();
+			}
+			return true;
+		}
+
+		public boolean isReleasable() {
+			if(this.packet == null) {
+				this.packet = inbound.poll();
+			}
+			return this.packet != null;
+		}
+	}
+}
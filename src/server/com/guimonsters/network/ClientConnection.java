@@ -2,47 +2,200 @@ package com.guimonsters.network;
 
 import java.net.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.guimonsters.network.Packet;
 
-public class ClientConnection {
+/**
+ * A blocking connection to a single MudClient.
+ * Packets are read by the session thread that owns the connection.
+ * Packets written from any thread are added to an outbound queue which
+ * is drained by one writer at a time, so the thread that writes a packet
+ * never blocks on a slow client and packets are never interleaved.
+ * Every packet that is waiting when the writer runs is sent with one flush.
+ * The queue is kept within the server's OutboundLimits, and a client that
+ * falls too far behind is evicted.
+ *
+ * @author Elijah Atkinson
+ * @version 1.00, 2013-05-11
+ */
+public class ClientConnection implements Connection {
+
+	//Default number of packets or bytes written to an object stream between resets.
+	public static final int DEFAULT_RESET_PACKETS = 256;
+	public static final long DEFAULT_RESET_BYTES = 64 * 1024;
 
 	//Data fields
-	private boolean connected;
+	private volatile boolean connected;
+	private volatile boolean closeRequested;
+	private boolean framed;
+	private byte codec;
 	private Socket socket;
-	private ObjectOutputStream outToClient;
+	private ManagedObjectOutputStream outToClient;
 	private ObjectInputStream inFromClient;
-	
-	
+	private DataOutputStream frameOut;
+	private DataInputStream frameIn;
+	private ConcurrentLinkedQueue<EncodedPacket> outbound;
+	private AtomicBoolean draining;
+	private AtomicBoolean closed;
+	private Executor writer;
+	private Runnable drainTask;
+	private OutboundLimits limits;
+	private AtomicInteger queuedPackets;
+	private AtomicLong queuedBytes;
+	private AtomicBoolean evicted;
+	private volatile String closeReason;
+	private FrameCompression compression;
+
+
 	/**
 	 * Construct a ClientConnection with the supplied active socket.
 	 * @param soc The Socket to use for the connection to the client.
 	 */
 	public ClientConnection(Socket soc) throws IOException {
+		this(soc, new byte[0]);
+	}
+
+	/**
+	 * Construct a ClientConnection with the supplied active socket
+	 * after some of its first bytes have already been read.
+	 * The connection uses the framed protocol if the client opened with a
+	 * handshake, and Java object streams if it opened with a stream header.
+	 * @param soc The Socket to use for the connection to the client.
+	 * @param prefetched The bytes already read from the socket.
+	 */
+	public ClientConnection(Socket soc, byte[] prefetched) throws IOException {
+		this(soc, prefetched, new ConnectionOptions());
+	}
+
+	/**
+	 * Construct a ClientConnection with the supplied active socket
+	 * after some of its first bytes have already been read.
+	 * Object streams sent to legacy clients are reset whenever either of their
+	 * budgets is used up, so long sessions do not keep every packet alive.
+	 * Framed clients that offer compression get it if the options allow it.
+	 * @param soc The Socket to use for the connection to the client.
+	 * @param prefetched The bytes already read from the socket.
+	 * @param options The ConnectionOptions to set the connection up with.
+	 */
+	public ClientConnection(Socket soc, byte[] prefetched, ConnectionOptions options) throws IOException {
 		this.connected = true;
+		this.closeRequested = false;
 		this.socket = soc;
-		
-		//Create an input object to read signals from the client.
-		this.inFromClient = new ObjectInputStream(soc.getInputStream());
-		
-		//Create an output object to send signals to the client.
-		this.outToClient = new ObjectOutputStream(soc.getOutputStream());
-	}
-	
-	
-	/**
-	 * Close the socket connection with the client.
-	 * Sets this ClientConnection's connected status to false.
-	 * @return success The boolean that indicates if the socket was closed.
+		this.outbound = new ConcurrentLinkedQueue<EncodedPacket>();
+		this.draining = new AtomicBoolean(false);
+		this.closed = new AtomicBoolean(false);
+		this.writer = null;
+		this.drainTask = new DrainTask();
+		this.limits = null;
+		this.queuedPackets = new AtomicInteger();
+		this.queuedBytes = new AtomicLong();
+		this.evicted = new AtomicBoolean(false);
+		this.closeReason = null;
+		this.compression = null;
+
+		//Packets are batched by the writer, so don't let the socket delay them again.
+		soc.setTcpNoDelay(true);
+
+		//Put the prefetched bytes back in front of the socket input.
+		PushbackInputStream in = new PushbackInputStream(new SequenceInputStream(
+				new ByteArrayInputStream(prefetched), soc.getInputStream()));
+
+		//Peek at the first byte to find out which protocol the client speaks.
+		int first = in.read();
+		if(first == -1) {
+			throw new EOFException("Client closed the connection before sending anything.");
+		}
+		in.unread(first);
+
+		if(first == FrameProtocol.MAGIC_0) {
+			this.framed = true;
+			this.frameIn = new DataInputStream(new BufferedInputStream(in));
+			this.frameOut = new DataOutputStream(new BufferedOutputStream(soc.getOutputStream()));
+
+			//Read the client handshake and echo it back to accept its packet codec.
+			//The deflate flag is only echoed if compression is turned on.
+			byte[] handshake = new byte[FrameProtocol.HANDSHAKE_LENGTH];
+			this.frameIn.readFully(handshake);
+			if(!FrameProtocol.isHandshake(handshake)) {
+				throw new StreamCorruptedException("Unsupported client handshake.");
+			}
+			this.codec = FrameProtocol.codecOf(handshake);
+			if(FrameProtocol.isDeflate(handshake)) {
+				this.compression = options.newCompression();
+			}
+			if(this.compression == null) {
+				handshake[3] = this.codec;
+			}
+			this.frameOut.write(handshake);
+			this.frameOut.flush();
+		}
+		else {
+			this.framed = false;
+
+			//Create an input object to read signals from the client.
+			this.inFromClient = new ObjectInputStream(in);
+
+			//Create an output object to send signals to the client.
+			//The client can't read anything until it has the stream header.
+			this.outToClient = new ManagedObjectOutputStream(
+					new BufferedOutputStream(soc.getOutputStream()), options.getResetPackets(), options.getResetBytes());
+			this.outToClient.flush();
+		}
+	}
+
+
+	/**
+	 * Close the socket connection with the client once every queued
+	 * packet has been sent. Sets this ClientConnection's connected status to false.
+	 * @return success The boolean that indicates if the socket was closed
+	 *                 or will be closed by the writer.
 	 */
 	public boolean disconnect() {
+		this.connected = false;
+		this.closeRequested = true;
+
+		if(this.writer == null) {
+			synchronized (this) {
+				return this.close();
+			}
+		}
+
+		//The writer closes the socket after its last batch.
+		this.scheduleDrain();
+		return true;
+	}
+
+	/**
+	 * Close the streams and the socket. Only the first call has any effect.
+	 * @return success The boolean that indicates if the socket was closed.
+	 */
+	private boolean close() {
 		boolean success;
-		
+
+		if(!this.closed.compareAndSet(false, true)) {
+			return true;
+		}
+
 		try {
-			outToClient.close();
-			inFromClient.close();
+			//An evicted client's socket is already closed, and its streams can't be flushed.
+			if(!socket.isClosed()) {
+				if(this.framed) {
+					frameOut.close();
+					frameIn.close();
+				}
+				else {
+					outToClient.close();
+					inFromClient.close();
+				}
+			}
 			socket.close();
-			
+
 			success = true;
 			connected = false;
 		}
@@ -50,37 +203,281 @@ public class ClientConnection {
 			success = false;
 			e.printStackTrace();
 		}
-		
+
 		return success;
 	}
-	
+
 	/**
 	 * Read a packet from the client.
 	 * @return clientPacket The Packet sent from the client.
 	 */
 	public Packet read() throws IOException, ClassNotFoundException {
-		Packet clientPacket = (Packet)inFromClient.readObject();
+		Packet clientPacket;
+		if(this.framed) {
+			clientPacket = FrameProtocol.readFrame(frameIn, codec);
+		}
+		else {
+			clientPacket = (Packet)inFromClient.readObject();
+		}
 		return clientPacket;
 	}
-	
+
 	/**
 	 * Send a packet object containting a message to the client.
 	 * @param command The command to send to the client inside a packet.
 	 */
 	public void write(String command) throws IOException {
 		Packet packet = new Packet(command);
-		outToClient.writeObject(packet);
+		this.write(packet);
 	}
-	
+
 	/**
 	 * Send a packet object to the client.
+	 * With a writer the packet is only queued, and is sent by the writer.
+	 * Without one the packet is sent and flushed by the calling thread.
 	 * @param p The Package object to write to the client.
 	 */
 	public void write(Packet p) throws IOException {
-		outToClient.writeObject(p);
+		this.write(new EncodedPacket(p));
 	}
-	
-	
+
+	/**
+	 * Send a packet that may be shared with other connections to the client.
+	 * With a writer the packet is only queued, and is sent by the writer.
+	 * Without one the packet is sent and flushed by the calling thread.
+	 * @param p The EncodedPacket to write to the client.
+	 */
+	public void write(EncodedPacket p) throws IOException {
+		if(!this.connected) {
+			throw new IOException("Connection is closed.");
+		}
+
+		if(this.writer == null) {
+			synchronized (this) {
+				this.writePacket(p);
+				this.flush();
+			}
+			return;
+		}
+
+		long size = this.queuedSize(p);
+		if(this.limits != null) {
+			OutboundLimits.Action action = this.limits.admit(p.getPacket().getDirective(), size,
+					this.queuedPackets.get(), this.queuedBytes.get());
+			if(action == OutboundLimits.Action.DROP) {
+				return;
+			}
+			if(action == OutboundLimits.Action.EVICT) {
+				this.evict(OutboundLimits.EVICTION_REASON, true);
+				return;
+			}
+		}
+
+		this.queuedPackets.incrementAndGet();
+		this.queuedBytes.addAndGet(size);
+		this.outbound.offer(p);
+		this.scheduleDrain();
+	}
+
+	/**
+	 * Disconnect a client that has stopped keeping up or gone quiet, without
+	 * sending it anything else. The writer may be blocked on a full socket, so
+	 * the socket is closed right away, which also wakes up the session's reader.
+	 * @param reason The reason the client was disconnected.
+	 */
+	public void evict(String reason) {
+		this.evict(reason, false);
+	}
+
+	/**
+	 * Disconnect the client right away. Only the first call has any effect.
+	 * @param reason The reason the client was disconnected.
+	 * @param fellBehind True if the client is evicted for going over the outbound limits.
+	 */
+	private void evict(String reason, boolean fellBehind) {
+		if(!this.evicted.compareAndSet(false, true)) {
+			return;
+		}
+		if(fellBehind) {
+			this.limits.recordEviction();
+		}
+		this.closeReason = reason;
+		this.connected = false;
+		this.closeRequested = true;
+		this.outbound.clear();
+
+		try {
+			this.socket.close();
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Return the number of bytes a queued packet counts against the outbound limits.
+	 * Framed clients are charged the encoded frame, which is built once per codec
+	 * and shared by every connection, and is never smaller than a compressed frame.
+	 * Object streams serialize the packet themselves, so they are charged the most
+	 * its message can take up in modified UTF-8, which is 3 bytes per char.
+	 * The codec never changes after the handshake, so a packet is always
+	 * charged the same size when it is queued and when it is sent.
+	 * @param p The EncodedPacket to measure.
+	 * @return size The size of the packet in bytes.
+	 */
+	private long queuedSize(EncodedPacket p) {
+		if(this.framed) {
+			try {
+				return p.size(codec);
+			}
+			catch (IOException e) {
+				//The packet cannot be encoded, and will fail again when it is sent.
+			}
+		}
+		String message = p.getPacket().getMessage();
+		return FrameProtocol.HEADER_LENGTH + 1 + (message == null ? 0 : 3L * message.length());
+	}
+
+	/**
+	 * Write a packet to the output stream without flushing it.
+	 * Framed clients are sent the shared frame, object streams have
+	 * to serialize the packet themselves.
+	 * Must only be called by the current writer.
+	 * @param p The EncodedPacket to write.
+	 */
+	private void writePacket(EncodedPacket p) throws IOException {
+		if(this.compression != null) {
+			ByteBuffer frame = p.compressedFrame(this.compression, codec);
+			frameOut.write(frame.array(), 0, frame.limit());
+		}
+		else if(this.framed) {
+			p.writeFrame(frameOut, codec);
+		}
+		else {
+			outToClient.writePacket(p.getPacket());
+		}
+	}
+
+	/**
+	 * Flush the output stream to the socket.
+	 * Must only be called by the current writer.
+	 */
+	private void flush() throws IOException {
+		if(this.framed) {
+			frameOut.flush();
+		}
+		else {
+			outToClient.flush();
+		}
+	}
+
+	/**
+	 * Hand the outbound queue to the writer unless it is already being drained.
+	 */
+	private void scheduleDrain() {
+		if(this.draining.compareAndSet(false, true)) {
+			try {
+				this.writer.execute(this.drainTask);
+			}
+			catch (RuntimeException e) {
+				//The writer has been shut down, so send what is left on this thread.
+				this.drainTask.run();
+			}
+		}
+	}
+
+	/**
+	 * Sends every queued packet with a single flush, and closes the
+	 * connection once the queue is empty if a disconnect was requested.
+	 */
+	private class DrainTask implements Runnable {
+
+		public void run() {
+			do {
+				try {
+					EncodedPacket p;
+					while((p = outbound.poll()) != null) {
+						queuedPackets.decrementAndGet();
+						queuedBytes.addAndGet(-queuedSize(p));
+						writePacket(p);
+					}
+					flush();
+				}
+				catch (IOException e) {
+					//The client is gone. Closing the socket also wakes up the session's reader.
+					outbound.clear();
+					closeRequested = true;
+				}
+				draining.set(false);
+
+				if(closeRequested && outbound.isEmpty()) {
+					close();
+				}
+			}
+			//Packets queued while the flag was still set were not scheduled, so run again.
+			while(!outbound.isEmpty() && draining.compareAndSet(false, true));
+		}
+	}
+
+	/**
+	 * Set the executor that sends queued packets.
+	 * Must be called before the connection is shared with other threads.
+	 * @param writer The Executor that drains outbound queues, or null to write on the calling thread.
+	 */
+	public void setWriter(Executor writer) {
+		this.writer = writer;
+	}
+
+	/**
+	 * Set the limits on the output queued for this client.
+	 * Must be called before the connection is shared with other threads.
+	 * @param limits The OutboundLimits to apply, or null for no limits.
+	 */
+	public void setLimits(OutboundLimits limits) {
+		this.limits = limits;
+	}
+
+	/**
+	 * Return the compression state of this connection.
+	 * @return compression The FrameCompression, or null if the connection is not compressed.
+	 */
+	public FrameCompression getCompression() {
+		return this.compression;
+	}
+
+	/**
+	 * Return the reason the server closed this connection.
+	 * @return closeReason The reason, or null if the connection was closed normally.
+	 */
+	public String getCloseReason() {
+		return this.closeReason;
+	}
+
+	/**
+	 * Return the number of objects held by the handle table of the object stream.
+	 * @return retainedHandles The handle count, or 0 for framed connections.
+	 */
+	public int getRetainedHandles() {
+		return this.framed ? 0 : this.outToClient.getRetainedHandles();
+	}
+
+	/**
+	 * Return the number of times the object stream has been reset.
+	 * @return resetCount The reset count, or 0 for framed connections.
+	 */
+	public long getStreamResets() {
+		return this.framed ? 0 : this.outToClient.getResetCount();
+	}
+
+	/**
+	 * Return true if the client speaks the framed protocol.
+	 * Only framed clients understand HEARTBEAT packets.
+	 * @return framed The boolean indicating if the connection is framed.
+	 */
+	public boolean isFramed() {
+		return this.framed;
+	}
+
 	/**
 	 * Return the connected status of this ClientConnection instance.
 	 * @return connected The boolean indicating connection status.
@@ -88,4 +485,4 @@ public class ClientConnection {
 	public boolean isConnected() {
 		return this.connected;
 	}
-}
\ No newline at end of file
+}
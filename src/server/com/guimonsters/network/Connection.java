@@ -0,0 +1,26 @@
+package com.guimonsters.network;
+
+import java.io.IOException;
+
+/**
+ * The server side of a connection to a single MudClient.
+ * Implemented by ClientConnection for sockets that are read by their
+ * own blocking thread, and by ChannelConnection for sockets that are
+ * owned by a SelectorThread.
+ *
+ * @author Elijah Atkinson
+ * @version 1.00, 2013-05-10
+ */
+public interface Connection {
+
+	Packet read() throws IOException, ClassNotFoundException;
+	void write(String command) throws IOException;
+	void write(Packet p) throws IOException;
+	void write(EncodedPacket p) throws IOException;
+	boolean disconnect();
+	void evict(String reason);
+	boolean isConnected();
+	boolean isFramed();
+	String getCloseReason();
+	FrameCompression getCompression();
+}
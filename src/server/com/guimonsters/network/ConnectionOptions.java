@@ -0,0 +1,83 @@
+package com.guimonsters.network;
+
+/**
+ * The settings every new client connection is set up with.
+ *
+ * @author Elijah Atkinson
+ * @version 1.00, 2013-05-12
+ */
+public class ConnectionOptions {
+
+	//Data fields
+	private int resetPackets;
+	private long resetBytes;
+	private boolean compression;
+	private int compressionThreshold;
+	private int compressionLevel;
+
+	/**
+	 * Create connection settings that match the defaults of the server.
+	 * Compression is turned off.
+	 */
+	public ConnectionOptions() {
+		this.resetPackets = ClientConnection.DEFAULT_RESET_PACKETS;
+		this.resetBytes = ClientConnection.DEFAULT_RESET_BYTES;
+		this.compression = false;
+		this.compressionThreshold = 256;
+		this.compressionLevel = -1;
+	}
+
+	/**
+	 * Create the compression state for a connection whose client offered compression.
+	 * @return compression A new FrameCompression, or null if compression is turned off.
+	 */
+	public FrameCompression newCompression() {
+		if(!this.compression) {
+			return null;
+		}
+		return new FrameCompression(this.compressionThreshold, this.compressionLevel);
+	}
+
+	//Getters and setters
+	//------------------------------
+
+	public int getResetPackets() {
+		return this.resetPackets;
+	}
+
+	public void setResetPackets(int resetPackets) {
+		this.resetPackets = resetPackets;
+	}
+
+	public long getResetBytes() {
+		return this.resetBytes;
+	}
+
+	public void setResetBytes(long resetBytes) {
+		this.resetBytes = resetBytes;
+	}
+
+	public boolean isCompression() {
+		return this.compression;
+	}
+
+	public void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+
+	public int getCompressionThreshold() {
+		return this.compressionThreshold;
+	}
+
+	public void setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+	}
+
+	public int getCompressionLevel() {
+		return this.compressionLevel;
+	}
+
+	public void setCompressionLevel(int compressionLevel) {
+		this.compressionLevel = compressionLevel;
+	}
+}
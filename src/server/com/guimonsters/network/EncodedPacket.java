@@ -0,0 +1,110 @@
+package com.guimonsters.network;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A packet that is encoded at most once per codec, no matter how many
+ * clients it is sent to. Broadcasts wrap their packet in an EncodedPacket
+ * and every framed recipient sends the same frame bytes.
+ * Clients on legacy object streams still write the packet itself, because
+ * an object stream encodes packets differently depending on what it sent before.
+ *
+ * @author Elijah Atkinson
+ * @version 1.00, 2013-05-12
+ */
+public class EncodedPacket {
+
+	//Data fields
+	private final Packet packet;
+	private volatile ByteBuffer serializedFrame;
+	private volatile ByteBuffer binaryFrame;
+
+	/**
+	 * Wrap a packet so it can be shared between connections.
+	 * The packet must not be changed after it has been wrapped.
+	 * @param packet The Packet to send.
+	 */
+	public EncodedPacket(Packet packet) {
+		this.packet = packet;
+		this.serializedFrame = null;
+		this.binaryFrame = null;
+	}
+
+	/**
+	 * Return a read only view of the frame for a codec.
+	 * Every view shares the same bytes but has its own position,
+	 * so each connection can write it at its own pace.
+	 * @param codec The codec the frame must be encoded with.
+	 * @return frame The frame, ready to be written to a channel.
+	 */
+	public ByteBuffer frame(byte codec) throws IOException {
+		return this.encoded(codec).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Write the frame for a codec to a stream. The stream is not flushed.
+	 * @param out The stream to write to.
+	 * @param codec The codec the frame must be encoded with.
+	 */
+	public void writeFrame(DataOutputStream out, byte codec) throws IOException {
+		ByteBuffer frame = this.encoded(codec);
+		out.write(frame.array(), frame.arrayOffset(), frame.limit());
+	}
+
+	/**
+	 * Return a frame for a connection that uses compression.
+	 * The payload is shared, but is compressed separately for every
+	 * connection because each one has its own compression dictionary.
+	 * @param compression The FrameCompression of the connection.
+	 * @param codec The codec the frame must be encoded with.
+	 * @return frame The compressed frame.
+	 */
+	public ByteBuffer compressedFrame(FrameCompression compression, byte codec) throws IOException {
+		ByteBuffer frame = this.encoded(codec);
+		return compression.compress(frame.array(), FrameProtocol.HEADER_LENGTH, frame.limit() - FrameProtocol.HEADER_LENGTH);
+	}
+
+	/**
+	 * Return the size of the frame for a codec.
+	 * @param codec The codec the frame must be encoded with.
+	 * @return size The number of bytes in the frame.
+	 */
+	public int size(byte codec) throws IOException {
+		return this.encoded(codec).limit();
+	}
+
+	/**
+	 * Return the shared frame for a codec, encoding it on first use.
+	 * Two threads may both encode the frame the first time, which is
+	 * harmless because both results are identical.
+	 * @param codec The codec the frame must be encoded with.
+	 * @return frame The shared frame. Its position must never be changed.
+	 */
+	private ByteBuffer encoded(byte codec) throws IOException {
+		ByteBuffer frame;
+		if(codec == FrameProtocol.CODEC_BINARY) {
+			frame = this.binaryFrame;
+			if(frame == null) {
+				frame = FrameProtocol.frame(this.packet, codec);
+				this.binaryFrame = frame;
+			}
+		}
+		else {
+			frame = this.serializedFrame;
+			if(frame == null) {
+				frame = FrameProtocol.frame(this.packet, codec);
+				this.serializedFrame = frame;
+			}
+		}
+		return frame;
+	}
+
+	//Getters and setters
+	//------------------------------
+
+	public Packet getPacket() {
+		return this.packet;
+	}
+}
@@ -0,0 +1,198 @@
+package com.guimonsters.network;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses the frames sent from the server to one client.
+ * This class must be present in the same package in both the
+ * client and server applications.
+ *
+ * The server keeps one Deflater per connection and the client one Inflater,
+ * so the compression dictionary is shared by every frame of the connection and
+ * repeated text such as room descriptions compresses very well. Each frame is
+ * flushed on its own, so it can be decoded as soon as it arrives.
+ *
+ * A compressed connection sends frames as a four byte length followed by a
+ * flag byte (RAW or DEFLATED) and the payload. Payloads shorter than the
+ * threshold are sent raw, since compressing them costs more than it saves.
+ *
+ * @author Elijah Atkinson
+ * @version 1.00, 2013-05-12
+ */
+public class FrameCompression {
+
+	//Frame flag bytes
+	public static final byte RAW = 0;
+	public static final byte DEFLATED = 1;
+
+	//Data fields
+	private int threshold;
+	private Deflater deflater;
+	private Inflater inflater;
+	private byte[] buffer;
+	private long rawBytes;
+	private long sentBytes;
+	private long compressedFrames;
+	private long skippedFrames;
+	private long deflateNanos;
+
+	/**
+	 * Create the compression state for one connection.
+	 * @param threshold The smallest payload in bytes that is compressed.
+	 * @param level The Deflater compression level to use, from 1 to 9 or -1 for the default.
+	 */
+	public FrameCompression(int threshold, int level) {
+		this.threshold = threshold;
+		this.deflater = new Deflater(level);
+		this.inflater = new Inflater();
+		this.buffer = new byte[1024];
+	}
+
+	/**
+	 * Build a compressed frame from a payload.
+	 * Frames must be compressed in the order they are sent.
+	 * @param payload The array holding the payload.
+	 * @param offset The index of the first payload byte.
+	 * @param length The number of payload bytes.
+	 * @return frame The frame, ready to be written to a channel.
+	 */
+	public synchronized ByteBuffer compress(byte[] payload, int offset, int length) {
+		if(length < this.threshold) {
+			this.skippedFrames++;
+			this.rawBytes += length;
+			this.sentBytes += length + 1;
+			return raw(payload, offset, length);
+		}
+
+		long start = System.nanoTime();
+		this.deflater.setInput(payload, offset, length);
+		int size = 0;
+		while(true) {
+			size += this.deflater.deflate(this.buffer, size, this.buffer.length - size, Deflater.SYNC_FLUSH);
+			if(size < this.buffer.length) {
+				break;
+			}
+			//The output filled the buffer, so there may be more of it.
+			this.buffer = Arrays.copyOf(this.buffer, this.buffer.length * 2);
+		}
+		this.deflateNanos += System.nanoTime() - start;
+		this.compressedFrames++;
+		this.rawBytes += length;
+		this.sentBytes += size + 1;
+
+		ByteBuffer frame = ByteBuffer.allocate(FrameProtocol.HEADER_LENGTH + 1 + size);
+		frame.putInt(1 + size);
+		frame.put(DEFLATED);
+		frame.put(this.buffer, 0, size);
+		frame.flip();
+		return frame;
+	}
+
+	/**
+	 * Build an uncompressed frame for a compressed connection.
+	 * Raw frames don't touch the compression dictionary, so they may be
+	 * sent out of order, for example to warn a client it is being disconnected.
+	 * @param payload The array holding the payload.
+	 * @param offset The index of the first payload byte.
+	 * @param length The number of payload bytes.
+	 * @return frame The frame, ready to be written to a channel.
+	 */
+	public static ByteBuffer raw(byte[] payload, int offset, int length) {
+		ByteBuffer frame = ByteBuffer.allocate(FrameProtocol.HEADER_LENGTH + 1 + length);
+		frame.putInt(1 + length);
+		frame.put(RAW);
+		frame.put(payload, offset, length);
+		frame.flip();
+		return frame;
+	}
+
+	/**
+	 * Read the next frame from a compressed connection.
+	 * Blocks until a complete frame has been read.
+	 * @param in The stream to read from.
+	 * @param codec The codec the packet was encoded with.
+	 * @return packet The Packet held by the frame.
+	 */
+	public synchronized Packet readFrame(DataInputStream in, byte codec) throws IOException {
+		int length = in.readInt();
+		if(length < 1 || length > FrameProtocol.MAX_FRAME_LENGTH) {
+			throw new StreamCorruptedException("Invalid frame length: "+length);
+		}
+		byte[] frame = new byte[length];
+		in.readFully(frame);
+
+		if(frame[0] == RAW) {
+			return FrameProtocol.decode(frame, 1, length - 1, codec);
+		}
+		if(frame[0] != DEFLATED) {
+			throw new StreamCorruptedException("Unknown frame flag: "+frame[0]);
+		}
+
+		this.inflater.setInput(frame, 1, length - 1);
+		int size = 0;
+		try {
+			while(true) {
+				int count = this.inflater.inflate(this.buffer, size, this.buffer.length - size);
+				size += count;
+				if(size == this.buffer.length) {
+					//The output filled the buffer, so there may be more of it.
+					if(size >= FrameProtocol.MAX_FRAME_LENGTH) {
+						throw new StreamCorruptedException("Compressed frame is too long.");
+					}
+					this.buffer = Arrays.copyOf(this.buffer, this.buffer.length * 2);
+				}
+				else if(count == 0 || this.inflater.needsInput()) {
+					break;
+				}
+			}
+		}
+		catch (DataFormatException e) {
+			throw new StreamCorruptedException("Compressed frame is corrupt.");
+		}
+		this.rawBytes += size;
+		this.sentBytes += length;
+		return FrameProtocol.decode(this.buffer, 0, size, codec);
+	}
+
+	//Getters and setters
+	//------------------------------
+
+	/**
+	 * Return how much smaller compression made the frames of this connection.
+	 * @return ratio The uncompressed size divided by the size sent, 1 before anything is sent.
+	 */
+	public synchronized double getRatio() {
+		return this.sentBytes == 0 ? 1.0 : (double) this.rawBytes / this.sentBytes;
+	}
+
+	public synchronized long getRawBytes() {
+		return this.rawBytes;
+	}
+
+	public synchronized long getSentBytes() {
+		return this.sentBytes;
+	}
+
+	public synchronized long getCompressedFrames() {
+		return this.compressedFrames;
+	}
+
+	public synchronized long getSkippedFrames() {
+		return this.skippedFrames;
+	}
+
+	/**
+	 * Return the time spent compressing frames.
+	 * @return deflateNanos The total time spent in the Deflater, in nanoseconds.
+	 */
+	public synchronized long getDeflateNanos() {
+		return this.deflateNanos;
+	}
+}
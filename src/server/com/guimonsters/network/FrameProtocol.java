@@ -0,0 +1,252 @@
+package com.guimonsters.network;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Defines the framed wire protocol used between the client and the server.
+ * This class must be present in the same package in both the
+ * client and server applications.
+ *
+ * A framed connection starts with a four byte handshake sent by the client:
+ * the magic bytes 'G' 'M', the protocol version and the packet codec the
+ * client wants to use. The server echoes the handshake back once it accepts it.
+ * After the handshake every packet is sent as a frame: a four byte payload
+ * length followed by the payload bytes.
+ *
+ * Two packet codecs are supported:
+ * CODEC_SERIALIZED - The payload is the packet written with Java object serialization.
+ * CODEC_BINARY     - The payload is one directive byte followed by the UTF-8 bytes
+ *                    of the message. The directive byte holds the ordinal of the
+ *                    Directive, with the high bit set when the message is null.
+ *                    New Directive values must only ever be added at the end.
+ *
+ * A client may also set FLAG_DEFLATE in the codec byte to offer compression.
+ * If the server echoes the flag back, every frame the server sends carries
+ * one extra byte saying whether its payload was compressed (see FrameCompression).
+ * Frames sent by the client are never compressed.
+ *
+ * Clients that predate the framed protocol start their connection with the
+ * Java object stream header instead (0xACED), which lets the server tell
+ * the two kinds of client apart from the first byte it reads.
+ *
+ * @author Elijah Atkinson
+ * @version 1.00, 2013-05-10
+ */
+public class FrameProtocol {
+
+	//Handshake bytes
+	public static final byte MAGIC_0 = 'G';
+	public static final byte MAGIC_1 = 'M';
+	public static final byte VERSION = 1;
+	public static final int HANDSHAKE_LENGTH = 4;
+
+	//Packet codecs
+	public static final byte CODEC_SERIALIZED = 0;
+	public static final byte CODEC_BINARY = 1;
+
+	//Set in the codec byte of the handshake to offer or accept compression.
+	public static final byte FLAG_DEFLATE = 0x40;
+
+	//Set in the directive byte of a binary payload when the message is null.
+	private static final int NULL_MESSAGE = 0x80;
+
+	//First byte of a Java object stream, sent by legacy clients.
+	public static final int STREAM_MAGIC_0 = 0xAC;
+
+	//Length of the frame length prefix.
+	public static final int HEADER_LENGTH = 4;
+	//Frames longer than this are treated as a corrupt stream.
+	public static final int MAX_FRAME_LENGTH = 1 << 20;
+
+	/**
+	 * Build the handshake that requests a packet codec.
+	 * @param codec The codec byte to request.
+	 * @return handshake The handshake bytes to send.
+	 */
+	public static byte[] handshake(byte codec) {
+		return new byte[] {MAGIC_0, MAGIC_1, VERSION, codec};
+	}
+
+	/**
+	 * Check that the given bytes are a handshake this side understands.
+	 * @param bytes The bytes read from the start of the connection.
+	 * @return valid True if the bytes hold a valid handshake.
+	 */
+	public static boolean isHandshake(byte[] bytes) {
+		return bytes.length == HANDSHAKE_LENGTH && bytes[0] == MAGIC_0 &&
+				bytes[1] == MAGIC_1 && bytes[2] == VERSION &&
+				(codecOf(bytes) == CODEC_SERIALIZED || codecOf(bytes) == CODEC_BINARY);
+	}
+
+	/**
+	 * Return the packet codec requested by a handshake.
+	 * @param handshake The handshake bytes.
+	 * @return codec The codec byte without any flags.
+	 */
+	public static byte codecOf(byte[] handshake) {
+		return (byte) (handshake[3] & ~FLAG_DEFLATE);
+	}
+
+	/**
+	 * Return true if a handshake offers or accepts compression.
+	 * @param handshake The handshake bytes.
+	 * @return deflate The state of the deflate flag.
+	 */
+	public static boolean isDeflate(byte[] handshake) {
+		return (handshake[3] & FLAG_DEFLATE) != 0;
+	}
+
+	/**
+	 * Encode a packet into a frame payload.
+	 * Serialized payloads are complete object streams of their own, so frames
+	 * can be decoded independently of each other with either codec.
+	 * @param p The Packet to encode.
+	 * @param codec The codec to encode the packet with.
+	 * @return payload The encoded packet bytes.
+	 */
+	public static byte[] encode(Packet p, byte codec) throws IOException {
+		if(codec == CODEC_BINARY) {
+			byte[] text = messageBytes(p);
+			byte[] payload = new byte[1 + text.length];
+			payload[0] = directiveByte(p);
+			System.arraycopy(text, 0, payload, 1, text.length);
+			return payload;
+		}
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(p);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Decode a packet from a frame payload.
+	 * @param payload The array holding the payload.
+	 * @param offset The index of the first payload byte.
+	 * @param length The number of payload bytes.
+	 * @param codec The codec the packet was encoded with.
+	 * @return packet The decoded Packet.
+	 */
+	public static Packet decode(byte[] payload, int offset, int length, byte codec) throws IOException {
+		if(codec == CODEC_BINARY) {
+			if(length < 1) {
+				throw new StreamCorruptedException("Empty frame.");
+			}
+			int directiveByte = payload[offset] & 0xFF;
+			int ordinal = directiveByte & ~NULL_MESSAGE;
+			Directive[] directives = Directive.values();
+			if(ordinal >= directives.length) {
+				throw new StreamCorruptedException("Unknown directive: "+ordinal);
+			}
+			String message = null;
+			if((directiveByte & NULL_MESSAGE) == 0) {
+				message = new String(payload, offset + 1, length - 1, StandardCharsets.UTF_8);
+			}
+			return new Packet(message, directives[ordinal]);
+		}
+
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload, offset, length));
+		try {
+			return (Packet) in.readObject();
+		}
+		catch (ClassNotFoundException | ClassCastException e) {
+			throw new StreamCorruptedException("Frame does not contain a packet.");
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Build a complete frame (length prefix and payload) for a packet.
+	 * @param p The Packet to frame.
+	 * @param codec The codec to encode the packet with.
+	 * @return frame The frame, ready to be written to a channel.
+	 */
+	public static ByteBuffer frame(Packet p, byte codec) throws IOException {
+		ByteBuffer frame;
+		if(codec == CODEC_BINARY) {
+			//Build the frame in place instead of copying a payload array.
+			byte[] text = messageBytes(p);
+			frame = ByteBuffer.allocate(HEADER_LENGTH + 1 + text.length);
+			frame.putInt(1 + text.length);
+			frame.put(directiveByte(p));
+			frame.put(text);
+		}
+		else {
+			byte[] payload = encode(p, codec);
+			frame = ByteBuffer.allocate(HEADER_LENGTH + payload.length);
+			frame.putInt(payload.length);
+			frame.put(payload);
+		}
+		frame.flip();
+		return frame;
+	}
+
+	/**
+	 * Write a packet frame to a stream. The stream is not flushed.
+	 * @param out The stream to write to.
+	 * @param p The Packet to write.
+	 * @param codec The codec to encode the packet with.
+	 */
+	public static void writeFrame(DataOutputStream out, Packet p, byte codec) throws IOException {
+		byte[] payload = encode(p, codec);
+		out.writeInt(payload.length);
+		out.write(payload);
+	}
+
+	/**
+	 * Read the next packet frame from a stream.
+	 * Blocks until a complete frame has been read.
+	 * @param in The stream to read from.
+	 * @param codec The codec the packet was encoded with.
+	 * @return packet The Packet held by the frame.
+	 */
+	public static Packet readFrame(DataInputStream in, byte codec) throws IOException {
+		int length = in.readInt();
+		if(length < 0 || length > MAX_FRAME_LENGTH) {
+			throw new StreamCorruptedException("Invalid frame length: "+length);
+		}
+		byte[] payload = new byte[length];
+		in.readFully(payload);
+		return decode(payload, 0, length, codec);
+	}
+
+	/**
+	 * Return the directive byte of a binary payload.
+	 * @param p The Packet being encoded.
+	 * @return directiveByte The directive ordinal and null message flag.
+	 */
+	private static byte directiveByte(Packet p) throws IOException {
+		if(p.getDirective() == null) {
+			throw new IOException("Packets must have a directive.");
+		}
+		int directiveByte = p.getDirective().ordinal();
+		if(p.getMessage() == null) {
+			directiveByte |= NULL_MESSAGE;
+		}
+		return (byte) directiveByte;
+	}
+
+	/**
+	 * Return the UTF-8 bytes of a packet message.
+	 * @param p The Packet being encoded.
+	 * @return text The message bytes, empty if the message is null.
+	 */
+	private static byte[] messageBytes(Packet p) {
+		if(p.getMessage() == null) {
+			return new byte[0];
+		}
+		return p.getMessage().getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,149 @@
+package com.guimonsters.network;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * An ObjectOutputStream for long lived connections that keeps its memory use flat.
+ * A plain ObjectOutputStream remembers every object it has ever written so it can
+ * send back references to them, which keeps every Packet and String sent to a
+ * client reachable for as long as the client stays connected.
+ * This stream calls reset() after a set number of packets or bytes, which clears
+ * the handle table on both ends of the stream. Readers handle resets transparently.
+ *
+ * @author Elijah Atkinson
+ * @version 1.00, 2013-05-11
+ */
+public class ManagedObjectOutputStream extends ObjectOutputStream {
+
+	//Data fields
+	private CountingOutputStream counter;
+	private int packetBudget;
+	private long byteBudget;
+	private int packetsSinceReset;
+	private long bytesAtReset;
+	private int retainedHandles;
+	private long packetsWritten;
+	private long resetCount;
+
+	/**
+	 * Create a ManagedObjectOutputStream that writes to the given stream.
+	 * @param out The stream to write objects to.
+	 * @param packetBudget The number of packets to write before resetting, 0 for no limit.
+	 * @param byteBudget The number of bytes to write before resetting, 0 for no limit.
+	 */
+	public ManagedObjectOutputStream(OutputStream out, int packetBudget, long byteBudget) throws IOException {
+		this(new CountingOutputStream(out), packetBudget, byteBudget);
+	}
+
+	/**
+	 * Create a ManagedObjectOutputStream around a stream that counts its bytes.
+	 * The counter must be in place before the stream header is written.
+	 */
+	private ManagedObjectOutputStream(CountingOutputStream counter, int packetBudget, long byteBudget) throws IOException {
+		super(counter);
+		this.counter = counter;
+		this.packetBudget = packetBudget;
+		this.byteBudget = byteBudget;
+		this.bytesAtReset = counter.count;
+
+		//Every object that gets a new handle is passed to replaceObject(),
+		//which lets this stream count the size of its handle table.
+		this.enableReplaceObject(true);
+	}
+
+	/**
+	 * Write a packet to the stream and reset the stream if
+	 * its packet or byte budget has been used up.
+	 * @param p The Packet to write.
+	 */
+	public void writePacket(Packet p) throws IOException {
+		this.writeObject(p);
+		this.packetsSinceReset++;
+		this.packetsWritten++;
+
+		boolean packetsSpent = this.packetBudget > 0 && this.packetsSinceReset >= this.packetBudget;
+		boolean bytesSpent = this.byteBudget > 0 && this.counter.count - this.bytesAtReset >= this.byteBudget;
+		if(packetsSpent || bytesSpent) {
+			this.reset();
+		}
+	}
+
+	/**
+	 * Clear the handle table and start a new packet and byte budget.
+	 */
+	@Override
+	public void reset() throws IOException {
+		super.reset();
+		this.packetsSinceReset = 0;
+		this.bytesAtReset = this.counter.count;
+		this.retainedHandles = 0;
+		this.resetCount++;
+	}
+
+	/**
+	 * Count every object that is given a handle. The object is written unchanged.
+	 */
+	@Override
+	protected Object replaceObject(Object obj) throws IOException {
+		this.retainedHandles++;
+		return obj;
+	}
+
+	/**
+	 * Count every class description that is given a handle.
+	 */
+	@Override
+	protected void annotateClass(Class<?> cl) throws IOException {
+		this.retainedHandles++;
+	}
+
+	//Getters and setters
+	//------------------------------
+
+	/**
+	 * Return the number of objects currently held in the handle table.
+	 * @return retainedHandles The number of objects kept reachable by this stream.
+	 */
+	public int getRetainedHandles() {
+		return this.retainedHandles;
+	}
+
+	public long getPacketsWritten() {
+		return this.packetsWritten;
+	}
+
+	public long getBytesWritten() {
+		return this.counter.count;
+	}
+
+	public long getResetCount() {
+		return this.resetCount;
+	}
+
+	/**
+	 * Counts the bytes written to the underlying stream.
+	 */
+	private static class CountingOutputStream extends FilterOutputStream {
+
+		private long count;
+
+		public CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			this.out.write(b);
+			this.count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			this.out.write(b, off, len);
+			this.count += len;
+		}
+	}
+}
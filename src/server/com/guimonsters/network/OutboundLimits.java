@@ -0,0 +1,110 @@
+package com.guimonsters.network;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how much output may be queued for a single client, and decides
+ * what happens to a packet that would go over the limit.
+ * Chat is the least important output, so CHAT packets are dropped once a
+ * queue holds half of its limit. Any other packet is only refused when the
+ * queue is completely full, and the client is then disconnected because it
+ * has stopped keeping up with the game.
+ * One instance is shared by every connection, and counts the packets
+ * dropped and the clients evicted across the whole server.
+ *
+ * @author Elijah Atkinson
+ * @version 1.00, 2013-05-11
+ */
+public class OutboundLimits {
+
+	/**
+	 * What a connection should do with a packet it has been asked to send.
+	 */
+	public enum Action {
+		QUEUE,
+		DROP,
+		EVICT
+	};
+
+	//Sent to clients that are disconnected for falling too far behind.
+	public static final String EVICTION_REASON = "You have been disconnected because your connection could not keep up with the server.";
+
+	//Data fields
+	private int maxPackets;
+	private long maxBytes;
+	private AtomicLong droppedPackets;
+	private AtomicLong droppedBytes;
+	private AtomicLong evictions;
+
+	/**
+	 * Create a new set of outbound limits.
+	 * @param maxPackets The most packets that may be queued for a client, 0 for no limit.
+	 * @param maxBytes The most bytes that may be queued for a client, 0 for no limit.
+	 */
+	public OutboundLimits(int maxPackets, long maxBytes) {
+		this.maxPackets = maxPackets;
+		this.maxBytes = maxBytes;
+		this.droppedPackets = new AtomicLong();
+		this.droppedBytes = new AtomicLong();
+		this.evictions = new AtomicLong();
+	}
+
+	/**
+	 * Decide what to do with a packet given the size of the queue it would join.
+	 * Dropped packets are counted, so the decision must be acted on.
+	 * @param directive The Directive of the packet.
+	 * @param size The size of the packet in bytes.
+	 * @param queuedPackets The number of packets already queued.
+	 * @param queuedBytes The number of bytes already queued.
+	 * @return action The Action the connection must take.
+	 */
+	public Action admit(Directive directive, long size, int queuedPackets, long queuedBytes) {
+		//Chat may only use the first half of the queue.
+		int share = directive == Directive.CHAT ? 2 : 1;
+
+		boolean packetsFull = this.maxPackets > 0 && (queuedPackets + 1) * share > this.maxPackets;
+		boolean bytesFull = this.maxBytes > 0 && (queuedBytes + size) * share > this.maxBytes;
+		if(!packetsFull && !bytesFull) {
+			return Action.QUEUE;
+		}
+
+		if(directive == Directive.CHAT) {
+			this.droppedPackets.incrementAndGet();
+			this.droppedBytes.addAndGet(size);
+			return Action.DROP;
+		}
+
+		return Action.EVICT;
+	}
+
+	/**
+	 * Count a client that has been disconnected for falling behind.
+	 * Called once by each connection that is evicted.
+	 */
+	public void recordEviction() {
+		this.evictions.incrementAndGet();
+	}
+
+	//Getters and setters
+	//------------------------------
+
+	public int getMaxPackets() {
+		return this.maxPackets;
+	}
+
+	public long getMaxBytes() {
+		return this.maxBytes;
+	}
+
+	public long getDroppedPackets() {
+		return this.droppedPackets.get();
+	}
+
+	public long getDroppedBytes() {
+		return this.droppedBytes.get();
+	}
+
+	public long getEvictions() {
+		return this.evictions.get();
+	}
+}
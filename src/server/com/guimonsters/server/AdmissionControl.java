@@ -0,0 +1,312 @@
+package com.guimonsters.server;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which new connections may start a client session.
+ * Every accepted socket is offered here before any thread or stream is
+ * created for it. A connection is turned away if its address is on the
+ * blocklist or has connected too often lately, is queued if the server
+ * already has as many sessions as it allows, and is started otherwise.
+ *
+ * Each address has a token bucket that holds up to a burst of connections
+ * and refills at a steady rate, so a client can reconnect a few times
+ * quickly but a flood of connections from one address is refused.
+ *
+ * A started connection holds a Permit, and releasing it lets the oldest
+ * queued connection start in its place.
+ *
+ * @author Elijah Atkinson
+ * @version 1.00, 2013-05-12
+ */
+public class AdmissionControl {
+
+	//Data fields
+	private int maxSessions;
+	private int maxPending;
+	private double refillPerNano;
+	private int burst;
+	private ConcurrentHashMap<String, TokenBucket> buckets;
+	private Set<String> blocklist;
+	private ArrayDeque<Candidate> pending;
+	private int sessions;
+	private boolean shutDown;
+	private AtomicLong admitted;
+	private AtomicLong queued;
+	private AtomicLong rejectedBlocked;
+	private AtomicLong rejectedRate;
+	private AtomicLong rejectedFull;
+
+	/**
+	 * Create a new admission stage.
+	 * @param maxSessions The most sessions that may run at once, 0 for no limit.
+	 * @param maxPending The most connections that may wait for a session.
+	 * @param perMinute The number of connections an address may make per minute, 0 for no limit.
+	 * @param burst The number of connections an address may make in a row.
+	 */
+	public AdmissionControl(int maxSessions, int maxPending, int perMinute, int burst) {
+		this.maxSessions = maxSessions;
+		this.maxPending = maxPending;
+		this.refillPerNano = perMinute / (double) TimeUnit.MINUTES.toNanos(1);
+		this.burst = Math.max(1, burst);
+		this.buckets = new ConcurrentHashMap<String, TokenBucket>();
+		this.blocklist = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		this.pending = new ArrayDeque<Candidate>();
+		this.sessions = 0;
+		this.shutDown = false;
+		this.admitted = new AtomicLong();
+		this.queued = new AtomicLong();
+		this.rejectedBlocked = new AtomicLong();
+		this.rejectedRate = new AtomicLong();
+		this.rejectedFull = new AtomicLong();
+	}
+
+	/**
+	 * Offer a new connection. The connection is started, queued or
+	 * rejected before this method returns, except that a queued
+	 * connection is started later by another thread.
+	 * @param candidate The Candidate for the new connection.
+	 */
+	public void offer(Candidate candidate) {
+		if(this.blocklist.contains(candidate.getAddress())) {
+			this.rejectedBlocked.incrementAndGet();
+			candidate.reject();
+			return;
+		}
+		if(!this.takeToken(candidate.getAddress())) {
+			this.rejectedRate.incrementAndGet();
+			candidate.reject();
+			return;
+		}
+
+		boolean start = false;
+		synchronized (this) {
+			if(this.shutDown) {
+				this.rejectedFull.incrementAndGet();
+			}
+			else if(this.maxSessions <= 0 || this.sessions < this.maxSessions) {
+				this.sessions++;
+				start = true;
+			}
+			else if(this.pending.size() < this.maxPending) {
+				this.pending.add(candidate);
+				this.queued.incrementAndGet();
+				return;
+			}
+			else {
+				this.rejectedFull.incrementAndGet();
+			}
+		}
+
+		if(start) {
+			this.admitted.incrementAndGet();
+			candidate.start(new Permit());
+		}
+		else {
+			candidate.reject();
+		}
+	}
+
+	/**
+	 * Take a token from the bucket of an address.
+	 * @param address The host address of the client.
+	 * @return success True if the address may connect.
+	 */
+	private boolean takeToken(String address) {
+		if(this.refillPerNano <= 0) {
+			return true;
+		}
+		TokenBucket bucket = this.buckets.get(address);
+		if(bucket == null) {
+			bucket = new TokenBucket(this.burst);
+			TokenBucket existing = this.buckets.putIfAbsent(address, bucket);
+			if(existing != null) {
+				bucket = existing;
+			}
+		}
+		return bucket.take(this.refillPerNano, this.burst);
+	}
+
+	/**
+	 * Forget the buckets of addresses that have not connected for long
+	 * enough to have refilled completely, so the map only holds recent addresses.
+	 */
+	public void sweep() {
+		long now = System.nanoTime();
+		Iterator<TokenBucket> it = this.buckets.values().iterator();
+		while(it.hasNext()) {
+			if(it.next().isFull(now, this.refillPerNano, this.burst)) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Hand a released session slot to the oldest queued connection,
+	 * or free the slot if nobody is waiting.
+	 */
+	private void release() {
+		Candidate next;
+		synchronized (this) {
+			next = this.shutDown ? null : this.pending.poll();
+			if(next == null) {
+				this.sessions--;
+				return;
+			}
+		}
+		this.admitted.incrementAndGet();
+		next.start(new Permit());
+	}
+
+	/**
+	 * Stop admitting connections and reject every queued one.
+	 */
+	public void shutdown() {
+		ArrayDeque<Candidate> waiting;
+		synchronized (this) {
+			this.shutDown = true;
+			waiting = new ArrayDeque<Candidate>(this.pending);
+			this.pending.clear();
+		}
+		for(Candidate candidate : waiting) {
+			candidate.reject();
+		}
+	}
+
+	/**
+	 * Add an address to the blocklist. Sessions that are already running are not affected.
+	 * @param address The host address to block.
+	 * @return added True if the address was not blocked already.
+	 */
+	public boolean block(String address) {
+		return this.blocklist.add(address);
+	}
+
+	/**
+	 * Remove an address from the blocklist.
+	 * @param address The host address to unblock.
+	 * @return removed True if the address was blocked.
+	 */
+	public boolean unblock(String address) {
+		return this.blocklist.remove(address);
+	}
+
+	//Getters and setters
+	//------------------------------
+
+	public synchronized int getSessions() {
+		return this.sessions;
+	}
+
+	public synchronized int getPending() {
+		return this.pending.size();
+	}
+
+	public long getAdmitted() {
+		return this.admitted.get();
+	}
+
+	public long getQueued() {
+		return this.queued.get();
+	}
+
+	public long getRejectedBlocked() {
+		return this.rejectedBlocked.get();
+	}
+
+	public long getRejectedRate() {
+		return this.rejectedRate.get();
+	}
+
+	public long getRejectedFull() {
+		return this.rejectedFull.get();
+	}
+
+	public int getTrackedAddresses() {
+		return this.buckets.size();
+	}
+
+	/**
+	 * A new connection that is waiting to be admitted.
+	 */
+	public static abstract class Candidate {
+
+		private String address;
+
+		/**
+		 * @param address The host address of the client.
+		 */
+		public Candidate(String address) {
+			this.address = address;
+		}
+
+		/**
+		 * Start a session for the connection. Must not block.
+		 * @param permit The Permit to release once the session has ended.
+		 */
+		public abstract void start(Permit permit);
+
+		/**
+		 * Close the connection without starting a session.
+		 */
+		public abstract void reject();
+
+		public String getAddress() {
+			return this.address;
+		}
+	}
+
+	/**
+	 * A session slot held by a running connection.
+	 * Only the first release has any effect.
+	 */
+	public class Permit {
+
+		private AtomicBoolean released = new AtomicBoolean(false);
+
+		public void release() {
+			if(this.released.compareAndSet(false, true)) {
+				AdmissionControl.this.release();
+			}
+		}
+	}
+
+	/**
+	 * The connection tokens of a single address.
+	 */
+	private static class TokenBucket {
+
+		private double tokens;
+		private long updated;
+
+		private TokenBucket(int burst) {
+			this.tokens = burst;
+			this.updated = System.nanoTime();
+		}
+
+		/**
+		 * Refill the bucket for the time that has passed and take a token if there is one.
+		 */
+		private synchronized boolean take(double refillPerNano, int burst) {
+			long now = System.nanoTime();
+			this.tokens = Math.min(burst, this.tokens + (now - this.updated) * refillPerNano);
+			this.updated = now;
+			if(this.tokens >= 1) {
+				this.tokens -= 1;
+				return true;
+			}
+			return false;
+		}
+
+		private synchronized boolean isFull(long now, double refillPerNano, int burst) {
+			return this.tokens + (now - this.updated) * refillPerNano >= burst;
+		}
+	}
+}
@@ -0,0 +1,25 @@
+package com.guimonsters.server;
+
+/**
+ * Specifies how the ServerSocketThread serves client connections.
+ * Current possible modes are:
+ *
+ * THREAD   - Every client session runs on its own MudServerThread
+ *            and blocks while reading from its socket.
+ *
+ * VIRTUAL  - Every client session runs the same blocking loop as in
+ *            THREAD mode, but on a virtual thread that does not hold
+ *            an operating system thread while it waits for the client.
+ *
+ * SELECTOR - A small pool of SelectorThreads owns every socket and
+ *            decodes packets without blocking. Client sessions only
+ *            use a worker thread while they have commands to run.
+ *
+ * @author Elijah Atkinson
+ * @version 1.00, 2013-05-10
+ */
+public enum ConnectionMode {
+	THREAD,
+	VIRTUAL,
+	SELECTOR
+};
@@ -0,0 +1,78 @@
+package com.guimonsters.server;
+
+import java.util.EnumMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.guimonsters.network.Directive;
+import com.guimonsters.network.EncodedPacket;
+import com.guimonsters.network.Packet;
+
+/**
+ * A registry of the packets the server sends over and over with the same text,
+ * such as prompts, error messages and "Goodbye!".
+ * Each registered packet is built once and encoded at most once per codec.
+ * Register a message where it is declared, and send the packet with
+ * MudServerThread.write(EncodedPacket):
+ *     private static final EncodedPacket ERROR_GO = ConstantPackets.register("Where do you want to go?");
+ * Messages sent as Strings are always encoded again, however often they are sent.
+ *
+ * @author Elijah Atkinson
+ * @version 1.00, 2013-05-12
+ */
+public class ConstantPackets {
+
+	//Registered packets by directive, then by message.
+	private static final EnumMap<Directive, ConcurrentHashMap<String, EncodedPacket>> packets;
+
+	static {
+		packets = new EnumMap<Directive, ConcurrentHashMap<String, EncodedPacket>>(Directive.class);
+		for(Directive directive : Directive.values()) {
+			packets.put(directive, new ConcurrentHashMap<String, EncodedPacket>());
+		}
+	}
+
+	//Sent when a session ends.
+	public static final EncodedPacket GOODBYE = register("Goodbye!", Directive.DISCONNECT);
+	public static final EncodedPacket SHUT_DOWN = register("The server has been shut down.", Directive.DISCONNECT);
+
+	/**
+	 * Register a message that is sent with the MESSAGE directive.
+	 * @param message The constant message text.
+	 * @return packet The shared EncodedPacket for the message.
+	 */
+	public static EncodedPacket register(String message) {
+		return register(message, Directive.MESSAGE);
+	}
+
+	/**
+	 * Register a message that is sent with the given directive.
+	 * Registering the same message twice returns the first packet.
+	 * @param message The constant message text.
+	 * @param directive The Directive the message is sent with.
+	 * @return packet The shared EncodedPacket for the message.
+	 */
+	public static EncodedPacket register(String message, Directive directive) {
+		ConcurrentHashMap<String, EncodedPacket> registered = packets.get(directive);
+		EncodedPacket packet = registered.get(message);
+		if(packet == null) {
+			EncodedPacket created = new EncodedPacket(new Packet(message, directive));
+			packet = registered.putIfAbsent(message, created);
+			if(packet == null) {
+				packet = created;
+			}
+		}
+		return packet;
+	}
+
+	/**
+	 * Return the number of registered packets.
+	 * @return count The number of constant packets.
+	 */
+	public static int size() {
+		int count = 0;
+		for(ConcurrentHashMap<String, EncodedPacket> registered : packets.values()) {
+			count += registered.size();
+		}
+		return count;
+	}
+}
@@ -0,0 +1,254 @@
+package com.guimonsters.server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.guimonsters.server.game.Room;
+
+/**
+ * Runs the commands of the playing sessions in the zones it owns, on one thread,
+ * in fixed ticks. Sessions only queue the commands their clients send. Each tick
+ * the loop first runs the messages posted to it by other loops, such as players
+ * handed off into its zones, then the game events due on its GameScheduler, and
+ * then the queued commands of every session that has any, in the order the
+ * sessions queued them. Game commands in a zone never
+ * run at the same time as each other and never wait on a lock held by another
+ * player's command.
+ *
+ * Responses go back through each session's own connection, which queues
+ * them for sending, so a tick never waits for a client.
+ *
+ * A tick that takes longer than the tick length delays the ticks after it.
+ * The loop counts those overruns and keeps the last and longest tick times.
+ *
+ * @author Elijah Atkinson
+ * @version 1.00, 2013-05-12
+ */
+public class GameLoop extends Thread {
+
+	//Data fields
+	private GameLoopGroup group;
+	private int index;
+	private long tickNanos;
+	private ConcurrentLinkedQueue<Runnable> messages;
+	private ConcurrentLinkedQueue<MudServerThread> ready;
+	private GameScheduler scheduler;
+	private volatile boolean running;
+	private long tick;
+	private long startTime;
+	private volatile long ticks;
+	private volatile long commands;
+	private volatile long overruns;
+	private volatile long lastTickNanos;
+	private volatile long maxTickNanos;
+	private volatile long totalTickNanos;
+	private volatile int lastTickCommands;
+
+	/**
+	 * Create a new game loop. Call start() to start ticking.
+	 * @param group The GameLoopGroup that gives the zones to the loops.
+	 * @param index The index of the loop in its group.
+	 * @param tickMillis The length of a tick in milliseconds.
+	 */
+	public GameLoop(GameLoopGroup group, int index, long tickMillis) {
+		super("GameLoop-"+index);
+		this.setDaemon(true);
+		this.group = group;
+		this.index = index;
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+		this.messages = new ConcurrentLinkedQueue<Runnable>();
+		this.ready = new ConcurrentLinkedQueue<MudServerThread>();
+		this.scheduler = new GameScheduler();
+		this.running = true;
+		this.tick = 0;
+	}
+
+	/**
+	 * Have a session's queued commands run on the next tick.
+	 * A session only needs to be submitted once for all the commands it queues before that tick.
+	 * @param session The MudServerThread with queued commands.
+	 */
+	public void submit(MudServerThread session) {
+		this.ready.offer(session);
+	}
+
+	/**
+	 * Have a message run at the start of the next tick, before any session's commands.
+	 * @param message The Runnable to run on this loop's thread.
+	 */
+	public void post(Runnable message) {
+		this.messages.offer(message);
+	}
+
+	/**
+	 * GameLoop main method.
+	 */
+	public void run() {
+		this.startTime = System.nanoTime();
+		while(this.running) {
+			//Sleep until the start of the next tick.
+			long wait = this.startTime + (this.tick + 1) * this.tickNanos - System.nanoTime();
+			if(wait > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				}
+				catch (InterruptedException e) {
+					continue;
+				}
+			}
+			this.tick++;
+			this.runTick();
+		}
+	}
+
+	/**
+	 * Run the posted messages, then the due game events, then the commands of
+	 * the sessions that were ready when the tick started. Sessions that queue commands during the tick are
+	 * run on the next one. The time each session takes, and each message that moves
+	 * a player into a room, is added to its zone.
+	 */
+	private void runTick() {
+		long start = System.nanoTime();
+		HashMap<GameLoopGroup.ZoneStats, long[]> zoneTimes = new HashMap<GameLoopGroup.ZoneStats, long[]>();
+		Runnable message;
+		while((message = this.messages.poll()) != null) {
+			long messageStart = System.nanoTime();
+			try {
+				message.run();
+			}
+			catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+			if(message instanceof GameLoopGroup.RoomMessage) {
+				Room destination = ((GameLoopGroup.RoomMessage) message).getDestination();
+				this.addZoneTime(zoneTimes, GameLoopGroup.getZoneName(destination), System.nanoTime() - messageStart, 0);
+			}
+		}
+		this.scheduler.tick();
+
+		int count = 0;
+		for(int i = this.ready.size(); i > 0; i--) {
+			MudServerThread session = this.ready.poll();
+			if(session == null) {
+				break;
+			}
+			String zoneName = GameLoopGroup.getZoneName(session.getPlayer().getCurrentRoom());
+			long sessionStart = System.nanoTime();
+			int sessionCount = session.runQueuedCommands(this);
+			if(sessionCount == 0) {
+				continue;
+			}
+			this.addZoneTime(zoneTimes, zoneName, System.nanoTime() - sessionStart, sessionCount);
+			count += sessionCount;
+		}
+		for(Map.Entry<GameLoopGroup.ZoneStats, long[]> entry : zoneTimes.entrySet()) {
+			entry.getKey().addTick(entry.getValue()[0], (int) entry.getValue()[1]);
+		}
+		long elapsed = System.nanoTime() - start;
+
+		this.commands += count;
+		this.lastTickCommands = count;
+		this.lastTickNanos = elapsed;
+		this.totalTickNanos += elapsed;
+		if(elapsed > this.maxTickNanos) {
+			this.maxTickNanos = elapsed;
+		}
+		this.ticks++;
+
+		//Start counting again from now if the tick ran past the start of the next one.
+		long now = System.nanoTime();
+		if(now - this.startTime >= (this.tick + 1) * this.tickNanos) {
+			this.overruns++;
+			this.startTime = now;
+			this.tick = 0;
+		}
+	}
+
+	/**
+	 * Add time spent in a zone to the zone's total for this tick.
+	 * @param zoneTimes The time and command count of each zone so far this tick.
+	 * @param zoneName The name of the zone.
+	 * @param nanos The time in nanoseconds.
+	 * @param commands The number of commands run.
+	 */
+	private void addZoneTime(HashMap<GameLoopGroup.ZoneStats, long[]> zoneTimes, String zoneName, long nanos, int commands) {
+		GameLoopGroup.ZoneStats zone = this.group.getZoneStats(zoneName);
+		long[] time = zoneTimes.get(zone);
+		if(time == null) {
+			time = new long[2];
+			zoneTimes.put(zone, time);
+		}
+		time[0] += nanos;
+		time[1] += commands;
+	}
+
+	/**
+	 * Stop the loop. Commands that have not run yet never will.
+	 */
+	public void terminate() {
+		this.running = false;
+		this.interrupt();
+	}
+
+	//Getters and setters
+	//------------------------------
+
+	public int getIndex() {
+		return this.index;
+	}
+
+	public GameScheduler getScheduler() {
+		return this.scheduler;
+	}
+
+	public long getTickNanos() {
+		return this.tickNanos;
+	}
+
+	public long getTicks() {
+		return this.ticks;
+	}
+
+	public long getCommands() {
+		return this.commands;
+	}
+
+	/**
+	 * Get the number of ticks that took longer than the tick length.
+	 * @return overruns The number of overrunning ticks.
+	 */
+	public long getOverruns() {
+		return this.overruns;
+	}
+
+	public long getLastTickNanos() {
+		return this.lastTickNanos;
+	}
+
+	public long getMaxTickNanos() {
+		return this.maxTickNanos;
+	}
+
+	/**
+	 * Get the average time the ticks have taken to run their commands.
+	 * @return averageTickNanos The average tick time in nanoseconds.
+	 */
+	public long getAverageTickNanos() {
+		long ticks = this.ticks;
+		return ticks == 0 ? 0 : this.totalTickNanos / ticks;
+	}
+
+	public int getLastTickCommands() {
+		return this.lastTickCommands;
+	}
+
+	/**
+	 * Get the number of sessions waiting for the next tick.
+	 * @return waiting The number of sessions with queued commands.
+	 */
+	public int getWaitingSessions() {
+		return this.ready.size();
+	}
+}
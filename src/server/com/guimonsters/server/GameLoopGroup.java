@@ -0,0 +1,341 @@
+package com.guimonsters.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.guimonsters.server.game.GameWorld;
+import com.guimonsters.server.game.PlayerCharacter;
+import com.guimonsters.server.game.Room;
+
+/**
+ * A fixed set of GameLoops that share the zones of the world between them.
+ * Each zone is owned by one loop, which is the only one to run the commands
+ * of the players in the zone and the game events of its rooms, so the rooms
+ * of a zone are only changed by that loop's thread. Zones are given to the
+ * loops in turn as they are first used, and keep their loop from then on.
+ *
+ * The group is also the GameScheduler.Locator of the server, so the game
+ * events of a room run on the loop that owns the room.
+ *
+ * A player who walks into a zone owned by another loop is handed off: the
+ * player leaves the room on the old loop, and the new loop moves the player
+ * into the destination room and runs the player's commands from then on.
+ * The session's commands are held until the player is in the room, so none
+ * of them runs while the player is between rooms. A player who starts playing
+ * is moved into the world by the loop that owns the starting room the same way.
+ *
+ * The rooms of a world that is not sharded all belong to one zone,
+ * so the world has to be split into zones to use more than one loop.
+ *
+ * Every loop keeps the time each zone took on its last tick and in total,
+ * so zones that keep a loop busy can be found and split up.
+ *
+ * @author Elijah Atkinson
+ * @version 1.00, 2013-05-12
+ */
+public class GameLoopGroup implements GameScheduler.Locator {
+
+	//The zone of every room of a world that is not sharded.
+	private static final String WORLD_ZONE = "world";
+
+	//Data fields
+	private GameLoop[] loops;
+	private boolean runningCommands;
+	private ConcurrentHashMap<String, GameLoop> owners;
+	private ConcurrentHashMap<String, ZoneStats> zoneStats;
+	private AtomicInteger nextLoop;
+	private AtomicLong handoffs;
+
+	/**
+	 * Create a group of game loops. Call start() to start them ticking.
+	 * @param threads The number of loops, each with its own thread.
+	 * @param tickMillis The length of a tick in milliseconds.
+	 * @param runningCommands True if sessions queue their commands on the loops,
+	 * 						  false if the loops only run game events.
+	 */
+	public GameLoopGroup(int threads, long tickMillis, boolean runningCommands) {
+		this.loops = new GameLoop[Math.max(1, threads)];
+		for(int i = 0; i < this.loops.length; i++) {
+			this.loops[i] = new GameLoop(this, i, tickMillis);
+		}
+		this.owners = new ConcurrentHashMap<String, GameLoop>();
+		this.zoneStats = new ConcurrentHashMap<String, ZoneStats>();
+		this.nextLoop = new AtomicInteger();
+		this.handoffs = new AtomicLong();
+		this.runningCommands = runningCommands;
+	}
+
+	/**
+	 * Start every loop.
+	 */
+	public void start() {
+		for(GameLoop loop : this.loops) {
+			loop.start();
+		}
+	}
+
+	/**
+	 * Stop every loop and wait for them to finish their tick.
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	public void terminate() throws InterruptedException {
+		for(GameLoop loop : this.loops) {
+			loop.terminate();
+		}
+		for(GameLoop loop : this.loops) {
+			loop.join();
+		}
+	}
+
+	/**
+	 * Get the name of the zone a room belongs to.
+	 * @param room The Room.
+	 * @return zoneName The name of the zone of the room.
+	 */
+	public static String getZoneName(Room room) {
+		String zoneName = room.getZoneName();
+		return zoneName == null ? WORLD_ZONE : zoneName;
+	}
+
+	/**
+	 * Get the loop that owns the zone of a room, giving the zone to the next loop
+	 * in turn if no loop owns it yet.
+	 * @param room The Room.
+	 * @return loop The GameLoop that runs the commands of players in the room.
+	 */
+	public GameLoop getOwner(Room room) {
+		String zoneName = getZoneName(room);
+		GameLoop owner = this.owners.get(zoneName);
+		if(owner == null) {
+			GameLoop next = this.loops[(this.nextLoop.getAndIncrement() & Integer.MAX_VALUE) % this.loops.length];
+			owner = this.owners.putIfAbsent(zoneName, next);
+			if(owner == null) {
+				owner = next;
+			}
+		}
+		return owner;
+	}
+
+	/**
+	 * Get the scheduler for the game events of a room, which runs them on the loop that owns the room.
+	 * @param room The Room.
+	 * @return scheduler The GameScheduler of the owning loop.
+	 */
+	public GameScheduler getScheduler(Room room) {
+		return this.getOwner(room).getScheduler();
+	}
+
+	/**
+	 * Move a player into a room of a zone owned by another loop.
+	 * Runs on the loop of the room the player is leaving. The player leaves
+	 * the room right away, and enters the destination on the destination's loop.
+	 * @param session The MudServerThread of the player.
+	 * @param start The Room the player is leaving.
+	 * @param destination The Room the player is going to.
+	 */
+	public void handOff(MudServerThread session, Room start, Room destination) {
+		start.leave(session.getPlayer());
+
+		//Commands queued from here on wait until the new loop has moved the player.
+		GameLoop owner = this.getOwner(destination);
+		session.holdCommands(owner);
+		owner.post(new Handoff(session, destination));
+		this.handoffs.incrementAndGet();
+	}
+
+	/**
+	 * Put a player who has just started playing into the world, on the loop that owns the room.
+	 * @param session The MudServerThread of the player.
+	 * @param world The GameWorld.
+	 * @param room The Room the player starts in.
+	 */
+	public void enterWorld(MudServerThread session, GameWorld world, Room room) {
+		GameLoop owner = this.getOwner(room);
+		session.holdCommands(owner);
+		owner.post(new EnterWorld(session, world, room));
+	}
+
+	/**
+	 * Get the time statistics of a zone, adding them if they are new.
+	 * @param zoneName The name of the zone.
+	 * @return stats The ZoneStats of the zone.
+	 */
+	ZoneStats getZoneStats(String zoneName) {
+		ZoneStats stats = this.zoneStats.get(zoneName);
+		if(stats == null) {
+			ZoneStats created = new ZoneStats(zoneName);
+			stats = this.zoneStats.putIfAbsent(zoneName, created);
+			if(stats == null) {
+				stats = created;
+			}
+		}
+		return stats;
+	}
+
+	/**
+	 * Get the zones that have taken the most time, busiest first.
+	 * @param count The most zones to return.
+	 * @return busiest The ZoneStats of the busiest zones.
+	 */
+	public List<ZoneStats> getBusiestZones(int count) {
+		List<ZoneStats> busiest = new ArrayList<ZoneStats>(this.zoneStats.values());
+		Collections.sort(busiest, new Comparator<ZoneStats>() {
+			public int compare(ZoneStats a, ZoneStats b) {
+				return Long.compare(b.getTotalNanos(), a.getTotalNanos());
+			}
+		});
+		return busiest.subList(0, Math.min(count, busiest.size()));
+	}
+
+	//Getters and setters
+	//------------------------------
+
+	public GameLoop[] getLoops() {
+		return this.loops;
+	}
+
+	public boolean isRunningCommands() {
+		return this.runningCommands;
+	}
+
+	/**
+	 * Get the index of the loop that owns a zone.
+	 * @param zoneName The name of the zone.
+	 * @return index The index of the owning loop, or -1 if no loop owns the zone yet.
+	 */
+	public int getOwnerIndex(String zoneName) {
+		GameLoop owner = this.owners.get(zoneName);
+		return owner == null ? -1 : owner.getIndex();
+	}
+
+	public long getHandoffs() {
+		return this.handoffs.get();
+	}
+
+	/**
+	 * A message that moves a player into a room, whose time counts toward the room's zone.
+	 */
+	abstract static class RoomMessage implements Runnable {
+
+		protected MudServerThread session;
+		protected Room destination;
+
+		private RoomMessage(MudServerThread session, Room destination) {
+			this.session = session;
+			this.destination = destination;
+		}
+
+		public void run() {
+			//The session can't end while the player is moved.
+			synchronized (this.session) {
+				if(this.session.isActive()) {
+					this.move();
+				}
+			}
+			this.session.releaseCommands();
+		}
+
+		/**
+		 * Move the player into the destination room.
+		 */
+		protected abstract void move();
+
+		Room getDestination() {
+			return this.destination;
+		}
+	}
+
+	/**
+	 * Moves a handed off player into the destination room on the loop that owns it.
+	 */
+	private static class Handoff extends RoomMessage {
+
+		private Handoff(MudServerThread session, Room destination) {
+			super(session, destination);
+		}
+
+		protected void move() {
+			PlayerCharacter player = this.session.getPlayer();
+			this.session.write(this.destination.enter(player));
+		}
+	}
+
+	/**
+	 * Moves a player who has just started playing into the starting room on the loop that owns it.
+	 */
+	private static class EnterWorld extends RoomMessage {
+
+		private GameWorld world;
+
+		private EnterWorld(MudServerThread session, GameWorld world, Room destination) {
+			super(session, destination);
+			this.world = world;
+		}
+
+		protected void move() {
+			this.session.enterWorld(this.world, this.destination);
+		}
+	}
+
+	/**
+	 * The time a zone has kept its loop busy.
+	 * Only the loop that owns the zone changes its statistics.
+	 */
+	public static class ZoneStats {
+
+		private String zoneName;
+		private volatile long ticks;
+		private volatile long commands;
+		private volatile long totalNanos;
+		private volatile long lastTickNanos;
+		private volatile long maxTickNanos;
+
+		private ZoneStats(String zoneName) {
+			this.zoneName = zoneName;
+		}
+
+		/**
+		 * Add the time the zone took on one tick.
+		 * @param nanos The time in nanoseconds.
+		 * @param commands The number of commands run for players in the zone.
+		 */
+		void addTick(long nanos, int commands) {
+			this.ticks++;
+			this.commands += commands;
+			this.totalNanos += nanos;
+			this.lastTickNanos = nanos;
+			if(nanos > this.maxTickNanos) {
+				this.maxTickNanos = nanos;
+			}
+		}
+
+		public String getZoneName() {
+			return this.zoneName;
+		}
+
+		public long getTicks() {
+			return this.ticks;
+		}
+
+		public long getCommands() {
+			return this.commands;
+		}
+
+		public long getTotalNanos() {
+			return this.totalNanos;
+		}
+
+		public long getLastTickNanos() {
+			return this.lastTickNanos;
+		}
+
+		public long getMaxTickNanos() {
+			return this.maxTickNanos;
+		}
+	}
+}
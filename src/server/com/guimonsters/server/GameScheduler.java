@@ -0,0 +1,377 @@
+package com.guimonsters.server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.guimonsters.server.game.Room;
+
+/**
+ * Runs game events, such as NPC wanders, item respawns and buff expiry,
+ * a number of game ticks from now. Each GameLoop has its own scheduler and
+ * advances it once per tick, so the events of a zone run on the thread of
+ * the loop that owns the zone, between the loop's messages and its commands.
+ *
+ * The scheduler is a hierarchical timer wheel. The first wheel has a slot for
+ * each of the next 256 ticks, and each of the three wheels above it has 64 slots
+ * that each cover a whole turn of the wheel below. An event goes into the slot
+ * of the wheel that covers its tick, and is moved down a wheel each time the
+ * wheel below comes round to it. Scheduling and cancelling an event only link
+ * or unlink it from one slot, and each tick runs every event in one slot of the
+ * first wheel together, however many events are waiting.
+ *
+ * Events further away than the top wheel reaches are kept in its last slot
+ * and placed again once they are close enough.
+ *
+ * Events may be scheduled and cancelled from any thread. Events scheduled by
+ * other threads are placed at the start of the next tick, and events cancelled
+ * by other threads are unlinked once their slot comes round.
+ *
+ * Use GameScheduler.of(Room) to find the scheduler of a room.
+ *
+ * @author Elijah Atkinson
+ * @version 1.00, 2013-05-12
+ */
+public class GameScheduler {
+
+	private static final int FIRST_BITS = 8;
+	private static final int LEVEL_BITS = 6;
+	private static final int LEVELS = 4;
+	//The most ticks ahead an event can be placed at its own slot.
+	private static final long MAX_DELAY = 1L << (FIRST_BITS + (LEVELS - 1) * LEVEL_BITS);
+
+	//Finds the scheduler of a room for the running server.
+	private static volatile Locator locator;
+
+	//Data fields
+	private Slot[][] wheels;
+	private long tick;
+	private Thread owner;
+	private ConcurrentLinkedQueue<Timer> added;
+	private volatile int pending;
+	private volatile long fired;
+	private volatile int lastFired;
+	private volatile long cascaded;
+
+	/**
+	 * Create an empty scheduler at tick 0.
+	 */
+	public GameScheduler() {
+		this.wheels = new Slot[LEVELS][];
+		for(int level = 0; level < LEVELS; level++) {
+			int size = 1 << (level == 0 ? FIRST_BITS : LEVEL_BITS);
+			this.wheels[level] = new Slot[size];
+			for(int i = 0; i < size; i++) {
+				this.wheels[level][i] = new Slot();
+			}
+		}
+		this.tick = 0;
+		this.added = new ConcurrentLinkedQueue<Timer>();
+	}
+
+	/**
+	 * Find the scheduler that runs the events of a room.
+	 * @param room The Room the events belong to.
+	 * @return scheduler The GameScheduler of the loop that owns the room, or null if the server is not running.
+	 */
+	public static GameScheduler of(Room room) {
+		Locator current = locator;
+		return current == null ? null : current.getScheduler(room);
+	}
+
+	/**
+	 * Set how the schedulers of rooms are found. Set by the server when it starts.
+	 * @param newLocator The Locator, or null once the server has stopped.
+	 */
+	public static void setLocator(Locator newLocator) {
+		locator = newLocator;
+	}
+
+	/**
+	 * Run a task once, a number of ticks from now.
+	 * @param task The Runnable to run. It must return quickly.
+	 * @param ticks The number of ticks to wait, at least 1.
+	 * @return timer The Timer that can be used to cancel the task.
+	 */
+	public Timer schedule(Runnable task, long ticks) {
+		return this.add(new Timer(task, Math.max(1, ticks), 0));
+	}
+
+	/**
+	 * Run a task every so many ticks, until it is cancelled.
+	 * @param task The Runnable to run. It must return quickly.
+	 * @param delay The number of ticks before the first run, at least 1.
+	 * @param period The number of ticks between runs, at least 1.
+	 * @return timer The Timer that can be used to cancel the task.
+	 */
+	public Timer scheduleRepeating(Runnable task, long delay, long period) {
+		return this.add(new Timer(task, Math.max(1, delay), Math.max(1, period)));
+	}
+
+	/**
+	 * Place a new timer on the wheel, or hand it to the owner thread if called from another thread.
+	 * @param timer The Timer, with its delay in its deadline.
+	 * @return timer The same Timer.
+	 */
+	private Timer add(Timer timer) {
+		if(Thread.currentThread() == this.owner) {
+			timer.deadline += this.tick;
+			this.place(timer);
+			this.pending++;
+		}
+		else {
+			this.added.offer(timer);
+		}
+		return timer;
+	}
+
+	/**
+	 * Advance one tick: place the timers added by other threads, move the
+	 * timers of the upper wheels down if the first wheel has come round,
+	 * and run every timer due on this tick. Called once per tick by the
+	 * thread that owns the scheduler.
+	 * @return fired The number of timers that ran.
+	 */
+	public int tick() {
+		this.owner = Thread.currentThread();
+
+		Timer timer;
+		while((timer = this.added.poll()) != null) {
+			if(!timer.cancelled) {
+				//The delay is counted from the tick the timer is first seen on.
+				timer.deadline += this.tick;
+				this.place(timer);
+				this.pending++;
+			}
+		}
+
+		//Each time a wheel comes round, the next slot of the wheel above it is moved down.
+		int index = (int) (this.tick & (this.wheels[0].length - 1));
+		for(int level = 1; level < LEVELS && index == 0; level++) {
+			index = this.slotIndex(this.tick, level);
+			this.cascade(this.wheels[level][index]);
+		}
+
+		//Timers scheduled while the slot runs are due on a later tick, so they never land in it.
+		Slot due = this.wheels[0][(int) (this.tick & (this.wheels[0].length - 1))];
+		int count = 0;
+		while((timer = due.poll()) != null) {
+			this.pending--;
+			if(timer.cancelled) {
+				continue;
+			}
+			try {
+				timer.task.run();
+			}
+			catch (RuntimeException e) {
+				e.printStackTrace();
+			}
+			count++;
+
+			//A repeating timer goes back on the wheel unless the task cancelled it.
+			if(timer.period > 0 && !timer.cancelled) {
+				timer.deadline = this.tick + timer.period;
+				this.place(timer);
+				this.pending++;
+			}
+			else {
+				timer.done = true;
+			}
+		}
+
+		this.tick++;
+		this.fired += count;
+		this.lastFired = count;
+		return count;
+	}
+
+	/**
+	 * Put a timer in the slot that covers its deadline.
+	 * @param timer The Timer to place.
+	 */
+	private void place(Timer timer) {
+		long delay = timer.deadline - this.tick;
+		Slot slot;
+		if(delay < 0) {
+			//Already due, run it on this tick.
+			slot = this.wheels[0][(int) (this.tick & (this.wheels[0].length - 1))];
+		}
+		else if(delay >= MAX_DELAY) {
+			//Too far away, wait in the last slot of the top wheel and place it again from there.
+			int top = LEVELS - 1;
+			slot = this.wheels[top][this.slotIndex(this.tick + MAX_DELAY - 1, top)];
+		}
+		else {
+			int level = 0;
+			while(delay >= 1L << (FIRST_BITS + level * LEVEL_BITS)) {
+				level++;
+			}
+			slot = this.wheels[level][this.slotIndex(timer.deadline, level)];
+		}
+		slot.add(timer);
+	}
+
+	/**
+	 * Get the slot of a wheel that covers a tick.
+	 * @param tick The tick.
+	 * @param level The wheel, 0 for the first wheel.
+	 * @return index The index of the slot in the wheel.
+	 */
+	private int slotIndex(long tick, int level) {
+		if(level == 0) {
+			return (int) (tick & (this.wheels[0].length - 1));
+		}
+		return (int) ((tick >>> (FIRST_BITS + (level - 1) * LEVEL_BITS)) & (this.wheels[level].length - 1));
+	}
+
+	/**
+	 * Move every timer in a slot of an upper wheel down to the wheel that now covers it.
+	 * @param slot The Slot to empty.
+	 */
+	private void cascade(Slot slot) {
+		Timer timer;
+		while((timer = slot.poll()) != null) {
+			if(timer.cancelled) {
+				this.pending--;
+			}
+			else {
+				this.place(timer);
+				this.cascaded++;
+			}
+		}
+	}
+
+	//Getters and setters
+	//------------------------------
+
+	/**
+	 * Get the tick the scheduler will run next.
+	 * @return tick The number of ticks run so far.
+	 */
+	public long getTick() {
+		return this.tick;
+	}
+
+	/**
+	 * Get the number of timers waiting on the wheels, including cancelled ones
+	 * that have not been unlinked yet.
+	 * @return pending The number of waiting timers.
+	 */
+	public int getPending() {
+		return this.pending;
+	}
+
+	public long getFired() {
+		return this.fired;
+	}
+
+	public int getLastFired() {
+		return this.lastFired;
+	}
+
+	/**
+	 * Get the number of times a timer has been moved down a wheel.
+	 * @return cascaded The number of timer moves.
+	 */
+	public long getCascaded() {
+		return this.cascaded;
+	}
+
+	/**
+	 * Finds the scheduler that runs the events of a room.
+	 */
+	public interface Locator {
+
+		/**
+		 * Get the scheduler that runs the events of a room.
+		 * @param room The Room.
+		 * @return scheduler The GameScheduler.
+		 */
+		GameScheduler getScheduler(Room room);
+	}
+
+	/**
+	 * A slot of a wheel: a doubly linked list of timers.
+	 */
+	private static class Slot {
+
+		private Timer head;
+
+		private void add(Timer timer) {
+			timer.slot = this;
+			timer.prev = null;
+			timer.next = this.head;
+			if(this.head != null) {
+				this.head.prev = timer;
+			}
+			this.head = timer;
+		}
+
+		private void remove(Timer timer) {
+			if(timer.prev != null) {
+				timer.prev.next = timer.next;
+			}
+			else {
+				this.head = timer.next;
+			}
+			if(timer.next != null) {
+				timer.next.prev = timer.prev;
+			}
+			timer.prev = null;
+			timer.next = null;
+			timer.slot = null;
+		}
+
+		private Timer poll() {
+			Timer timer = this.head;
+			if(timer != null) {
+				this.remove(timer);
+			}
+			return timer;
+		}
+	}
+
+	/**
+	 * A task waiting on the scheduler.
+	 */
+	public class Timer {
+
+		private Runnable task;
+		private long deadline;
+		private long period;
+		private Timer prev;
+		private Timer next;
+		private Slot slot;
+		private volatile boolean cancelled;
+		private volatile boolean done;
+
+		private Timer(Runnable task, long delay, long period) {
+			this.task = task;
+			this.deadline = delay;
+			this.period = period;
+			this.cancelled = false;
+		}
+
+		/**
+		 * Stop the task from running again. On the scheduler's own thread
+		 * the timer is taken off the wheel right away.
+		 */
+		public void cancel() {
+			this.cancelled = true;
+			if(Thread.currentThread() == owner && this.slot != null) {
+				this.slot.remove(this);
+				pending--;
+			}
+		}
+
+		public boolean isCancelled() {
+			return this.cancelled;
+		}
+
+		/**
+		 * Check if the task will never run again.
+		 * @return done True if the timer was cancelled or has run its last time.
+		 */
+		public boolean isDone() {
+			return this.cancelled || this.done;
+		}
+	}
+}
@@ -1,8 +1,11 @@
 package com.guimonsters.server;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 
 import com.guimonsters.server.content.SampleWorld;
+import com.guimonsters.server.file.WorldFile;
 import com.guimonsters.server.game.GameWorld;
 
 /**
@@ -16,9 +19,9 @@ import com.guimonsters.server.game.GameWorld;
  */
 public class MudServer {
 	
-	//The port to attempt to host all connections on.
-	//This will be set by a server config.ini file.
-	private static final int PORT = 7777;
+	//The server settings file. Settings can also be given as
+	//'key=value' command line arguments.
+	private static final String CONFIG_PATH = "./config.ini";
 	
 	//The main world file path
 	private static final String GAME_WORLD_PATH = "./worlds";
@@ -41,14 +44,25 @@ public class MudServer {
 		helpMap.put("load", "Load an existing game world file. Proper usage is 'load [filename]'.");
 		helpMap.put("create", "Create a new game world file. Proper usage is 'create [worldname]'.");
 		helpMap.put("list", "List all game world files.");
+		helpMap.put("split", "Write a game world file as a sharded world with one file per zone. Proper usage is 'split [filename]'.");
+		helpMap.put("convert", "Rewrite an old game world file in the binary world format. Proper usage is 'convert [filename]'.");
+		helpMap.put("stats", "Display server connection statistics.");
+		helpMap.put("block", "Refuse new connections from an address. Proper usage is 'block [address]'.");
+		helpMap.put("unblock", "Accept connections from a blocked address again. Proper usage is 'unblock [address]'.");
 		helpMap.put("exit", "Save the server state and shutdown.");
 		
 		//Startup messages.
 		System.out.println("Starting GuiMonsters Server.");
 		
+		//Load the server settings.
+		ServerConfig config = new ServerConfig();
+		config.load(new File(CONFIG_PATH));
+		config.parseArgs(args);
+		int port = config.getInt(ServerConfig.PORT);
+		
 		//Create a server thread to manage incoming connections from the clients.
 		//Start up the server thread after a world has been loaded.
-		ServerSocketThread serverThread = new ServerSocketThread(PORT);
+		ServerSocketThread serverThread = new ServerSocketThread(config);
 		
 		//List the contents of world files in the worlds directory
 		File worldDir = new File(GAME_WORLD_PATH);
@@ -108,7 +122,7 @@ public class MudServer {
 									//new threads for each incoming client connection.
 									serverThread.start();
 									//Display server socket startup message.
-									System.out.println("Server now listening on port: "+PORT+".");
+									System.out.println("Server now listening on port: "+port+" in "+config.getConnectionMode().toString().toLowerCase()+" mode.");
 									System.out.println("Type 'help' to see a list of server commands.");
 									
 									worldLoaded = true;
@@ -159,6 +173,51 @@ public class MudServer {
 						//List all world files in the world directory.
 						listWorldFiles(worldDir);
 						break;
+					case "split":
+						if(!params.isEmpty()) {
+							splitWorldFile(worldDir, params, config.getInt(ServerConfig.ZONE_SIZE));
+						}
+						else {
+							System.out.println("Please specify the world file to split.");
+						}
+						break;
+					case "convert":
+						if(!params.isEmpty()) {
+							convertWorldFile(worldDir, params);
+						}
+						else {
+							System.out.println("Please specify the world file to convert.");
+						}
+						break;
+					case "stats":
+						System.out.println(serverThread.getStats());
+						break;
+					case "block":
+						if(!params.isEmpty()) {
+							if(serverThread.getAdmission().block(params)) {
+								System.out.println("New connections from "+params+" will be refused.");
+							}
+							else {
+								System.out.println(params+" is already blocked.");
+							}
+						}
+						else {
+							System.out.println("Please specify the address to block.");
+						}
+						break;
+					case "unblock":
+						if(!params.isEmpty()) {
+							if(serverThread.getAdmission().unblock(params)) {
+								System.out.println(params+" is no longer blocked.");
+							}
+							else {
+								System.out.println(params+" is not blocked.");
+							}
+						}
+						else {
+							System.out.println("Please specify the address to unblock.");
+						}
+						break;
 					case "exit":
 						runServer = false;
 						break;
@@ -212,6 +271,77 @@ public class MudServer {
 		}
 	}
 	
+	/**
+	 * Rewrite a world file saved as a serialized GameWorld in the binary world format.
+	 * The old file is kept next to the new one with a .bak extension.
+	 * @param worldDir The File directory holding the world files.
+	 * @param filename The name of the world file to convert.
+	 */
+	private static void convertWorldFile(File worldDir, String filename) {
+		File original = new File(worldDir, filename);
+		
+		if(!original.isFile()) {
+			System.out.println("There is no world file named '"+filename+"'.");
+		}
+		else if(new WorldFile(original).isWorldFile()) {
+			System.out.println(filename+" is already in the binary world format.");
+		}
+		else {
+			GameWorld converted = new GameWorld();
+			if(!converted.load(filename)) {
+				System.out.println("Failed to load '"+filename+"'.");
+				return;
+			}
+			
+			long oldSize = original.length();
+			try {
+				Files.copy(original.toPath(), new File(worldDir, filename+".bak").toPath(), StandardCopyOption.REPLACE_EXISTING);
+			}
+			catch (IOException e) {
+				System.out.println("Could not back up '"+filename+"'. The file was not converted.");
+				return;
+			}
+			
+			if(converted.save()) {
+				System.out.println("Converted "+filename+" ("+converted.getRoomList().size()+" rooms, "+
+						oldSize+" bytes to "+original.length()+" bytes). The old file was kept as "+filename+".bak.");
+			}
+			else {
+				System.out.println("Failed to convert '"+filename+"'. The old file was kept as "+filename+".bak.");
+			}
+		}
+	}
+	
+	/**
+	 * Write a world file as a sharded world, a directory named after the world
+	 * that holds a zone index and one file per zone. The world file is not changed.
+	 * @param worldDir The File directory holding the world files.
+	 * @param filename The name of the world file to split.
+	 * @param zoneSize The most rooms in one zone.
+	 */
+	private static void splitWorldFile(File worldDir, String filename, int zoneSize) {
+		String worldName = filename.endsWith(".world") ? filename.substring(0, filename.length() - ".world".length()) : filename;
+		File shardDir = new File(worldDir, worldName);
+		
+		if(shardDir.exists()) {
+			System.out.println("'"+worldName+"' exists already.");
+			return;
+		}
+		GameWorld world = new GameWorld();
+		if(!world.load(filename) || world.isSharded()) {
+			System.out.println("Failed to load '"+filename+"'.");
+			return;
+		}
+		
+		int zones = world.saveZones(shardDir, zoneSize);
+		if(zones >= 0) {
+			System.out.println("Split "+filename+" into "+zones+" zones of up to "+zoneSize+" rooms. Type 'load "+worldName+"' to load it.");
+		}
+		else {
+			System.out.println("Failed to split '"+filename+"'.");
+		}
+	}
+	
 	/**
 	 * Check to see if a file name is taken already.
 	 * Loop through the given directory and returns true if any filename matches the 
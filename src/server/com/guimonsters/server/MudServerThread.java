@@ -1,18 +1,26 @@
 package com.guimonsters.server;
 
 import java.net.*;
+import java.nio.channels.AsynchronousCloseException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.io.*;
 
+import com.guimonsters.network.ChannelConnection;
 import com.guimonsters.network.ClientConnection;
+import com.guimonsters.network.Connection;
 import com.guimonsters.network.Directive;
+import com.guimonsters.network.EncodedPacket;
 import com.guimonsters.network.Packet;
 import com.guimonsters.server.ServerState;
 import com.guimonsters.server.commands.LoggedInCommands;
 import com.guimonsters.server.commands.PlayingCommands;
 import com.guimonsters.server.commands.ServerCommands;
 import com.guimonsters.server.game.Account;
+import com.guimonsters.server.game.GameWorld;
 import com.guimonsters.server.game.PlayerCharacter;
 import com.guimonsters.server.game.Room;
 
@@ -26,33 +34,105 @@ import com.guimonsters.server.game.Room;
  * the character and account currently in use by the client
  * application.
  * 
+ * In selector mode the thread is never started. Its client packets
+ * are read by a SelectorThread instead, and schedule() runs them on
+ * the server's worker pool one at a time.
+ * 
+ * With the server's game loops on, a playing session only queues the
+ * commands of its client. The GameLoop that owns the zone the player is in
+ * runs them on its own thread each tick, and the responses go back through
+ * the session's connection as before.
+ * 
+ * Every session is watched by the server's TimerWheel. Framed clients that
+ * go quiet are sent heartbeats, and sessions whose client stops answering
+ * or stops sending commands are reaped through the normal session cleanup.
+ * 
  * @author Elijah Atkinson
  * @author Stephen Butler
  * @version 2.00, 2013-05-06
  */
 public class MudServerThread extends Thread {
 	
+	//Sent to framed clients that have been quiet for a while.
+	private static final EncodedPacket HEARTBEAT = new EncodedPacket(new Packet(null, Directive.HEARTBEAT));
+	private static final String IDLE_REASON = "You have been disconnected for being idle too long.";
+	private static final String NO_RESPONSE_REASON = "The client stopped responding.";
+	
 	//Data fields
 	private ServerSocketThread parentThread;
 	private Socket socket = null;
+	private byte[] prefetched;
 	private Long threadId;
 	private String clientAddress;
-	private ClientConnection clientConnection;
+	private Connection clientConnection;
+	private ChannelConnection channelConnection;
 	private ServerCommands serverCommands;
 	private ServerState state;
 	private Account user;
 	private PlayerCharacter player;
+	private volatile boolean active;
+	private boolean ended;
+	private AtomicBoolean scheduled;
+	private ConcurrentLinkedQueue<String> commandQueue;
+	private AtomicBoolean submitted;
+	private volatile GameLoop gameLoop;
+	//Set while the player is being moved into a room of another loop, so no command runs before they arrive.
+	private volatile boolean held;
+	private Thread sessionThread;
+	private volatile long lastReceived;
+	private volatile long lastCommand;
+	private volatile TimerWheel.Timeout idleCheck;
+	private AdmissionControl.Permit permit;
 
 	//Construct a new MudServerThread instance and assign
 	//a socket to it.
 	public MudServerThread(ServerSocketThread parentThread, Socket socket) {
+		this(parentThread, socket, new byte[0]);
+	}
+	
+	/**
+	 * Construct a new MudServerThread for a socket whose first bytes
+	 * were already read by a SelectorThread.
+	 * @param parentThread The ServerSocketThread that accepted the socket.
+	 * @param socket The client Socket.
+	 * @param prefetched The bytes already read from the socket.
+	 */
+	public MudServerThread(ServerSocketThread parentThread, Socket socket, byte[] prefetched) {
 		super("MudServerThread");
 		this.parentThread = parentThread;
 		this.socket = socket;
+		this.prefetched = prefetched;
 		this.threadId = this.getId();
 		this.clientAddress = socket.getInetAddress().getHostAddress();
 		this.serverCommands = new ServerCommands(this);
 		this.state = ServerState.LOGGED_OUT;
+		this.scheduled = new AtomicBoolean(false);
+		this.commandQueue = new ConcurrentLinkedQueue<String>();
+		this.submitted = new AtomicBoolean(false);
+		this.sessionThread = this;
+	}
+	
+	/**
+	 * Construct a new client session for a connection owned by a SelectorThread.
+	 * The session is never started as a thread, call schedule() whenever
+	 * the connection has packets for it.
+	 * @param parentThread The ServerSocketThread that accepted the connection.
+	 * @param connection The ChannelConnection to the client.
+	 * @param clientAddress The host address of the client.
+	 */
+	public MudServerThread(ServerSocketThread parentThread, ChannelConnection connection, String clientAddress) {
+		super("MudServerThread");
+		this.parentThread = parentThread;
+		this.threadId = this.getId();
+		this.clientAddress = clientAddress;
+		this.clientConnection = connection;
+		this.channelConnection = connection;
+		this.serverCommands = new ServerCommands(this);
+		this.state = ServerState.LOGGED_OUT;
+		this.scheduled = new AtomicBoolean(false);
+		this.commandQueue = new ConcurrentLinkedQueue<String>();
+		this.submitted = new AtomicBoolean(false);
+		this.sessionThread = this;
 	}
 	
 	/**
@@ -61,85 +141,315 @@ public class MudServerThread extends Thread {
 	public void run() {
 		try {
 			//Add this thread to the parent thread's hash map for client threads.
-			//This allows the parent thread and each instance of MudServerThread to communicate.
-			this.parentThread.getClientThreads().put(this.threadId, this);
-			
-			//Display new connection message.
-			this.println("Client connected from: "+clientAddress+
-					".  New server thread created with ID: "+threadId+".");
-			
+			this.beginSession();
 			
 			//Manage the connection to the client.
-			clientConnection = new ClientConnection(socket);
+			ClientConnection connection = new ClientConnection(socket, prefetched, this.parentThread.getConnectionOptions());
+			
+			//Packets for this client are sent by the server's writers, so
+			//broadcasting to this client never blocks the player who is speaking.
+			connection.setWriter(this.parentThread.getWriterPool());
+			connection.setLimits(this.parentThread.getOutboundLimits());
+			clientConnection = connection;
 	 
 	        //Main server thread loop. Keep serving as long as the client is connected.
 	        while (clientConnection.isConnected()) {
 	        	try {
-	        		//Get client input.
+	        		//Get client input and respond to it.
 	        		Packet clientPacket = clientConnection.read();
-	        		String clientCommand = clientPacket.getMessage().trim();
-	        		Directive clientDirective = clientPacket.getDirective();
-	        		
-	        		//Parse the client input.
-	        		String serverResponse = serverCommands.parseCommand(clientCommand);
-	        		
-	        		//Save the account file after every user command is executed
-	        		//once the player is playing a character.
-	        		if(this.isPlaying()) {
-	        			this.user.save();
-	        		}
-	        		
-	        		//Respond to the client if the results of command execution are
-	        		//not empty and not null.
-	        		if(serverResponse != null && !serverResponse.isEmpty()) {
-		        		//Send results of command execution back to client.
-		        		clientConnection.write(serverResponse);
-			        	
-		        		//If the response from the command matches the 
-		        		//response from the logout function, or the terminate string then
-		        		//terminate this thread.
-				        if (serverResponse.equals("Goodbye!") || serverResponse.equals("disconnect")) {
-				        	clientConnection.disconnect();
-				        }
-	        		}
+	        		this.handlePacket(clientPacket);
 	        	}
-	        	catch(SocketException e) {
+	        	catch(SocketException | EOFException | AsynchronousCloseException e) {
 	        		this.println("The socket from "+clientAddress+" was unexpectedly closed.");
 	        		clientConnection.disconnect();
 	        	}
 	        }
-	        //Display thread termination message.
-	        this.println("Connection from "+clientAddress+" was terminated. Stopping thread "+threadId+".");
 	        
-	        //Save the account before shutdown and print account save notification.
-	        if(this.user != null) {
-		        if(this.user.save()) {
-		        	this.println("Save succeeded for account: "+this.user.getAccountName());
-		        }
-		        else {
-		        	this.println("Save failed for account: "+this.user.getAccountName());
-		        }
-	        }
-	        
-	        //Before the thread ends, remove this player from the room they were in last.
-	        if(this.player != null) {
-	        	this.player.getCurrentRoom().removeCharacter(this.player);
-	        }
-	        
-	        //Before the thread ends, remove this thread from the server's clientThread hash map.
-	        this.parentThread.getClientThreads().remove(this.threadId);
-	 
 	    } catch (Exception e) {
 	    	//Display any exceptions if they occur.
 	        e.printStackTrace();
 	    }
+	    finally {
+	        //Save the account and leave the game world.
+	        this.endSession();
+	    }
+	}
+	
+	/**
+	 * Run this session's queued client packets on the server's worker pool.
+	 * Used in selector mode. A session is only ever run by one worker at a time,
+	 * so its packets are handled in the order they arrived.
+	 */
+	public void schedule() {
+		if(this.scheduled.compareAndSet(false, true)) {
+			this.parentThread.getWorkerPool().execute(new SessionTask());
+		}
+	}
+	
+	/**
+	 * Add this thread to the server and display the new connection message.
+	 */
+	private void beginSession() {
+		//Add this thread to the parent thread's hash map for client threads.
+		//This allows the parent thread and each instance of MudServerThread to communicate.
+		this.parentThread.getClientThreads().put(this.threadId, this);
+		this.active = true;
+		
+		//Start watching the session for a client that goes quiet.
+		this.lastReceived = System.nanoTime();
+		this.lastCommand = this.lastReceived;
+		this.checkIdle();
+		
+		//Display new connection message.
+		this.println("Client connected from: "+clientAddress+
+				".  New server thread created with ID: "+threadId+".");
+	}
+	
+	/**
+	 * Parse a packet sent by the client and send the results back to the client.
+	 * @param clientPacket The Packet read from the client.
+	 */
+	private void handlePacket(Packet clientPacket) throws IOException {
+		//Heartbeat replies only show that the client is still there.
+		this.lastReceived = System.nanoTime();
+		if(clientPacket.getDirective() == Directive.HEARTBEAT) {
+			return;
+		}
+		this.lastCommand = this.lastReceived;
+		
+		String clientCommand = clientPacket.getMessage().trim();
+		Directive clientDirective = clientPacket.getDirective();
+		
+		//Playing commands are left to the game loop of the player's zone, which runs them in order.
+		//Nothing switches a session out of the playing state, so every later
+		//command of this session goes to a loop too.
+		GameLoopGroup gameLoops = this.parentThread.getGameLoops();
+		if(gameLoops.isRunningCommands() && this.state == ServerState.PLAYING) {
+			if(this.gameLoop == null) {
+				this.gameLoop = gameLoops.getOwner(this.player.getCurrentRoom());
+			}
+			this.commandQueue.offer(clientCommand);
+			//Read the loop before the hold, which is set before the loop changes.
+			GameLoop loop = this.gameLoop;
+			if(!this.held && this.submitted.compareAndSet(false, true)) {
+				loop.submit(this);
+			}
+			return;
+		}
+		
+		//Parse the client input.
+		this.respond(serverCommands.parseCommand(clientCommand));
+	}
+	
+	/**
+	 * Run the commands this session has queued for its game loop.
+	 * Called by a GameLoop on its own thread. If the player has been handed
+	 * off to another loop, the commands are left for that loop instead.
+	 * Commands of a session that has ended are thrown away.
+	 * @param loop The GameLoop running the commands.
+	 * @return count The number of commands run.
+	 */
+	int runQueuedCommands(GameLoop loop) {
+		//Commands queued from here on submit the session for the next tick.
+		this.submitted.set(false);
+		
+		int count = 0;
+		String clientCommand;
+		while(this.gameLoop == loop && (clientCommand = this.commandQueue.poll()) != null) {
+			//The session can't end while one of its commands is running.
+			synchronized (this) {
+				if(!this.active || !this.clientConnection.isConnected()) {
+					this.commandQueue.clear();
+					break;
+				}
+				try {
+					this.respond(serverCommands.parseCommand(clientCommand));
+				}
+				catch (Exception e) {
+					e.printStackTrace();
+				}
+			}
+			count++;
+		}
+		
+		//Pass the rest of the commands on to the loop the player was handed off to,
+		//once the player has arrived there.
+		if(this.gameLoop != loop && !this.held && !this.commandQueue.isEmpty() && this.submitted.compareAndSet(false, true)) {
+			this.gameLoop.submit(this);
+		}
+		
+		//A selector mode session is only cleaned up by its own task,
+		//so run it once more if a command has ended the session.
+		if(this.channelConnection != null && !this.channelConnection.isConnected()) {
+			this.schedule();
+		}
+		return count;
+	}
+	
+	/**
+	 * Send the results of a command back to the client, and disconnect
+	 * the client if the command ended the session.
+	 * @param serverResponse The String returned by the command.
+	 * @throws IOException If the response could not be sent.
+	 */
+	private void respond(String serverResponse) throws IOException {
+		//Respond to the client if the results of command execution are
+		//not empty and not null.
+		if(serverResponse != null && !serverResponse.isEmpty()) {
+			//Send results of command execution back to client.
+			clientConnection.write(serverResponse);
+			
+			//If the response from the command matches the 
+			//response from the logout function, or the terminate string then
+			//terminate this thread.
+			if (serverResponse.equals("Goodbye!") || serverResponse.equals("disconnect")) {
+				clientConnection.disconnect();
+			}
+		}
+	}
+	
+	/**
+	 * Save the account, remove the player from the game world and
+	 * remove this thread from the server. Only runs once per session.
+	 */
+	private synchronized void endSession() {
+		if(this.ended) {
+			return;
+		}
+		this.ended = true;
+		this.active = false;
+		if(this.idleCheck != null) {
+			this.idleCheck.cancel();
+		}
+		
+		//Display thread termination message.
+		this.println("Connection from "+clientAddress+" was terminated. Stopping thread "+threadId+".");
+		if(this.clientConnection != null && this.clientConnection.getCloseReason() != null) {
+			this.println("Closed by the server: "+this.clientConnection.getCloseReason());
+		}
+		
+		//Have the account saved in the background. The save thread prints the save notification.
+		if(this.user != null) {
+			this.parentThread.getSaveThread().logOut(this.user);
+		}
+		
+		//Before the thread ends, remove this player from the room they were in last.
+		//With game loops, the loop that owns the room removes the player.
+		if(this.player != null) {
+			if(this.gameLoop != null) {
+				this.gameLoop.post(new LeaveWorld(this.player));
+			}
+			else {
+				this.player.getCurrentRoom().removeCharacter(this.player);
+			}
+		}
+		
+		//Let the account cache evict the account once it has been saved.
+		if(this.user != null) {
+			this.parentThread.getAccountCache().release(this.user);
+		}
+		
+		//Before the thread ends, remove this thread from the server's clientThread hash map.
+		this.parentThread.getClientThreads().remove(this.threadId);
+		
+		//Let the next waiting connection have this session's slot.
+		if(this.permit != null) {
+			this.permit.release();
+		}
+	}
+	
+	/**
+	 * Reap the session if its client has gone quiet for too long, send a
+	 * heartbeat to a framed client that has been quiet for a while, and
+	 * schedule the next check. Runs on the server's TimerWheel.
+	 * Legacy clients can't answer heartbeats, so only the idle timeout applies to them.
+	 */
+	private void checkIdle() {
+		if(!this.active) {
+			return;
+		}
+		long now = System.nanoTime();
+		long quiet = now - this.lastReceived;
+		long idle = now - this.lastCommand;
+		long heartbeatInterval = this.parentThread.getHeartbeatInterval();
+		long heartbeatTimeout = this.parentThread.getHeartbeatTimeout();
+		long idleTimeout = this.parentThread.getIdleTimeout();
+		
+		//A legacy client that hasn't finished connecting has no connection yet.
+		Connection connection = this.clientConnection;
+		boolean framed = connection == null || connection.isFramed();
+		
+		if(idleTimeout > 0 && idle >= idleTimeout) {
+			this.reap(IDLE_REASON, false);
+			return;
+		}
+		if(framed && heartbeatTimeout > 0 && quiet >= heartbeatTimeout) {
+			this.reap(NO_RESPONSE_REASON, true);
+			return;
+		}
+		
+		//Check again at the next deadline.
+		long delay = idleTimeout > 0 ? idleTimeout - idle : Long.MAX_VALUE;
+		if(framed && heartbeatTimeout > 0) {
+			delay = Math.min(delay, heartbeatTimeout - quiet);
+		}
+		if(framed && heartbeatInterval > 0) {
+			if(quiet < heartbeatInterval) {
+				delay = Math.min(delay, heartbeatInterval - quiet);
+			}
+			else {
+				if(connection != null && connection.isConnected()) {
+					this.write(HEARTBEAT);
+				}
+				delay = Math.min(delay, heartbeatInterval);
+			}
+		}
+		if(delay != Long.MAX_VALUE) {
+			this.idleCheck = this.parentThread.getTimerWheel().schedule(new IdleCheck(), delay, TimeUnit.NANOSECONDS);
+		}
+	}
+	
+	/**
+	 * Disconnect a client that has gone quiet. The session is then cleaned
+	 * up the same way as when the client disconnects itself.
+	 * @param reason The reason the client was disconnected.
+	 * @param dead True if the client stopped responding, false if it is only idle.
+	 */
+	private void reap(String reason, boolean dead) {
+		this.parentThread.recordReapedSession();
+		this.println("Reaping session "+threadId+" from "+clientAddress+": "+reason);
+		
+		Connection connection = this.clientConnection;
+		if(connection == null) {
+			//The client never finished connecting, closing the socket wakes up the reader.
+			try {
+				this.socket.close();
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		else if(dead) {
+			//Nothing queued for a dead client will ever be read, so drop it all.
+			connection.evict(reason);
+		}
+		else {
+			//An idle client is still there, so say goodbye first.
+			this.write(new Packet(reason, Directive.DISCONNECT));
+			connection.disconnect();
+		}
+		
+		//In selector mode nothing else will run the session's cleanup.
+		if(this.channelConnection != null) {
+			this.schedule();
+		}
 	}
 	
 	/**
 	 * Send server shut down message to the client and terminate the thread.
 	 */
 	public void terminate() {
-		this.logOut("The server has been shut down.");
+		this.logOut(ConstantPackets.SHUT_DOWN);
 	}
 	
 	/**
@@ -180,9 +490,16 @@ public class MudServerThread extends Thread {
 	 * 				  them of the disconnection.
 	 */
 	public void logOut(String message) {
-		this.println(this.user.getAccountName()+"@"+this.clientAddress+" is logging out.");
 		//Create a packet with logout message and disconnect directive to send to the client.
-		Packet logOutPacket = new Packet(message, Directive.DISCONNECT);
+		this.logOut(new EncodedPacket(new Packet(message, Directive.DISCONNECT)));
+	}
+	
+	/**
+	 * Log the user out with a shared disconnect packet, such as ConstantPackets.GOODBYE.
+	 * @param logOutPacket The EncodedPacket with the DISCONNECT directive to send to the client.
+	 */
+	public void logOut(EncodedPacket logOutPacket) {
+		this.println(this.user.getAccountName()+"@"+this.clientAddress+" is logging out.");
 		//Send the packet to the client.
 		this.write(logOutPacket);
 		
@@ -211,7 +528,10 @@ public class MudServerThread extends Thread {
 		
 		//TODO write a version of this that only talks to the room.
 		
-		HashMap<Long, MudServerThread> playerThreads = getPlayerThreads();
+		Map<Long, MudServerThread> playerThreads = getPlayerThreads();
+		
+		//Encode the packet once and send the same bytes to every player.
+		EncodedPacket encoded = new EncodedPacket(p);
 		
 		//If there are other players, send the message to them.
 		if(playerThreads.size() > 0) {
@@ -223,8 +543,8 @@ public class MudServerThread extends Thread {
 				
 				//Only broadcast to other running threads that are in the playing state.
 				//Don't broadcast to this thread.
-				if(thread.isAlive() && thread.isPlaying() && thread.getId() != this.threadId) {
-					thread.write(p);
+				if(thread.isActive() && thread.isPlaying() && thread.getId() != this.threadId) {
+					thread.write(encoded);
 				}
 			}
 		}
@@ -252,6 +572,9 @@ public class MudServerThread extends Thread {
 		
 		HashMap<String, PlayerCharacter> roomCharacters = r.getCharacters();
 		
+		//Encode the packet once and send the same bytes to every player.
+		EncodedPacket encoded = new EncodedPacket(p);
+		
 		//If there are other players in the room, send the message to them.
 		if(roomCharacters.size() > 1) {
 			
@@ -263,8 +586,8 @@ public class MudServerThread extends Thread {
 				
 				//Only broadcast to other running threads that are in the playing state.
 				//Don't broadcast to this thread.
-				if(thread.isAlive() && thread.isPlaying() && thread.getId() != this.threadId) {
-					thread.write(p);
+				if(thread.isActive() && thread.isPlaying() && thread.getId() != this.threadId) {
+					thread.write(encoded);
 				}
 			}
 		}
@@ -304,14 +627,38 @@ public class MudServerThread extends Thread {
 		return success;
 	}
 	
+	/**
+	 * Write a packet that is shared with other threads out to the client
+	 * that is managed by this thread.
+	 * @param p The encoded packet to write to the client.
+	 * @return success The success status of the write.
+	 */
+	public boolean write(EncodedPacket p) {
+		boolean success;
+		try {
+			this.clientConnection.write(p);
+			success = true;
+		} catch (IOException e) {
+			success = false;
+			e.printStackTrace();
+		}
+		return success;
+	}
+	
 	/**
 	 * Read a packet from the client that is managed by this thread.
+	 * Heartbeat replies are skipped, so prompts only see the client's answers,
+	 * but every packet read shows that the client is still there.
 	 * @return results The packet read in from the client.
 	 */
 	public Packet read() {
 		Packet results;
 		try {
-			results = this.clientConnection.read();
+			do {
+				results = this.clientConnection.read();
+				this.lastReceived = System.nanoTime();
+			} while(results != null && results.getDirective() == Directive.HEARTBEAT);
+			this.lastCommand = this.lastReceived;
 		} catch (IOException | ClassNotFoundException e) {
 			results = null;
 		}
@@ -363,6 +710,16 @@ public class MudServerThread extends Thread {
 		}
 	}
 	
+	/**
+	 * Returns true while this session is connected to the server,
+	 * from the time it is added to the server until its cleanup has run.
+	 * Unlike isAlive(), this also works for sessions that are never started.
+	 * @return active The boolean indicating if the session is running.
+	 */
+	public boolean isActive() {
+		return this.active;
+	}
+	
 	/**
 	 * Returns true if this thread is in the logged out state.
 	 * Returns false otherwise.
@@ -386,9 +743,9 @@ public class MudServerThread extends Thread {
 	 * @return playerThreads The hash map containing every other MudServerThread
 	 *     currently running on the server mapped to their individual thread id.
 	 */
-	public HashMap<Long, MudServerThread> getPlayerThreads() {
+	public Map<Long, MudServerThread> getPlayerThreads() {
 		//Get a map of all client threads from this thread's parent thread.
-		HashMap<Long, MudServerThread> playerThreads = this.parentThread.getClientThreads();
+		Map<Long, MudServerThread> playerThreads = this.parentThread.getClientThreads();
 		
 		return playerThreads;
 	}
@@ -400,7 +757,7 @@ public class MudServerThread extends Thread {
 	 */
 	public HashMap<String, Account> getLoggedInAccounts() {
 				
-		HashMap<Long, MudServerThread> playerThreads = this.parentThread.getClientThreads();
+		Map<Long, MudServerThread> playerThreads = this.parentThread.getClientThreads();
 		HashMap<String, Account> accountMap = new HashMap<String, Account>(playerThreads.size());
 		
 		//If we have at least 1 logged in user, continue.
@@ -430,7 +787,7 @@ public class MudServerThread extends Thread {
 	 * 					 the one associated with this thread.
 	 */
 	public HashMap<String, PlayerCharacter> getPlayerCharacters() {
-		HashMap<Long, MudServerThread> playerThreads = this.parentThread.getClientThreads();
+		Map<Long, MudServerThread> playerThreads = this.parentThread.getClientThreads();
 		HashMap<String, PlayerCharacter> playerMap = new HashMap<String, PlayerCharacter>(playerThreads.size());
 		
 		//Walk through all player threads and get the player object from each one.
@@ -458,7 +815,7 @@ public class MudServerThread extends Thread {
 		return clientAddress;
 	}
 
-	public ClientConnection getClientConnection() {
+	public Connection getClientConnection() {
 		return clientConnection;
 	}
 
@@ -470,10 +827,89 @@ public class MudServerThread extends Thread {
 		this.user = user;
 	}
 	
+	/**
+	 * Return the thread that runs this session's loop. This is the
+	 * MudServerThread itself unless the session was started on a virtual thread.
+	 * @return sessionThread The Thread running this session.
+	 */
+	public Thread getSessionThread() {
+		return this.sessionThread;
+	}
+	
+	public void setSessionThread(Thread sessionThread) {
+		this.sessionThread = sessionThread;
+	}
+	
+	/**
+	 * Get the time the last packet of any kind was read from the client.
+	 * @return lastReceived The System.nanoTime() of the last packet.
+	 */
+	public long getLastReceived() {
+		return this.lastReceived;
+	}
+	
+	/**
+	 * Set the admission permit this session holds until it ends.
+	 * Must be called before the session is started.
+	 * @param permit The AdmissionControl.Permit of the connection, or null.
+	 */
+	public void setPermit(AdmissionControl.Permit permit) {
+		this.permit = permit;
+	}
+	
 	public ServerSocketThread getParentThread() {
 		return this.parentThread;
 	}
 
+	/**
+	 * Set the game loop that runs this session's commands.
+	 * Changed when the player is handed off into a zone owned by another loop.
+	 * @param gameLoop The GameLoop that owns the player's zone.
+	 */
+	public void setGameLoop(GameLoop gameLoop) {
+		this.gameLoop = gameLoop;
+	}
+	
+	/**
+	 * Move the session to the loop of the room the player is going to, and hold
+	 * its commands until releaseCommands() is called on that loop once the player
+	 * is in the room.
+	 * @param gameLoop The GameLoop that owns the destination room.
+	 */
+	void holdCommands(GameLoop gameLoop) {
+		this.held = true;
+		this.gameLoop = gameLoop;
+	}
+	
+	/**
+	 * Run the commands queued while the player was being moved, on the session's new loop.
+	 */
+	void releaseCommands() {
+		this.held = false;
+		if(!this.commandQueue.isEmpty() && this.submitted.compareAndSet(false, true)) {
+			this.gameLoop.submit(this);
+		}
+	}
+	
+	/**
+	 * Put the player into the game world for the first time this session,
+	 * and tell the player and the others in the room.
+	 * With game loops this runs on the loop that owns the room.
+	 * @param world The GameWorld.
+	 * @param room The Room the player starts in.
+	 */
+	public void enterWorld(GameWorld world, Room room) {
+		//Enter either the starting room for the GameWorld
+		//or the last room the player was in last time they played.
+		world.move(this.player, room);
+		
+		//Broadcast player login message to everyone in the room the player appears in.
+		this.broadcastRoom(room, this.player.getName()+" has appeared.");
+		
+		//Display the enter message to the client.
+		this.write("You have entered "+room.getName()+".");
+	}
+	
 	public PlayerCharacter getPlayer() {
 		return player;
 	}
@@ -482,4 +918,66 @@ public class MudServerThread extends Thread {
 		this.player = player;
 	}
 	
+	/**
+	 * Checks the session for a quiet client on the server's TimerWheel.
+	 */
+	private class IdleCheck implements Runnable {
+		
+		public void run() {
+			checkIdle();
+		}
+	}
+	
+	/**
+	 * Removes the player of an ended session from their room on the game loop that owns it.
+	 */
+	private static class LeaveWorld implements Runnable {
+		
+		private PlayerCharacter player;
+		
+		private LeaveWorld(PlayerCharacter player) {
+			this.player = player;
+		}
+		
+		public void run() {
+			this.player.getCurrentRoom().removeCharacter(this.player);
+		}
+	}
+	
+	/**
+	 * Runs a selector mode session's queued client packets on a worker thread.
+	 */
+	private class SessionTask implements Runnable {
+		
+		public void run() {
+			//The first run of a session registers it with the server.
+			if(!active && !ended) {
+				beginSession();
+			}
+			
+			do {
+				//Handle every packet that is waiting for this session.
+				//Packets left over after a disconnect are ignored.
+				Packet clientPacket;
+				while(channelConnection.isConnected() && (clientPacket = channelConnection.poll()) != null) {
+					try {
+						handlePacket(clientPacket);
+					}
+					catch (Exception e) {
+						e.printStackTrace();
+					}
+				}
+				
+				//Clean up once the client has gone away.
+				if(!channelConnection.isConnected()) {
+					endSession();
+				}
+				
+				scheduled.set(false);
+				
+				//Packets that arrived after the queue was emptied may not have
+				//been able to schedule this session, so check once more.
+			} while(channelConnection.isConnected() && channelConnection.hasPackets() && scheduled.compareAndSet(false, true));
+		}
+	}
 }
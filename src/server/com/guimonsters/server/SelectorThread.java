@@ -0,0 +1,292 @@
+package com.guimonsters.server;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.guimonsters.network.ChannelConnection;
+
+/**
+ * An I/O thread that owns a share of the client sockets when the server
+ * runs in selector mode. Each SelectorThread waits on a single Selector
+ * for all of its sockets, decodes incoming packets without blocking and
+ * hands them to the client session, then writes the packets queued by
+ * the sessions back out to the sockets.
+ *
+ * Legacy clients that use Java object streams can not be decoded without
+ * blocking, so they are handed over to their own MudServerThread.
+ *
+ * Each connection arrives with the admission Permit it was started with.
+ * The permit is handed to the connection's session once there is one, and
+ * released here if the client goes away before that.
+ *
+ * @author Elijah Atkinson
+ * @version 1.00, 2013-05-10
+ */
+public class SelectorThread extends Thread {
+
+	//Data fields
+	private ServerSocketThread parentThread;
+	private Selector selector;
+	private ConcurrentLinkedQueue<NewChannel> newChannels;
+	private HashMap<ChannelConnection, AdmissionControl.Permit> permits;
+	private ConcurrentLinkedQueue<ChannelConnection> writeRequests;
+	private volatile boolean running;
+
+	/**
+	 * Construct a new SelectorThread and open its selector.
+	 * @param parentThread The ServerSocketThread that accepts connections for this thread.
+	 * @param number The number of this thread, used in its name.
+	 */
+	public SelectorThread(ServerSocketThread parentThread, int number) throws IOException {
+		super("SelectorThread-"+number);
+		this.parentThread = parentThread;
+		this.selector = Selector.open();
+		this.newChannels = new ConcurrentLinkedQueue<NewChannel>();
+		this.permits = new HashMap<ChannelConnection, AdmissionControl.Permit>();
+		this.writeRequests = new ConcurrentLinkedQueue<ChannelConnection>();
+		this.running = true;
+	}
+
+	/**
+	 * Hand a newly accepted socket channel to this thread.
+	 * @param channel The SocketChannel of the new client.
+	 * @param permit The admission Permit the connection was started with.
+	 */
+	public void register(SocketChannel channel, AdmissionControl.Permit permit) {
+		this.newChannels.offer(new NewChannel(channel, permit));
+		this.selector.wakeup();
+	}
+
+	/**
+	 * SelectorThread main method.
+	 */
+	public void run() {
+		while(this.running) {
+			try {
+				this.selector.select();
+				this.registerNewChannels();
+				this.processWriteRequests();
+
+				ArrayList<SelectionKey> legacyKeys = new ArrayList<SelectionKey>();
+
+				//Handle every channel that is ready.
+				Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+				while(keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+
+					if(key.isValid() && key.isWritable()) {
+						this.writable(key);
+					}
+					if(key.isValid() && key.isReadable()) {
+						if(this.readable(key)) {
+							legacyKeys.add(key);
+						}
+					}
+				}
+
+				//Legacy clients are handed off after the selected key set is no longer in use.
+				for(SelectionKey key : legacyKeys) {
+					this.handOffLegacyClient(key);
+				}
+			}
+			catch (IOException e) {
+				System.err.println(this.getName()+" could not select client sockets.");
+				e.printStackTrace();
+			}
+		}
+
+		//Send whatever is still queued, then close every socket.
+		this.processWriteRequests();
+		for(SelectionKey key : this.selector.keys()) {
+			ChannelConnection connection = (ChannelConnection) key.attachment();
+			connection.close();
+			this.releasePermit(connection);
+		}
+		try {
+			this.selector.close();
+		}
+		catch (IOException e) {
+			System.err.println("Could not close "+this.getName()+".");
+		}
+	}
+
+	/**
+	 * Stop this thread after it has sent any queued packets.
+	 */
+	public void terminate() {
+		this.running = false;
+		this.selector.wakeup();
+	}
+
+	/**
+	 * Register channels handed over by the ServerSocketThread with the selector.
+	 */
+	private void registerNewChannels() {
+		NewChannel newChannel;
+		while((newChannel = this.newChannels.poll()) != null) {
+			SocketChannel channel = newChannel.channel;
+			try {
+				ChannelConnection connection = new ChannelConnection(channel, this.selector,
+						this.writeRequests, this.parentThread.getOutboundLimits(), this.parentThread.getConnectionOptions());
+				channel.register(this.selector, SelectionKey.OP_READ, connection);
+				this.permits.put(connection, newChannel.permit);
+			}
+			catch (ClosedChannelException e) {
+				//The client went away before we got to it.
+				newChannel.permit.release();
+			}
+		}
+	}
+
+	/**
+	 * Flush every connection that has queued packets since the last select.
+	 * Connections that could not be flushed completely wait for the socket to be writable.
+	 */
+	private void processWriteRequests() {
+		ChannelConnection connection;
+		while((connection = this.writeRequests.poll()) != null) {
+			SelectionKey key = connection.getChannel().keyFor(this.selector);
+			if(key == null || !key.isValid()) {
+				continue;
+			}
+			this.writable(key);
+		}
+	}
+
+	/**
+	 * Write queued packets to a channel and update its write interest.
+	 * @param key The SelectionKey of the channel.
+	 */
+	private void writable(SelectionKey key) {
+		ChannelConnection connection = (ChannelConnection) key.attachment();
+		try {
+			if(connection.send()) {
+				if(key.isValid()) {
+					key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+				}
+			}
+			else {
+				key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+			}
+			
+			//Evicted clients are closed by send(), and their sessions still have to clean up.
+			if(connection.getCloseReason() != null) {
+				this.closed(connection);
+			}
+		}
+		catch (IOException e) {
+			this.closed(connection);
+		}
+	}
+
+	/**
+	 * Read from a channel and pass any decoded packets to its session.
+	 * Creates the session once the client handshake has been accepted.
+	 * @param key The SelectionKey of the channel.
+	 * @return legacy True if the client turned out to be a legacy client.
+	 */
+	private boolean readable(SelectionKey key) {
+		ChannelConnection connection = (ChannelConnection) key.attachment();
+		try {
+			int packets = connection.receive();
+			if(packets == -1) {
+				this.closed(connection);
+			}
+			else if(connection.isLegacy()) {
+				return true;
+			}
+			else if(!connection.isHandshaking()) {
+				MudServerThread session = (MudServerThread) connection.getAttachment();
+				if(session == null) {
+					//The handshake was accepted, start a session for this client.
+					String address = connection.getChannel().socket().getInetAddress().getHostAddress();
+					session = new MudServerThread(this.parentThread, connection, address);
+					session.setPermit(this.permits.remove(connection));
+					connection.setAttachment(session);
+					session.schedule();
+				}
+				else if(packets > 0) {
+					session.schedule();
+				}
+			}
+		}
+		catch (IOException e) {
+			this.closed(connection);
+		}
+		return false;
+	}
+
+	/**
+	 * Close a connection whose client went away and let its session clean up.
+	 * @param connection The ChannelConnection that was closed.
+	 */
+	private void closed(ChannelConnection connection) {
+		connection.close();
+		MudServerThread session = (MudServerThread) connection.getAttachment();
+		if(session != null) {
+			session.schedule();
+		}
+		else {
+			//The client left before its session started.
+			this.releasePermit(connection);
+		}
+	}
+	
+	/**
+	 * Release the admission permit of a connection that never got a session.
+	 * @param connection The ChannelConnection whose permit to release.
+	 */
+	private void releasePermit(ChannelConnection connection) {
+		AdmissionControl.Permit permit = this.permits.remove(connection);
+		if(permit != null) {
+			permit.release();
+		}
+	}
+
+	/**
+	 * Take a legacy client's channel away from the selector and
+	 * start a blocking MudServerThread for it.
+	 * @param key The SelectionKey of the legacy client's channel.
+	 */
+	private void handOffLegacyClient(SelectionKey key) {
+		ChannelConnection connection = (ChannelConnection) key.attachment();
+		SocketChannel channel = connection.getChannel();
+		try {
+			//The channel has to leave the selector before it can block.
+			key.cancel();
+			this.selector.selectNow();
+			channel.configureBlocking(true);
+
+			MudServerThread clientThread = new MudServerThread(this.parentThread,
+					channel.socket(), connection.takeBufferedBytes());
+			clientThread.setPermit(this.permits.remove(connection));
+			clientThread.start();
+		}
+		catch (IOException e) {
+			connection.close();
+			this.releasePermit(connection);
+		}
+	}
+
+	/**
+	 * A newly accepted channel waiting to be registered with the selector.
+	 */
+	private static class NewChannel {
+
+		private SocketChannel channel;
+		private AdmissionControl.Permit permit;
+
+		private NewChannel(SocketChannel channel, AdmissionControl.Permit permit) {
+			this.channel = channel;
+			this.permit = permit;
+		}
+	}
+}
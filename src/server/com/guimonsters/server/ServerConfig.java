@@ -0,0 +1,247 @@
+package com.guimonsters.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+import com.guimonsters.network.ClientConnection;
+import com.guimonsters.network.ConnectionOptions;
+
+/**
+ * Holds the tunable settings of the MudServer.
+ * Every setting has a default value that can be overridden by
+ * the server config.ini file, and then by 'key=value' arguments
+ * given on the command line.
+ *
+ * @author Elijah Atkinson
+ * @version 1.00, 2013-05-10
+ */
+public class ServerConfig {
+
+	//Setting keys
+	public static final String PORT = "port";
+	public static final String CONNECTION_MODE = "connection.mode";
+	public static final String SELECTOR_THREADS = "selector.threads";
+	public static final String SELECTOR_WORKERS = "selector.workers";
+	public static final String VIRTUAL_FALLBACK_STACK_SIZE = "virtual.fallbackStackSize";
+	public static final String STREAM_RESET_PACKETS = "stream.resetPackets";
+	public static final String STREAM_RESET_BYTES = "stream.resetBytes";
+	public static final String OUTBOUND_MAX_PACKETS = "outbound.maxPackets";
+	public static final String OUTBOUND_MAX_BYTES = "outbound.maxBytes";
+	public static final String COMPRESSION_ENABLED = "compression.enabled";
+	public static final String COMPRESSION_THRESHOLD = "compression.threshold";
+	public static final String COMPRESSION_LEVEL = "compression.level";
+	public static final String TIMER_TICK = "timer.tick";
+	public static final String HEARTBEAT_INTERVAL = "heartbeat.interval";
+	public static final String HEARTBEAT_TIMEOUT = "heartbeat.timeout";
+	public static final String IDLE_TIMEOUT = "idle.timeout";
+	public static final String ADMISSION_MAX_SESSIONS = "admission.maxSessions";
+	public static final String ADMISSION_MAX_PENDING = "admission.maxPending";
+	public static final String ADMISSION_PER_MINUTE = "admission.perMinute";
+	public static final String ADMISSION_BURST = "admission.burst";
+	public static final String ADMISSION_BLOCKLIST = "admission.blocklist";
+	public static final String SAVE_INTERVAL = "save.interval";
+	public static final String ZONE_IDLE = "zone.idle";
+	public static final String ZONE_SIZE = "zone.size";
+	public static final String JOURNAL_ENABLED = "journal.enabled";
+	public static final String JOURNAL_COMMIT_DELAY = "journal.commitDelay";
+	public static final String ACCOUNT_CACHE_SIZE = "account.cacheSize";
+	public static final String ACCOUNT_CACHE_TTL = "account.cacheTtl";
+	public static final String CHECKPOINT_INTERVAL = "checkpoint.interval";
+	public static final String CHECKPOINT_JOURNAL_BYTES = "checkpoint.journalBytes";
+	public static final String GAME_LOOP = "game.loop";
+	public static final String GAME_TICK = "game.tick";
+	public static final String GAME_THREADS = "game.threads";
+
+	//Data fields
+	private Properties settings;
+
+	/**
+	 * Create a new ServerConfig containing the default settings.
+	 */
+	public ServerConfig() {
+		int cores = Runtime.getRuntime().availableProcessors();
+
+		this.settings = new Properties();
+		this.settings.setProperty(PORT, "7777");
+		this.settings.setProperty(CONNECTION_MODE, "thread");
+		this.settings.setProperty(SELECTOR_THREADS, Integer.toString(Math.max(1, cores / 2)));
+		this.settings.setProperty(SELECTOR_WORKERS, Integer.toString(cores));
+		this.settings.setProperty(VIRTUAL_FALLBACK_STACK_SIZE, Integer.toString(256 * 1024));
+		this.settings.setProperty(STREAM_RESET_PACKETS, Integer.toString(ClientConnection.DEFAULT_RESET_PACKETS));
+		this.settings.setProperty(STREAM_RESET_BYTES, Long.toString(ClientConnection.DEFAULT_RESET_BYTES));
+		this.settings.setProperty(OUTBOUND_MAX_PACKETS, "1024");
+		this.settings.setProperty(OUTBOUND_MAX_BYTES, Integer.toString(1024 * 1024));
+		this.settings.setProperty(COMPRESSION_ENABLED, "false");
+		this.settings.setProperty(COMPRESSION_THRESHOLD, "256");
+		this.settings.setProperty(COMPRESSION_LEVEL, "-1");
+		//Milliseconds per timer wheel tick, and seconds for the session timeouts.
+		//A timeout of 0 turns it off.
+		this.settings.setProperty(TIMER_TICK, "500");
+		this.settings.setProperty(HEARTBEAT_INTERVAL, "30");
+		this.settings.setProperty(HEARTBEAT_TIMEOUT, "90");
+		this.settings.setProperty(IDLE_TIMEOUT, "1800");
+		//Connections allowed per address are counted per minute.
+		//The blocklist is a comma separated list of addresses.
+		this.settings.setProperty(ADMISSION_MAX_SESSIONS, "1000");
+		this.settings.setProperty(ADMISSION_MAX_PENDING, "64");
+		this.settings.setProperty(ADMISSION_PER_MINUTE, "30");
+		this.settings.setProperty(ADMISSION_BURST, "10");
+		this.settings.setProperty(ADMISSION_BLOCKLIST, "");
+		//Seconds between saves of the accounts that have changed.
+		this.settings.setProperty(SAVE_INTERVAL, "30");
+		//The most logged out accounts kept in memory, and the seconds they are kept for.
+		this.settings.setProperty(ACCOUNT_CACHE_SIZE, "1000");
+		this.settings.setProperty(ACCOUNT_CACHE_TTL, "1800");
+		//Seconds a zone of a sharded world stays loaded without players,
+		//and the most rooms put in one zone when a world is split.
+		this.settings.setProperty(ZONE_IDLE, "300");
+		this.settings.setProperty(ZONE_SIZE, "500");
+		//Milliseconds the journal collects changes before syncing them together.
+		this.settings.setProperty(JOURNAL_ENABLED, "true");
+		this.settings.setProperty(JOURNAL_COMMIT_DELAY, "5");
+		//Seconds between checkpoints of the world, and the journal size that calls for one sooner.
+		this.settings.setProperty(CHECKPOINT_INTERVAL, "300");
+		this.settings.setProperty(CHECKPOINT_JOURNAL_BYTES, Integer.toString(4 * 1024 * 1024));
+		//Run the commands of playing sessions on game loop threads, the milliseconds per
+		//game tick that game events are counted in, and the number of loops sharing the
+		//zones of the world. Without the game loops, one loop still runs the game events.
+		this.settings.setProperty(GAME_LOOP, "false");
+		this.settings.setProperty(GAME_TICK, "50");
+		this.settings.setProperty(GAME_THREADS, Integer.toString(cores));
+	}
+
+	/**
+	 * Override default settings with the settings from a config file.
+	 * A missing config file is not an error, the defaults are kept.
+	 * @param configFile The config.ini File to read settings from.
+	 * @return success True if the file was read, false otherwise.
+	 */
+	public boolean load(File configFile) {
+		boolean success = false;
+
+		if(configFile.exists()) {
+			try {
+				FileInputStream in = new FileInputStream(configFile);
+				try {
+					this.settings.load(in);
+					success = true;
+				}
+				finally {
+					in.close();
+				}
+			}
+			catch (IOException e) {
+				success = false;
+				System.err.println("Could not read config file: "+configFile.getPath());
+			}
+		}
+
+		return success;
+	}
+
+	/**
+	 * Override settings with 'key=value' command line arguments.
+	 * Arguments without an equals sign are ignored.
+	 * @param args The command line arguments given to the server.
+	 */
+	public void parseArgs(String[] args) {
+		for(String arg : args) {
+			int split = arg.indexOf('=');
+			if(split > 0) {
+				this.settings.setProperty(arg.substring(0, split).trim(), arg.substring(split+1).trim());
+			}
+		}
+	}
+
+	//Getters and setters
+	//------------------------------
+
+	public String getString(String key) {
+		return this.settings.getProperty(key);
+	}
+
+	/**
+	 * Return a setting as an integer.
+	 * @param key The setting key to look up.
+	 * @return value The integer value of the setting, or 0 if it is not a number.
+	 */
+	public int getInt(String key) {
+		try {
+			return Integer.parseInt(this.settings.getProperty(key, "0").trim());
+		}
+		catch (NumberFormatException e) {
+			System.err.println("Config setting '"+key+"' is not a number.");
+			return 0;
+		}
+	}
+
+	/**
+	 * Return a setting as a long.
+	 * @param key The setting key to look up.
+	 * @return value The long value of the setting, or 0 if it is not a number.
+	 */
+	public long getLong(String key) {
+		try {
+			return Long.parseLong(this.settings.getProperty(key, "0").trim());
+		}
+		catch (NumberFormatException e) {
+			System.err.println("Config setting '"+key+"' is not a number.");
+			return 0;
+		}
+	}
+
+	public boolean getBoolean(String key) {
+		return Boolean.parseBoolean(this.settings.getProperty(key, "false").trim());
+	}
+
+	/**
+	 * Return the connection mode the server socket should run in.
+	 * Falls back to the thread per connection mode for unknown values.
+	 * @return mode The ConnectionMode to use.
+	 */
+	public ConnectionMode getConnectionMode() {
+		try {
+			return ConnectionMode.valueOf(this.getString(CONNECTION_MODE).trim().toUpperCase());
+		}
+		catch (IllegalArgumentException e) {
+			System.err.println("Unknown connection mode '"+this.getString(CONNECTION_MODE)+"'. Using thread mode.");
+			return ConnectionMode.THREAD;
+		}
+	}
+
+	/**
+	 * Build the settings new client connections are set up with.
+	 * @return options The ConnectionOptions described by this config.
+	 */
+	public ConnectionOptions getConnectionOptions() {
+		ConnectionOptions options = new ConnectionOptions();
+		options.setResetPackets(this.getInt(STREAM_RESET_PACKETS));
+		options.setResetBytes(this.getLong(STREAM_RESET_BYTES));
+		options.setCompression(this.getBoolean(COMPRESSION_ENABLED));
+		options.setCompressionThreshold(this.getInt(COMPRESSION_THRESHOLD));
+		options.setCompressionLevel(this.getInt(COMPRESSION_LEVEL));
+		return options;
+	}
+
+	/**
+	 * Build the admission stage described by this config, with the
+	 * blocklisted addresses already blocked.
+	 * @return admission The AdmissionControl for new connections.
+	 */
+	public AdmissionControl getAdmissionControl() {
+		AdmissionControl admission = new AdmissionControl(this.getInt(ADMISSION_MAX_SESSIONS),
+				this.getInt(ADMISSION_MAX_PENDING), this.getInt(ADMISSION_PER_MINUTE), this.getInt(ADMISSION_BURST));
+		for(String address : this.getString(ADMISSION_BLOCKLIST).split(",")) {
+			if(!address.trim().isEmpty()) {
+				admission.block(address.trim());
+			}
+		}
+		return admission;
+	}
+
+	public void set(String key, String value) {
+		this.settings.setProperty(key, value);
+	}
+}
@@ -1,27 +1,443 @@
 package com.guimonsters.server;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import com.guimonsters.server.game.Account;
+import com.guimonsters.server.game.CharacterNameIndex;
+import com.guimonsters.server.file.AtomicFile;
+import com.guimonsters.server.file.Journal;
+import com.guimonsters.server.file.WorldFile;
 import com.guimonsters.server.game.GameWorld;
 
 /**
- * Thread that saves the server game state every 30 seconds. (currently a stub class)
- * Serializes all playing account files account files and the world file.
+ * Thread that saves the accounts of the server in the background.
+ * Commands only mark accounts and characters as changed. Every save interval
+ * this thread writes out the accounts that have changed, so client commands
+ * never wait for an account file to be written.
+ * Accounts that log out are saved right away, and a client that logs
+ * back in first waits for its account to be written.
+ * The accounts saved together share one sync of the account directory.
+ * Once that sync is done, the journal is told which accounts are on disk, so it
+ * can stop keeping their new characters, and the names of those characters are
+ * added to the character name index file.
+ * Each save also unloads the zones of a sharded world that have been empty for a while,
+ * and checkpoints the world once its journal has grown or the checkpoint interval has passed.
+ * A checkpoint only holds up the players while it takes the room maps, and writes
+ * the world file after letting go of the world.
  * @author Elijah Atkinson 2013-05-08
  *
  */
 public class ServerSaveThread extends Thread {
-	
+
 	//Data fields
-	private GameWorld world;
-	private HashMap<Long, MudServerThread> clientThreads;
-	
-	public ServerSaveThread() {
-		
+	private ServerSocketThread parentThread;
+	private long interval;
+	private ConcurrentHashMap<String, Account> loggedOut;
+	private volatile boolean running;
+	private boolean wakeUp;
+	private AtomicLong saves;
+	private AtomicLong failures;
+	private AtomicFile.SyncBatch syncBatch;
+	private ConcurrentHashMap<String, Long> savedRecords;
+	private ConcurrentHashMap<String, Long> savedNames;
+	private volatile long lastFlushNanos;
+	//Keeps two checkpoints from overlapping, without holding up logOut() and terminate().
+	private Object checkpointLock;
+	private long lastCheckpoint;
+	private AtomicLong checkpoints;
+	private AtomicLong checkpointFailures;
+	private AtomicLong checkpointBytes;
+	private volatile long lastCheckpointNanos;
+	private volatile long lastCheckpointPauseNanos;
+	private volatile long lastCheckpointBytes;
+
+	/**
+	 * Create a new save thread. Call start() to start saving.
+	 * @param parentThread The ServerSocketThread whose sessions hold the accounts.
+	 * @param intervalSeconds The number of seconds between saves.
+	 */
+	public ServerSaveThread(ServerSocketThread parentThread, long intervalSeconds) {
+		super("ServerSaveThread");
+		this.parentThread = parentThread;
+		this.interval = TimeUnit.SECONDS.toMillis(Math.max(1, intervalSeconds));
+		this.loggedOut = new ConcurrentHashMap<String, Account>();
+		this.running = true;
+		this.wakeUp = false;
+		this.saves = new AtomicLong();
+		this.failures = new AtomicLong();
+		this.syncBatch = new AtomicFile.SyncBatch();
+		this.savedRecords = new ConcurrentHashMap<String, Long>();
+		this.savedNames = new ConcurrentHashMap<String, Long>();
+		this.checkpointLock = new Object();
+		this.lastCheckpoint = System.nanoTime();
+		this.checkpoints = new AtomicLong();
+		this.checkpointFailures = new AtomicLong();
+		this.checkpointBytes = new AtomicLong();
 	}
-	
+
+	/**
+	 * ServerSaveThread main method.
+	 */
 	public void run() {
+		long nextFlush = System.currentTimeMillis() + this.interval;
+		while(this.running) {
+			synchronized (this) {
+				//Sleep until the next save, or until an account logs out.
+				long wait = nextFlush - System.currentTimeMillis();
+				if(!this.wakeUp && wait > 0) {
+					try {
+						this.wait(wait);
+					}
+					catch (InterruptedException e) {
+						//Save now.
+					}
+				}
+				this.wakeUp = false;
+			}
+
+			//A save that fails on a bug must not stop every later save.
+			try {
+				this.flushLoggedOut();
+				if(System.currentTimeMillis() >= nextFlush) {
+					nextFlush = System.currentTimeMillis() + this.interval;
+					this.flush();
+				}
+			}
+			catch (RuntimeException e) {
+				this.println("Could not save: "+e);
+				e.printStackTrace();
+			}
+		}
+
+		//Save everything once more before the server shuts down.
+		try {
+			this.flush();
+		}
+		catch (RuntimeException e) {
+			this.println("Could not save: "+e);
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Save every account that has changed, both logged out and playing,
+	 * unload the zones that have been empty for long enough, and
+	 * checkpoint the world if one is due.
+	 */
+	public void flush() {
+		long start = System.nanoTime();
+		this.flushLoggedOut();
+
+		for(MudServerThread thread : this.parentThread.getClientThreads().values()) {
+			Account user = thread.getUser();
+			if(user != null) {
+				this.save(user, this.syncBatch);
+			}
+		}
+		this.syncAccounts();
 		
+		//Forget the cached accounts nobody has used for a while.
+		this.parentThread.getAccountCache().sweep();
+		
+		//Save and unload the zones of a sharded world that players have left.
+		GameWorld world = this.parentThread.getWorld();
+		if(world != null) {
+			world.unloadIdleZones(this.parentThread.getZoneIdleTimeout());
+			
+			if(this.isCheckpointDue()) {
+				this.checkpoint();
+			}
+		}
+		this.lastFlushNanos = System.nanoTime() - start;
+	}
+
+	/**
+	 * Check if the journal has grown or enough time has passed for a checkpoint.
+	 * With a journal, nothing is due while the journal is empty.
+	 * @return due True if the world should be checkpointed.
+	 */
+	private boolean isCheckpointDue() {
+		Journal journal = this.parentThread.getJournal();
+		if(journal != null) {
+			long bytes = journal.getSegmentBytes();
+			if(bytes == 0) {
+				return false;
+			}
+			if(bytes >= this.parentThread.getCheckpointJournalBytes()) {
+				return true;
+			}
+		}
+		return System.nanoTime() - this.lastCheckpoint >= this.parentThread.getCheckpointInterval();
+	}
+
+	/**
+	 * Write the world to its file while players keep playing.
+	 * The world is locked only while the journal starts a new segment and the
+	 * room maps are taken. The journal segments before it are deleted once the
+	 * world file has been written.
+	 * @return success True if the world was written.
+	 */
+	public boolean checkpoint() {
+		synchronized (this.checkpointLock) {
+			return this.writeCheckpoint();
+		}
+	}
+
+	/**
+	 * Checkpoint the world. Called with the checkpoint lock held.
+	 * @return success True if the world was written.
+	 */
+	private boolean writeCheckpoint() {
+		GameWorld world = this.parentThread.getWorld();
+		Journal journal = this.parentThread.getJournal();
+		long start = System.nanoTime();
+		this.lastCheckpoint = start;
+
+		List<WorldFile.Snapshot> snapshots;
+		long segment = 0;
+		synchronized (world) {
+			if(journal != null) {
+				try {
+					segment = journal.rotate();
+				}
+				catch (IOException e) {
+					this.println("Could not start a new journal segment: "+e.getMessage());
+					this.checkpointFailures.incrementAndGet();
+					return false;
+				}
+			}
+			snapshots = world.capture();
+		}
+		this.lastCheckpointPauseNanos = System.nanoTime() - start;
+
+		boolean success = true;
+		long bytes = 0;
+		AtomicFile.SyncBatch batch = new AtomicFile.SyncBatch();
+		for(WorldFile.Snapshot snapshot : snapshots) {
+			success &= snapshot.write(batch);
+			bytes += snapshot.getBytes();
+		}
+		batch.sync();
+		this.checkpointBytes.addAndGet(bytes);
+		this.lastCheckpointBytes = bytes;
+		this.lastCheckpointNanos = System.nanoTime() - start;
+
+		if(!success) {
+			this.println("World checkpoint failed. The journal is kept.");
+			this.checkpointFailures.incrementAndGet();
+			return false;
+		}
+		if(journal != null) {
+			journal.deleteSegmentsBefore(segment);
+		}
+		this.checkpoints.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Save the accounts that have logged out since the last save.
+	 * Accounts that fail to save are tried again on the next save.
+	 */
+	private void flushLoggedOut() {
+		for(Map.Entry<String, Account> entry : this.loggedOut.entrySet()) {
+			Account account = entry.getValue();
+			if(this.save(account, this.syncBatch)) {
+				this.println("Save succeeded for account: "+account.getAccountName());
+				this.loggedOut.remove(entry.getKey(), account);
+			}
+			else {
+				this.println("Save failed for account: "+account.getAccountName());
+			}
+		}
+		this.syncAccounts();
+	}
+	
+	/**
+	 * Sync the accounts saved since the last sync, then tell the character
+	 * name index and the journal that their new characters are on disk.
+	 */
+	private void syncAccounts() {
+		this.syncBatch.sync();
+		CharacterNameIndex names = this.parentThread.getNameIndex();
+		for(Map.Entry<String, Long> entry : this.savedNames.entrySet()) {
+			names.accountSaved(entry.getKey(), entry.getValue());
+			this.savedNames.remove(entry.getKey(), entry.getValue());
+		}
+		Journal journal = this.parentThread.getJournal();
+		for(Map.Entry<String, Long> entry : this.savedRecords.entrySet()) {
+			if(journal != null) {
+				journal.accountSaved(entry.getKey(), entry.getValue());
+			}
+			this.savedRecords.remove(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Save an account if it has changed.
+	 * @param account The Account to save.
+	 * @param batch The SyncBatch that makes the save durable, or null to make it durable now.
+	 * @return success False if the account had to be saved and the save failed.
+	 */
+	private boolean save(Account account, AtomicFile.SyncBatch batch) {
+		synchronized (account) {
+			//Every character journaled before this is in the account as it is written.
+			Journal journal = this.parentThread.getJournal();
+			long record = journal == null ? 0 : journal.getRecords();
+			CharacterNameIndex names = this.parentThread.getNameIndex();
+			long commit = names.getCommits();
+			if(!account.isDirty()) {
+				//The last save holds every character, and is on disk once the batch is synced.
+				if(batch != null) {
+					this.savedRecords.put(account.getAccountName(), record);
+					this.savedNames.put(account.getAccountName(), commit);
+				}
+				return true;
+			}
+			if(account.save(batch)) {
+				this.saves.incrementAndGet();
+				if(batch != null) {
+					this.savedRecords.put(account.getAccountName(), record);
+					this.savedNames.put(account.getAccountName(), commit);
+				}
+				else {
+					names.accountSaved(account.getAccountName(), commit);
+					if(journal != null) {
+						journal.accountSaved(account.getAccountName(), record);
+					}
+				}
+				return true;
+			}
+			this.failures.incrementAndGet();
+			return false;
+		}
+	}
+
+	/**
+	 * Save an account whose session has ended as soon as possible.
+	 * @param account The Account that logged out.
+	 */
+	public void logOut(Account account) {
+		account.markDirty();
+		this.loggedOut.put(account.getAccountName(), account);
+		synchronized (this) {
+			this.wakeUp = true;
+			this.notify();
+		}
 	}
 
+	/**
+	 * Make sure an account that logged out has been written before it is read again.
+	 * Saves the account on the calling thread if the save thread has not got to it yet.
+	 * @param accountName The name of the account that is logging in.
+	 */
+	public void awaitLoggedOut(String accountName) {
+		Account account = this.loggedOut.get(accountName);
+		if(account != null) {
+			//Waits for the save thread if it is writing the account right now.
+			this.save(account, null);
+			this.loggedOut.remove(accountName, account);
+		}
+	}
+
+	/**
+	 * Save an account on the calling thread and sync it, for a change that can't wait for the next save.
+	 * @param account The Account to save.
+	 * @return success False if the account had to be saved and the save failed.
+	 */
+	public boolean saveNow(Account account) {
+		return this.save(account, null);
+	}
+
+	/**
+	 * Stop the thread after it has saved every changed account.
+	 */
+	public void terminate() {
+		this.running = false;
+		synchronized (this) {
+			this.wakeUp = true;
+			this.notify();
+		}
+	}
+
+	/**
+	 * Output a string to the server console between server prompts.
+	 * @param str The String to output to the server console.
+	 */
+	private void println(String str) {
+		System.out.print("\b\b");
+		System.out.println(str);
+		System.out.print(": ");
+	}
+
+	//Getters and setters
+	//------------------------------
+
+	public long getSaves() {
+		return this.saves.get();
+	}
+
+	public long getFailures() {
+		return this.failures.get();
+	}
+
+	/**
+	 * Return how many times the account directory has been synced for saved accounts.
+	 * @return syncs The number of directory syncs.
+	 */
+	public long getDirectorySyncs() {
+		return this.syncBatch.getSyncs();
+	}
+
+	public int getLoggedOutCount() {
+		return this.loggedOut.size();
+	}
+
+	/**
+	 * Return how long the last full save took.
+	 * @return lastFlushNanos The duration of the last flush in nanoseconds.
+	 */
+	public long getLastFlushNanos() {
+		return this.lastFlushNanos;
+	}
+
+	public long getCheckpoints() {
+		return this.checkpoints.get();
+	}
+
+	public long getCheckpointFailures() {
+		return this.checkpointFailures.get();
+	}
+
+	/**
+	 * Return how many bytes of world files every checkpoint has written together.
+	 * @return checkpointBytes The number of bytes written.
+	 */
+	public long getCheckpointBytes() {
+		return this.checkpointBytes.get();
+	}
+
+	public long getLastCheckpointBytes() {
+		return this.lastCheckpointBytes;
+	}
+
+	/**
+	 * Return how long the last checkpoint took from start to finish.
+	 * @return lastCheckpointNanos The duration in nanoseconds.
+	 */
+	public long getLastCheckpointNanos() {
+		return this.lastCheckpointNanos;
+	}
+
+	/**
+	 * Return how long the last checkpoint held the world locked.
+	 * @return lastCheckpointPauseNanos The pause in nanoseconds.
+	 */
+	public long getLastCheckpointPauseNanos() {
+		return this.lastCheckpointPauseNanos;
+	}
 }
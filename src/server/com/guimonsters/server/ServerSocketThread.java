@@ -1,45 +1,199 @@
 package com.guimonsters.server;
 
 import java.net.*;
-import java.util.HashMap;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.io.*;
 
+import com.guimonsters.network.ClientConnection;
+import com.guimonsters.network.Connection;
+import com.guimonsters.network.ConnectionOptions;
+import com.guimonsters.network.FrameCompression;
+import com.guimonsters.network.OutboundLimits;
+import com.guimonsters.server.file.Journal;
+import com.guimonsters.server.game.Account;
+import com.guimonsters.server.game.AccountCache;
+import com.guimonsters.server.game.CharacterNameIndex;
 import com.guimonsters.server.game.GameWorld;
 
 /**
  * This thread listens for client connections on the main server socket
  * and creates a new MudServerThread for each new connection.
  * 
+ * In virtual mode each MudServerThread runs on a virtual thread instead.
+ * In selector mode each new connection is handed to one of a small pool
+ * of SelectorThreads instead, and client commands run on a shared worker pool.
+ * 
+ * Every accepted connection goes through the server's AdmissionControl
+ * first, which may reject it or hold it back until a session slot is free.
+ * 
+ * Changes to the world are recorded in a Journal. Before the server accepts
+ * connections, the journal left by a crash is replayed onto the loaded world.
+ * 
+ * Game events are run in fixed ticks by a GameLoopGroup, each zone of the
+ * world being owned by one of the group's GameLoop threads. With the game loops
+ * on, the loops also run the commands of playing sessions instead of the
+ * sessions themselves. Otherwise one loop runs the game events of every zone.
+ * 
  * @author Elijah Atkinson
  * @version 1.02, 2013-04-29
  */
 public class ServerSocketThread extends Thread {
 	
+	//The directory holding a directory of journal segments for each world.
+	private static final String JOURNAL_DIRECTORY = "./journal";
+	
 	//Data fields
 	private int port;
+	private ServerConfig config;
+	private ConnectionMode mode;
 	private ServerSocket socket;
 	private GameWorld world;
 	private boolean listenForConnections;
-	private HashMap<Long, MudServerThread> clientThreads;
+	private Map<Long, MudServerThread> clientThreads;
+	private SelectorThread[] selectorThreads;
+	private ExecutorService workerPool;
+	private ExecutorService writerPool;
+	private OutboundLimits outboundLimits;
+	private ConnectionOptions connectionOptions;
+	private VirtualThreadLauncher virtualThreads;
+	private TimerWheel timerWheel;
+	private long heartbeatInterval;
+	private long heartbeatTimeout;
+	private long zoneIdleTimeout;
+	private long idleTimeout;
+	private AtomicLong reapedSessions;
+	private AdmissionControl admission;
+	private AtomicInteger nextSelector;
+	private ServerSaveThread saveThread;
+	private CharacterNameIndex nameIndex;
+	private AccountCache accountCache;
+	private Journal journal;
+	private long checkpointInterval;
+	private long checkpointJournalBytes;
+	private GameLoopGroup gameLoops;
 	
 	/**
-	 * Construct a new ServerSocketThread instance and assign a port to listen on.
-	 * @param port The integer matching the port number for the server to listen on.
-	 * @param ar The AccountReader instance to use to keep track of user accounts.
+	 * Construct a new ServerSocketThread instance using the given server settings.
+	 * @param config The ServerConfig holding the port and connection mode to use.
 	 */
-	public ServerSocketThread(int port) {
-		this.port = port;
+	public ServerSocketThread(ServerConfig config) {
+		this.config = config;
+		this.port = config.getInt(ServerConfig.PORT);
+		this.mode = config.getConnectionMode();
 		this.socket = null;
 		this.listenForConnections = true;
-		this.clientThreads = new HashMap<Long, MudServerThread>();
+		this.clientThreads = new ConcurrentHashMap<Long, MudServerThread>();
+		this.outboundLimits = new OutboundLimits(config.getInt(ServerConfig.OUTBOUND_MAX_PACKETS),
+				config.getLong(ServerConfig.OUTBOUND_MAX_BYTES));
+		this.connectionOptions = config.getConnectionOptions();
+		this.timerWheel = new TimerWheel(config.getLong(ServerConfig.TIMER_TICK), 512);
+		this.heartbeatInterval = TimeUnit.SECONDS.toNanos(config.getLong(ServerConfig.HEARTBEAT_INTERVAL));
+		this.heartbeatTimeout = TimeUnit.SECONDS.toNanos(config.getLong(ServerConfig.HEARTBEAT_TIMEOUT));
+		this.idleTimeout = TimeUnit.SECONDS.toNanos(config.getLong(ServerConfig.IDLE_TIMEOUT));
+		this.zoneIdleTimeout = TimeUnit.SECONDS.toNanos(config.getLong(ServerConfig.ZONE_IDLE));
+		this.reapedSessions = new AtomicLong();
+		this.admission = config.getAdmissionControl();
+		this.nextSelector = new AtomicInteger();
+		this.saveThread = new ServerSaveThread(this, config.getLong(ServerConfig.SAVE_INTERVAL));
+		this.nameIndex = new CharacterNameIndex(new File(Account.ACCOUNT_DIRECTORY));
+		this.accountCache = new AccountCache(config.getInt(ServerConfig.ACCOUNT_CACHE_SIZE),
+				TimeUnit.SECONDS.toNanos(config.getLong(ServerConfig.ACCOUNT_CACHE_TTL)));
+		this.checkpointInterval = TimeUnit.SECONDS.toNanos(config.getLong(ServerConfig.CHECKPOINT_INTERVAL));
+		this.checkpointJournalBytes = config.getLong(ServerConfig.CHECKPOINT_JOURNAL_BYTES);
+		boolean gameLoop = config.getBoolean(ServerConfig.GAME_LOOP);
+		this.gameLoops = new GameLoopGroup(gameLoop ? config.getInt(ServerConfig.GAME_THREADS) : 1,
+				config.getLong(ServerConfig.GAME_TICK), gameLoop);
 	}
 	
 	/**
 	 * ServerSocketThread main method.
 	 */
 	public void run() {
+		//Replay the changes a crash kept out of the world file, then journal new changes.
+		if(this.config.getBoolean(ServerConfig.JOURNAL_ENABLED)) {
+			this.openJournal();
+		}
+		
+		//Start the timer that watches every session for idle and dead clients.
+		this.timerWheel.start();
+		this.timerWheel.schedule(new AdmissionSweep(), 1, TimeUnit.MINUTES);
+		
+		//Start running the commands of playing sessions.
+		this.gameLoops.start();
+		GameScheduler.setLocator(this.gameLoops);
+		
+		//Start saving changed accounts in the background.
+		this.saveThread.start();
+		
+		//Read the names of every character on the server.
+		this.nameIndex.load();
+		
+		//Start the writers that send queued packets to blocking connections.
+		//Legacy clients use blocking connections in selector mode too.
+		if(this.mode == ConnectionMode.VIRTUAL) {
+			this.virtualThreads = new VirtualThreadLauncher(config.getLong(ServerConfig.VIRTUAL_FALLBACK_STACK_SIZE));
+			this.writerPool = this.virtualThreads.newExecutor();
+		}
+		if(this.writerPool == null) {
+			this.writerPool = Executors.newCachedThreadPool(new WriterThreadFactory());
+		}
+		
+		switch (this.mode) {
+			case SELECTOR:
+				this.runSelectorMode();
+				break;
+				
+			case VIRTUAL:
+				if(!this.virtualThreads.isVirtual()) {
+					System.err.println("Virtual threads are not available on this Java version. Using small platform threads.");
+				}
+				this.runThreadMode();
+				break;
+				
+			default:
+				this.runThreadMode();
+				break;
+		}
+	}
+	
+	/**
+	 * Replay the journal of the world and start journaling its changes.
+	 * The server runs without a journal if the journal can not be opened.
+	 */
+	private void openJournal() {
+		Journal journal = new Journal(new File(JOURNAL_DIRECTORY, this.world.getFileName()), this.world.getFileName(),
+				this.config.getLong(ServerConfig.JOURNAL_COMMIT_DELAY));
+		try {
+			long replayed = journal.open(this.world);
+			if(replayed > 0) {
+				System.out.println("Replayed "+replayed+" journaled changes.");
+			}
+		}
+		catch (IOException e) {
+			System.err.println("Could not open the journal: "+e.getMessage()+". Changes will not be journaled.");
+			return;
+		}
+		journal.start();
+		this.world.setJournal(journal);
+		this.journal = journal;
+	}
+	
+	/**
+	 * Accept connections and start a new MudServerThread for each of them.
+	 * In virtual mode the MudServerThread is run on a virtual thread.
+	 */
+	private void runThreadMode() {
 		try {
 			//Create the main server socket.
 			socket = new ServerSocket(port);
@@ -57,11 +211,51 @@ public class ServerSocketThread extends Thread {
 				//Listen for incoming client connections. (Blocks until a connection comes in).
 				clientSocket = socket.accept();
 				
-				//Create a new thread to manage the connection to the client.
-				MudServerThread clientThread = new MudServerThread(this, clientSocket);
+				//Start a thread for the client once it has been admitted.
+				this.admission.offer(new SocketCandidate(clientSocket));
+			}
+			catch (IOException e) {
+				System.out.println("Shutting down server socket.");
+				this.listenForConnections = false;
+			}
+		}
+	}
+	
+	/**
+	 * Accept connections and hand each of them to a SelectorThread.
+	 * The selector threads are picked in turn so they share the sockets evenly.
+	 */
+	private void runSelectorMode() {
+		ServerSocketChannel serverChannel = null;
+		int selectorCount = Math.max(1, config.getInt(ServerConfig.SELECTOR_THREADS));
+		int workerCount = Math.max(1, config.getInt(ServerConfig.SELECTOR_WORKERS));
+		
+		try {
+			//Create the main server socket.
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.socket().bind(new InetSocketAddress(port));
+			socket = serverChannel.socket();
+			
+			//Start the I/O threads and the pool that runs client commands.
+			this.workerPool = new ForkJoinPool(workerCount, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+			this.selectorThreads = new SelectorThread[selectorCount];
+			for(int i = 0; i < selectorCount; i++) {
+				this.selectorThreads[i] = new SelectorThread(this, i);
+				this.selectorThreads[i].start();
+			}
+		}
+		catch (IOException e) {
+			System.err.println("Could not listen on port: "+port+". Check that port is not in use.\n");
+			System.exit(-1);
+		}
+		
+		while(this.listenForConnections) {
+			try {
+				//Listen for incoming client connections. (Blocks until a connection comes in).
+				SocketChannel clientChannel = serverChannel.accept();
 				
-				//Game on!!
-				clientThread.start();
+				//Give the connection to a selector thread once it has been admitted.
+				this.admission.offer(new ChannelCandidate(clientChannel));
 			}
 			catch (IOException e) {
 				System.out.println("Shutting down server socket.");
@@ -75,6 +269,9 @@ public class ServerSocketThread extends Thread {
 	 * shut down this thread.
 	 */
 	public void terminate() {
+		//Turn away connections that are still waiting for a session.
+		this.admission.shutdown();
+		
 		//Check if we have client threads.
 		if(this.clientThreads.size() > 0) {
 		
@@ -94,10 +291,13 @@ public class ServerSocketThread extends Thread {
 				it.remove();
 				
 				//If the thread is alive, kill it.
-				if(thread.isAlive()) {
+				if(thread.isActive()) {
 					thread.terminate();
 					try {
-						thread.join();
+						Thread sessionThread = thread.getSessionThread();
+						if(sessionThread.isAlive()) {
+							sessionThread.join();
+						}
 					}
 					catch (InterruptedException e) {
 						System.err.println("Could not shut down thread "+thread.getId()+".");
@@ -106,9 +306,63 @@ public class ServerSocketThread extends Thread {
 			}
 		}
 		
+		//In selector mode, let the sessions finish their cleanup and
+		//send their goodbyes before the selector threads are stopped.
+		if(this.workerPool != null) {
+			this.workerPool.shutdown();
+			try {
+				this.workerPool.awaitTermination(10, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException e) {
+				System.err.println("Could not wait for client sessions to finish.");
+			}
+		}
+		if(this.selectorThreads != null) {
+			for(SelectorThread selectorThread : this.selectorThreads) {
+				selectorThread.terminate();
+			}
+		}
+		
+		//Every session has ended, so no more commands will be queued.
+		//Game events that have not run yet never will.
+		GameScheduler.setLocator(null);
+		try {
+			this.gameLoops.terminate();
+		}
+		catch (InterruptedException e) {
+			System.err.println("Could not wait for the game loops to stop.");
+		}
+		
+		//Let the writers send the goodbye packets that are still queued.
+		if(this.writerPool != null) {
+			this.writerPool.shutdown();
+			try {
+				this.writerPool.awaitTermination(10, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException e) {
+				System.err.println("Could not wait for queued packets to be sent.");
+			}
+		}
+		
+		this.timerWheel.terminate();
+		
+		//Write out every account that is still waiting to be saved.
+		this.saveThread.terminate();
+		try {
+			this.saveThread.join();
+		}
+		catch (InterruptedException e) {
+			System.err.println("Could not wait for accounts to be saved.");
+		}
+		
 		//Save the game world file before we shut down the server.
+		//With a journal, the journal is only cleared once the save has succeeded.
 		System.out.println("Saving game world.");
-		this.world.save();
+		this.saveThread.checkpoint();
+		if(this.journal != null) {
+			this.world.setJournal(null);
+			this.journal.terminate();
+		}
 		
 		try {
 			this.socket.close();
@@ -118,9 +372,216 @@ public class ServerSocketThread extends Thread {
 		this.listenForConnections = false;
 	}
 
-	public HashMap<Long, MudServerThread> getClientThreads() {
+	/**
+	 * Build a report of the server's connection metrics.
+	 * @return stats The metrics report, one metric per line.
+	 */
+	public String getStats() {
+		int sessions = 0;
+		int objectStreams = 0;
+		long retainedHandles = 0;
+		int maxRetainedHandles = 0;
+		long streamResets = 0;
+		String compressionStats = "";
+
+		for(MudServerThread thread : this.clientThreads.values()) {
+			sessions++;
+			Connection connection = thread.getClientConnection();
+			if(connection == null) {
+				continue;
+			}
+			FrameCompression compression = connection.getCompression();
+			if(compression != null) {
+				compressionStats += String.format("\n        thread %d => ratio %.2f, %d of %d frames compressed, %.1f ms deflating",
+						thread.getId(), compression.getRatio(), compression.getCompressedFrames(),
+						compression.getCompressedFrames() + compression.getSkippedFrames(),
+						compression.getDeflateNanos() / 1000000.0);
+			}
+			if(connection instanceof ClientConnection && !((ClientConnection) connection).isFramed()) {
+				ClientConnection streamConnection = (ClientConnection) connection;
+				objectStreams++;
+				retainedHandles += streamConnection.getRetainedHandles();
+				maxRetainedHandles = Math.max(maxRetainedHandles, streamConnection.getRetainedHandles());
+				streamResets += streamConnection.getStreamResets();
+			}
+		}
+
+		String stats = "Server statistics:\n";
+		stats += "    sessions => "+sessions+"\n";
+		stats += "    object streams => "+objectStreams+"\n";
+		stats += "    retained stream handles => "+retainedHandles+" (max "+maxRetainedHandles+" per stream)\n";
+		stats += "    object stream resets => "+streamResets+"\n";
+		stats += "    chat packets dropped => "+this.outboundLimits.getDroppedPackets()+" ("+this.outboundLimits.getDroppedBytes()+" bytes)\n";
+		stats += "    slow clients evicted => "+this.outboundLimits.getEvictions()+"\n";
+		stats += "    quiet sessions reaped => "+this.reapedSessions.get()+"\n";
+		if(this.world != null && this.world.isSharded()) {
+			stats += "    zones loaded => "+this.world.getLoadedZoneCount()+" of "+this.world.getZoneCount()+
+					" ("+this.world.getZoneLoads()+" loads, "+this.world.getZoneUnloads()+" unloads)\n";
+		}
+		if(this.journal != null) {
+			long commits = this.journal.getCommits();
+			stats += String.format("    journal => %d records, %d commits (%.1f records per commit), %d bytes since checkpoint, %d replayed\n",
+					this.journal.getRecords(), commits, commits == 0 ? 0.0 : this.journal.getRecords() / (double) commits,
+					this.journal.getSegmentBytes(), this.journal.getReplayed());
+		}
+		stats += "    game loops => "+this.gameLoops.getLoops().length+
+				(this.gameLoops.isRunningCommands() ? " running commands" : " running game events only")+
+				" ("+this.gameLoops.getHandoffs()+" players handed off between zones)\n";
+		for(GameLoop loop : this.gameLoops.getLoops()) {
+			GameScheduler scheduler = loop.getScheduler();
+			stats += String.format("        loop %d => %d ticks of %.0f ms, %d commands (%d last tick), %d game events (%d last tick, %d waiting), tick time %.2f ms last, %.2f ms average, %.2f ms max, %d overruns, %d sessions waiting\n",
+					loop.getIndex(), loop.getTicks(), loop.getTickNanos() / 1000000.0, loop.getCommands(),
+					loop.getLastTickCommands(), scheduler.getFired(), scheduler.getLastFired(), scheduler.getPending(),
+					loop.getLastTickNanos() / 1000000.0, loop.getAverageTickNanos() / 1000000.0, loop.getMaxTickNanos() / 1000000.0,
+					loop.getOverruns(), loop.getWaitingSessions());
+		}
+		if(this.gameLoops.isRunningCommands()) {
+			for(GameLoopGroup.ZoneStats zone : this.gameLoops.getBusiestZones(5)) {
+				stats += String.format("        zone %s on loop %d => %d commands, tick time %.2f ms last, %.2f ms max, %.1f ms in total\n",
+						zone.getZoneName(), this.gameLoops.getOwnerIndex(zone.getZoneName()), zone.getCommands(),
+						zone.getLastTickNanos() / 1000000.0, zone.getMaxTickNanos() / 1000000.0, zone.getTotalNanos() / 1000000.0);
+			}
+		}
+		stats += "    character names => "+this.nameIndex.size()+" ("+this.nameIndex.getReservedCount()+" being created)\n";
+		long cacheLookups = this.accountCache.getHits() + this.accountCache.getMisses();
+		stats += String.format("    account cache => %d cached (%d in use, up to %d idle), %d hits, %d misses (%.0f%% hit), %d evicted\n",
+				this.accountCache.size(), this.accountCache.getPinnedCount(), this.accountCache.getMaxSize(),
+				this.accountCache.getHits(), this.accountCache.getMisses(),
+				cacheLookups == 0 ? 0.0 : 100.0 * this.accountCache.getHits() / cacheLookups, this.accountCache.getEvictions());
+		stats += String.format("    account saves => %d (%d failed, %d directory syncs, %d logged out waiting, last flush %.1f ms)\n",
+				this.saveThread.getSaves(), this.saveThread.getFailures(), this.saveThread.getDirectorySyncs(),
+				this.saveThread.getLoggedOutCount(), this.saveThread.getLastFlushNanos() / 1000000.0);
+		stats += String.format("    world checkpoints => %d (%d failed, last %.1f ms with %.2f ms paused, %d bytes, %d bytes in total)\n",
+				this.saveThread.getCheckpoints(), this.saveThread.getCheckpointFailures(),
+				this.saveThread.getLastCheckpointNanos() / 1000000.0, this.saveThread.getLastCheckpointPauseNanos() / 1000000.0,
+				this.saveThread.getLastCheckpointBytes(), this.saveThread.getCheckpointBytes());
+		stats += "    connections admitted => "+this.admission.getAdmitted()+" ("+this.admission.getSessions()+" holding a slot)\n";
+		stats += "    connections queued => "+this.admission.getQueued()+" ("+this.admission.getPending()+" waiting now)\n";
+		stats += "    connections rejected => "+this.admission.getRejectedBlocked()+" blocked, "
+				+this.admission.getRejectedRate()+" rate limited, "+this.admission.getRejectedFull()+" server full ("
+				+this.admission.getTrackedAddresses()+" addresses tracked)\n";
+		stats += "    constant packets => "+ConstantPackets.size()+"\n";
+		stats += "    compressed connections =>"+(compressionStats.isEmpty() ? " none" : compressionStats);
+		return stats;
+	}
+
+	public Map<Long, MudServerThread> getClientThreads() {
 		return this.clientThreads;
 	}
+	
+	public ExecutorService getWorkerPool() {
+		return this.workerPool;
+	}
+	
+	public ExecutorService getWriterPool() {
+		return this.writerPool;
+	}
+	
+	public OutboundLimits getOutboundLimits() {
+		return this.outboundLimits;
+	}
+	
+	public ConnectionOptions getConnectionOptions() {
+		return this.connectionOptions;
+	}
+	
+	public CharacterNameIndex getNameIndex() {
+		return this.nameIndex;
+	}
+	
+	/**
+	 * Return the journal of the world.
+	 * @return journal The Journal, or null if changes are not journaled.
+	 */
+	public Journal getJournal() {
+		return this.journal;
+	}
+	
+	/**
+	 * Return how often the world is checkpointed.
+	 * @return checkpointInterval The time between checkpoints in nanoseconds.
+	 */
+	public long getCheckpointInterval() {
+		return this.checkpointInterval;
+	}
+	
+	/**
+	 * Return how large the journal may grow before the world is checkpointed early.
+	 * @return checkpointJournalBytes The journal size in bytes.
+	 */
+	public long getCheckpointJournalBytes() {
+		return this.checkpointJournalBytes;
+	}
+	
+	/**
+	 * Return the game loops that run the commands of playing sessions.
+	 * Sessions only queue their commands on the loops if isRunningCommands() is true.
+	 * @return gameLoops The GameLoopGroup.
+	 */
+	public GameLoopGroup getGameLoops() {
+		return this.gameLoops;
+	}
+	
+	public AccountCache getAccountCache() {
+		return this.accountCache;
+	}
+	
+	public ServerSaveThread getSaveThread() {
+		return this.saveThread;
+	}
+	
+	public AdmissionControl getAdmission() {
+		return this.admission;
+	}
+	
+	public TimerWheel getTimerWheel() {
+		return this.timerWheel;
+	}
+	
+	/**
+	 * Return how long a framed client may be quiet before it is sent a heartbeat.
+	 * @return heartbeatInterval The interval in nanoseconds, 0 if heartbeats are off.
+	 */
+	public long getHeartbeatInterval() {
+		return this.heartbeatInterval;
+	}
+	
+	/**
+	 * Return how long a framed client may send nothing at all, not even
+	 * a heartbeat, before its session is reaped.
+	 * @return heartbeatTimeout The timeout in nanoseconds, 0 for no timeout.
+	 */
+	public long getHeartbeatTimeout() {
+		return this.heartbeatTimeout;
+	}
+	
+	/**
+	 * Return how long any client may go without sending a command
+	 * before its session is reaped.
+	 * @return idleTimeout The timeout in nanoseconds, 0 for no timeout.
+	 */
+	public long getIdleTimeout() {
+		return this.idleTimeout;
+	}
+	
+	/**
+	 * Return how long a zone of a sharded world stays loaded after its last player has left.
+	 * @return zoneIdleTimeout The timeout in nanoseconds.
+	 */
+	public long getZoneIdleTimeout() {
+		return this.zoneIdleTimeout;
+	}
+	
+	/**
+	 * Count a session that was reaped for being idle or not answering heartbeats.
+	 */
+	public void recordReapedSession() {
+		this.reapedSessions.incrementAndGet();
+	}
+	
+	public ServerConfig getConfig() {
+		return this.config;
+	}
 
 	public GameWorld getWorld() {
 		return world;
@@ -129,5 +590,103 @@ public class ServerSocketThread extends Thread {
 	public void setWorld(GameWorld world) {
 		this.world = world;
 	}
+	
+	/**
+	 * A client socket accepted in thread or virtual mode.
+	 */
+	private class SocketCandidate extends AdmissionControl.Candidate {
+		
+		private Socket clientSocket;
+		
+		public SocketCandidate(Socket clientSocket) {
+			super(clientSocket.getInetAddress().getHostAddress());
+			this.clientSocket = clientSocket;
+		}
+		
+		public void start(AdmissionControl.Permit permit) {
+			//Create a new thread to manage the connection to the client.
+			MudServerThread clientThread = new MudServerThread(ServerSocketThread.this, this.clientSocket);
+			clientThread.setPermit(permit);
+			
+			//Game on!!
+			if(virtualThreads != null) {
+				virtualThreads.start(clientThread);
+			}
+			else {
+				clientThread.start();
+			}
+		}
+		
+		public void reject() {
+			try {
+				this.clientSocket.close();
+			}
+			catch (IOException e) {
+				//The client is gone either way.
+			}
+		}
+	}
+	
+	/**
+	 * A client channel accepted in selector mode.
+	 */
+	private class ChannelCandidate extends AdmissionControl.Candidate {
+		
+		private SocketChannel clientChannel;
+		
+		public ChannelCandidate(SocketChannel clientChannel) {
+			super(clientChannel.socket().getInetAddress().getHostAddress());
+			this.clientChannel = clientChannel;
+		}
+		
+		public void start(AdmissionControl.Permit permit) {
+			try {
+				this.clientChannel.configureBlocking(false);
+				this.clientChannel.socket().setTcpNoDelay(true);
+			}
+			catch (IOException e) {
+				this.reject();
+				permit.release();
+				return;
+			}
+			
+			//Give the connection to the next selector thread.
+			int next = Math.abs(nextSelector.getAndIncrement() % selectorThreads.length);
+			selectorThreads[next].register(this.clientChannel, permit);
+		}
+		
+		public void reject() {
+			try {
+				this.clientChannel.close();
+			}
+			catch (IOException e) {
+				//The client is gone either way.
+			}
+		}
+	}
+	
+	/**
+	 * Forgets the connection rate of addresses that have gone quiet, once a minute.
+	 */
+	private class AdmissionSweep implements Runnable {
+		
+		public void run() {
+			admission.sweep();
+			timerWheel.schedule(this, 1, TimeUnit.MINUTES);
+		}
+	}
+	
+	/**
+	 * Creates the daemon threads that send queued packets to clients.
+	 */
+	private static class WriterThreadFactory implements ThreadFactory {
+		
+		private AtomicInteger count = new AtomicInteger();
+		
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "OutboundWriter-"+this.count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
 }
-
@@ -0,0 +1,168 @@
+package com.guimonsters.server;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timer wheel that runs short tasks after a delay.
+ * Time is cut into ticks, and every task is put in the slot of the tick
+ * it is due on. Each tick only looks at the tasks in one slot, so the cost
+ * of a tick does not grow with the number of tasks that are waiting.
+ * Tasks due more than one turn of the wheel away stay in their slot
+ * until the wheel has come round to them enough times.
+ *
+ * Tasks run on the wheel's own thread and must not block.
+ *
+ * @author Elijah Atkinson
+ * @version 1.00, 2013-05-12
+ */
+public class TimerWheel extends Thread {
+
+	//Data fields
+	private long tickNanos;
+	private ArrayDeque<Timeout>[] slots;
+	private int mask;
+	private long tick;
+	private long startTime;
+	private ConcurrentLinkedQueue<Timeout> added;
+	private volatile boolean running;
+
+	/**
+	 * Create a new timer wheel. Call start() to start ticking.
+	 * @param tickMillis The length of a tick in milliseconds.
+	 * @param slotCount The number of slots, rounded up to a power of two.
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public TimerWheel(long tickMillis, int slotCount) {
+		super("TimerWheel");
+		this.setDaemon(true);
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+
+		int size = 1;
+		while(size < slotCount) {
+			size <<= 1;
+		}
+		this.slots = new ArrayDeque[size];
+		for(int i = 0; i < size; i++) {
+			this.slots[i] = new ArrayDeque<Timeout>();
+		}
+		this.mask = size - 1;
+		this.tick = 0;
+		this.startTime = System.nanoTime();
+		this.added = new ConcurrentLinkedQueue<Timeout>();
+		this.running = true;
+	}
+
+	/**
+	 * Run a task once a delay has passed. Safe to call from any thread,
+	 * including from a task that is running on the wheel.
+	 * @param task The Runnable to run. It must return quickly.
+	 * @param delay The delay before the task is run.
+	 * @param unit The TimeUnit of the delay.
+	 * @return timeout The Timeout that can be used to cancel the task.
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(Math.max(0, delay)));
+		this.added.offer(timeout);
+		return timeout;
+	}
+
+	/**
+	 * TimerWheel main method.
+	 */
+	public void run() {
+		while(this.running) {
+			//Sleep until the start of the next tick.
+			long wait = this.startTime + (this.tick + 1) * this.tickNanos - System.nanoTime();
+			if(wait > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				}
+				catch (InterruptedException e) {
+					continue;
+				}
+			}
+
+			this.tick++;
+			this.addNewTimeouts();
+			this.expire(this.slots[(int) (this.tick & this.mask)]);
+		}
+	}
+
+	/**
+	 * Stop the wheel. Tasks that have not run yet never will.
+	 */
+	public void terminate() {
+		this.running = false;
+		this.interrupt();
+	}
+
+	/**
+	 * Move the tasks scheduled since the last tick into their slots.
+	 * Tasks that are already due go in the slot of the current tick.
+	 */
+	private void addNewTimeouts() {
+		Timeout timeout;
+		while((timeout = this.added.poll()) != null) {
+			if(timeout.cancelled) {
+				continue;
+			}
+			long due = (timeout.deadline - this.startTime + this.tickNanos - 1) / this.tickNanos;
+			timeout.dueTick = Math.max(due, this.tick);
+			this.slots[(int) (timeout.dueTick & this.mask)].add(timeout);
+		}
+	}
+
+	/**
+	 * Run every task in a slot that is due on the current tick.
+	 * @param slot The slot of the current tick.
+	 */
+	private void expire(ArrayDeque<Timeout> slot) {
+		Iterator<Timeout> it = slot.iterator();
+		while(it.hasNext()) {
+			Timeout timeout = it.next();
+			if(timeout.cancelled) {
+				it.remove();
+			}
+			else if(timeout.dueTick <= this.tick) {
+				it.remove();
+				try {
+					timeout.task.run();
+				}
+				catch (RuntimeException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * A task waiting on the wheel.
+	 */
+	public static class Timeout {
+
+		private Runnable task;
+		private long deadline;
+		private long dueTick;
+		private volatile boolean cancelled;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+			this.cancelled = false;
+		}
+
+		/**
+		 * Stop the task from running if it has not run yet.
+		 */
+		public void cancel() {
+			this.cancelled = true;
+		}
+
+		public boolean isCancelled() {
+			return this.cancelled;
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package com.guimonsters.server;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Starts client sessions on virtual threads when the server runs in virtual mode.
+ * A virtual thread parks instead of holding an operating system thread while
+ * its session blocks on the socket, so an idle session costs a few kilobytes
+ * of heap instead of a full thread stack.
+ *
+ * Virtual threads are looked up by reflection so the server still builds and
+ * runs on Java versions without them. On those versions sessions fall back
+ * to platform threads with a reduced stack size.
+ *
+ * @author Elijah Atkinson
+ * @version 1.00, 2013-05-11
+ */
+public class VirtualThreadLauncher {
+
+	//Data fields
+	private Object builder;
+	private Method startMethod;
+	private long fallbackStackSize;
+
+	/**
+	 * Create a new VirtualThreadLauncher.
+	 * @param fallbackStackSize The stack size in bytes of the platform threads
+	 *                          used when virtual threads are not available.
+	 */
+	public VirtualThreadLauncher(long fallbackStackSize) {
+		this.fallbackStackSize = fallbackStackSize;
+
+		try {
+			//Thread.ofVirtual().name("MudServerThread-", 0)
+			Object virtualBuilder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			this.builder = builderClass.getMethod("name", String.class, long.class)
+					.invoke(virtualBuilder, "MudServerThread-", 0L);
+			this.startMethod = builderClass.getMethod("start", Runnable.class);
+		}
+		catch (ReflectiveOperationException | UnsupportedOperationException e) {
+			//Virtual threads are missing, or still a disabled preview feature.
+			this.builder = null;
+			this.startMethod = null;
+		}
+	}
+
+	/**
+	 * Start a client session on a new virtual thread.
+	 * @param session The MudServerThread whose run loop should be executed.
+	 * @return thread The Thread that is running the session.
+	 */
+	public Thread start(MudServerThread session) {
+		Thread thread = null;
+
+		if(this.builder != null) {
+			try {
+				thread = (Thread) this.startMethod.invoke(this.builder, session);
+			}
+			catch (IllegalAccessException | InvocationTargetException e) {
+				System.err.println("Could not start a virtual thread, using a platform thread instead.");
+				thread = null;
+			}
+		}
+
+		if(thread == null) {
+			thread = new Thread(null, session, "MudServerThread", this.fallbackStackSize);
+			thread.start();
+		}
+
+		session.setSessionThread(thread);
+		return thread;
+	}
+
+	/**
+	 * Create an executor that runs every task on a new virtual thread.
+	 * @return executor The ExecutorService, or null if virtual threads are not available.
+	 */
+	public ExecutorService newExecutor() {
+		ExecutorService executor = null;
+
+		if(this.builder != null) {
+			try {
+				executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+			}
+			catch (ReflectiveOperationException e) {
+				executor = null;
+			}
+		}
+
+		return executor;
+	}
+
+	/**
+	 * Return true if sessions really run on virtual threads.
+	 * @return virtual False if sessions fall back to platform threads.
+	 */
+	public boolean isVirtual() {
+		return this.builder != null;
+	}
+}
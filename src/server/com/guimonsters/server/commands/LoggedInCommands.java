@@ -2,8 +2,12 @@ package com.guimonsters.server.commands;
 
 import java.util.HashMap;
 
+import com.guimonsters.network.EncodedPacket;
+import com.guimonsters.server.ConstantPackets;
+import com.guimonsters.server.GameLoopGroup;
 import com.guimonsters.server.MudServerThread;
 import com.guimonsters.server.ServerState;
+import com.guimonsters.server.file.Journal;
 import com.guimonsters.server.game.GameWorld;
 import com.guimonsters.server.game.PlayerCharacter;
 import com.guimonsters.server.game.Room;
@@ -36,7 +40,12 @@ public class LoggedInCommands extends ServerCommands {
 	private static final String ERROR_PLAY = "You must specify a character to play. Proper usage is 'play [character name]'.";
 	private static final String ERROR_CREATE = "Proper usage is 'create'.";
 	private static final String ERROR_VIEW_CHARACTERS = "Proper usage is 'characters'.";
-	private static final String ERROR_PLAYER_CHARACTER_NOT_FOUND = "You do not have a character with that name.";
+	private static final EncodedPacket ERROR_PLAYER_CHARACTER_NOT_FOUND = ConstantPackets.register("You do not have a character with that name.");
+	private static final String ERROR_CHARACTER_NAME_TAKEN = "That character name was taken while your character was being created.";
+	private static final String ERROR_CHARACTER_NOT_SAVED = "Your character was created, but could not be saved yet. It will be saved again shortly.";
+	
+	//The most milliseconds to wait for a new character to reach the journal.
+	private static final long JOURNAL_TIMEOUT = 5000;
 	
 	private GameWorld world;
 
@@ -50,7 +59,7 @@ public class LoggedInCommands extends ServerCommands {
 		super(thread);
 		
 		//Override parent strings here.
-		super.promptString = this.promptString;
+		super.setPrompt(this.promptString);
 				
 		//Main State commands
 		Command create = new Command(this, "create",
@@ -108,7 +117,23 @@ public class LoggedInCommands extends ServerCommands {
 			//Get the new character object from the prompt and add it to the user account
 			//of the logged in player.
 			PlayerCharacter userCharacter = (PlayerCharacter)charPrompt.getResults();
-			serverThread.getUser().addCharacter(userCharacter);
+			if(!serverThread.getUser().addCharacter(userCharacter, serverThread.getParentThread().getNameIndex())) {
+				return ERROR_CHARACTER_NAME_TAKEN;
+			}
+			
+			//Journal the character so it survives a crash before the account is saved,
+			//and only report it created once the journal has it on disk.
+			Journal journal = serverThread.getParentThread().getJournal();
+			if(journal != null) {
+				long record = journal.characterAdded(serverThread.getUser().getAccountName(), userCharacter);
+				if(record == 0 || !journal.awaitCommit(record, JOURNAL_TIMEOUT)) {
+					//Save the account now instead, so the character is on disk before it is reported created.
+					serverThread.println("Character "+userCharacter.getName()+" could not be journaled. Saving its account now.");
+					if(!serverThread.getParentThread().getSaveThread().saveNow(serverThread.getUser())) {
+						return ERROR_CHARACTER_NOT_SAVED;
+					}
+				}
+			}
 			
 			return userCharacter.getName()+" was created successfully.";
 		}
@@ -155,38 +180,30 @@ public class LoggedInCommands extends ServerCommands {
 				//Move this thread into the playing state.
 				serverThread.switchServerState(ServerState.PLAYING);
 				
-				//Get the room object that was saved to the player during their last game session.
-				Room playerLastRoomFromFile = player.getCurrentRoom();
+				//Get the name of the room the player was in during their last game session.
+				String playerLastRoomFromFile = player.getCurrentRoomKey();
 				
-				//Move the player object into the starting room if they are not currently in one.
-				if(playerLastRoomFromFile == null) {
-					player.setCurrentRoom(world.getStartingRoom());
+				//Look up the room the player was in last by the room name from the account file.
+				Room playerStartRoom = null;
+				if(playerLastRoomFromFile != null) {
+					playerStartRoom = world.getRoom(playerLastRoomFromFile);
 				}
-				//Otherwise, move the player object into the room they were in last.
-				else {
-					//Update the pointer to the player's last room based on the room name from the account file.
-					Room playerStartRoom = world.getRoom(playerLastRoomFromFile.getName());
-					//If the room name from the file was not found, place the player into the default starting room.
-					if(playerStartRoom == null) {
-						player.setCurrentRoom(world.getStartingRoom());
-					}
-					//Otherwise, the room from the file was found in the GameWorld
-					//and the pointer has been updated. Set the player's room.
-					else {
-						player.setCurrentRoom(playerStartRoom);
-					}
+				//Place the player into the default starting room if they have never
+				//been in a room or the room from the file was not found.
+				if(playerStartRoom == null) {
+					playerStartRoom = world.getStartingRoom();
 				}
+				player.setCurrentRoom(playerStartRoom);
 				
-				//Enter either the starting room for the GameWorld
-				//or the last room the player was in last time they played.
-				//Broadcast the enter message to the client.
-				world.move(player, player.getCurrentRoom());
-				
-				//Broadcast player login message to everyone in the room the player appears in.
-				serverThread.broadcastRoom(player.getCurrentRoom(), player.getName()+" has appeared.");
-				
-				//Display the enter message to the client.
-				serverThread.write("You have entered "+player.getCurrentRoom().getName()+".");
+				//With game loops, the loop that owns the room moves the player in,
+				//and the player's commands wait until it has.
+				GameLoopGroup gameLoops = serverThread.getParentThread().getGameLoops();
+				if(gameLoops.isRunningCommands()) {
+					gameLoops.enterWorld(serverThread, world, playerStartRoom);
+				}
+				else {
+					serverThread.enterWorld(world, playerStartRoom);
+				}
 			}
 			//Otherwise display error message.
 			else {
@@ -6,8 +6,10 @@ import java.util.Random;
 
 import com.guimonsters.network.Directive;
 import com.guimonsters.network.Packet;
+import com.guimonsters.server.GameLoopGroup;
 import com.guimonsters.server.MudServerThread;
 import com.guimonsters.server.game.Actor;
+import com.guimonsters.server.game.Exit;
 import com.guimonsters.server.game.PlayerCharacter;
 import com.guimonsters.server.game.Room;
 
@@ -57,7 +59,7 @@ public class PlayingCommands extends ServerCommands {
 		super(thread);
 		
 		//Override parent strings here.
-		super.promptString = this.promptString;
+		super.setPrompt(this.promptString);
 		
 		//Main State commands
 		Command strongSilentType = new Command(this, "strongSilentType",
@@ -145,9 +147,23 @@ public class PlayingCommands extends ServerCommands {
 	 * @return description The description entered room.
 	 */
 	public String go(String exitName) {
+		Room room = player.getCurrentRoom();
+		
+		//A move into a zone owned by another game loop is handed off to that loop,
+		//which sends the player the results once they have entered the room.
+		GameLoopGroup gameLoops = this.serverThread.getParentThread().getGameLoops();
+		if(gameLoops.isRunningCommands()) {
+			Exit exit = room.getExit(exitName);
+			Room destination = exit == null ? null : exit.getDestination();
+			if(destination != null && gameLoops.getOwner(destination) != gameLoops.getOwner(room)) {
+				gameLoops.handOff(this.serverThread, room, destination);
+				return "";
+			}
+		}
+		
 		//Pass the exit name entered by the user to the player's current room.
 		//Return results to the client.
-		return player.getCurrentRoom().exit(player, exitName);
+		return room.exit(player, exitName);
 	}
 	
 	/**
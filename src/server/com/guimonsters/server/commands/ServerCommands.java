@@ -6,7 +6,9 @@ import java.util.Iterator;
 import java.util.Map;
 
 import com.guimonsters.network.Directive;
+import com.guimonsters.network.EncodedPacket;
 import com.guimonsters.network.Packet;
+import com.guimonsters.server.ConstantPackets;
 import com.guimonsters.server.MudServerThread;
 import com.guimonsters.server.ServerState;
 import com.guimonsters.server.game.Account;
@@ -34,8 +36,11 @@ public class ServerCommands {
 	//Message returned when the given command is empty.
 	protected String emptyCommandString = "You'll have to speak up!";
 	
-	//The Default master prompt string. Child classes will override this.
+	//The Default master prompt string. Child classes will override this with setPrompt().
 	protected String promptString;
+	//The prompt as shared packets, sent as is and to clear the game log.
+	protected EncodedPacket promptPacket;
+	protected EncodedPacket clearPacket;
 	
 	//Command description strings
 	protected String DESCRIPTION_HELP = "Displays this help message.";
@@ -169,13 +174,29 @@ public class ServerCommands {
 		return results;
 	}
 	
+	/**
+	 * Set the default prompt for the game state, and the shared packets that send it.
+	 * @param prompt The prompt String.
+	 */
+	protected void setPrompt(String prompt) {
+		this.promptString = prompt;
+		this.promptPacket = ConstantPackets.register(prompt);
+		this.clearPacket = ConstantPackets.register(prompt, Directive.CLEAR_LOG);
+	}
+	
 	/**
 	 * Send the default prompt for the current game state
 	 * to the client.
 	 */
 	public void prompt() {
 		
-		boolean success = serverThread.write(this.promptString);
+		boolean success;
+		if(this.promptPacket != null) {
+			success = serverThread.write(this.promptPacket);
+		}
+		else {
+			success = serverThread.write(this.promptString);
+		}
 		
 		//If write fails, print error to server screen
 		if(!success) {
@@ -221,15 +242,21 @@ public class ServerCommands {
 	 * directive to clear the game log.
 	 */
 	public void clearGameLog() {
-		Packet clearPacket = new Packet(this.promptString, Directive.CLEAR_LOG);
-		serverThread.write(clearPacket);
+		//Every session in the same state sends the same prompt, so share one packet.
+		if(this.clearPacket != null) {
+			serverThread.write(this.clearPacket);
+		}
+		else {
+			Packet clearPacket = new Packet(this.promptString, Directive.CLEAR_LOG);
+			serverThread.write(clearPacket);
+		}
 	}
 	
 	/**
 	 * Logs the user out of the game and results in termination of the server thread.
 	 */
 	public void logOut() {
-		serverThread.logOut("Goodbye!");
+		serverThread.logOut(ConstantPackets.GOODBYE);
 	}
 	
 	/**
@@ -246,6 +273,8 @@ public class ServerCommands {
 		Account user = new Account(params[0], params[1]);
 		
 		if(user.create()) {
+			serverThread.getParentThread().getAccountCache().add(user);
+			
 			//Log account creation.
 			serverThread.println("Account file created for "+user.getAccountName()+". New account logging in.");
 			
@@ -283,20 +312,19 @@ public class ServerCommands {
 		
 		//Parse argument string for expected account parameters.
 		String params[] = args.split(" ");
-		//Create an account object with with given parameters.
-		Account user = new Account(params[0], params[1]);
+		String accountName = params[0];
 		
 		//Print attempted connection method.
-		serverThread.println(user.getAccountName()+" is connecting from "+serverThread.getClientAddress());
+		serverThread.println(accountName+" is connecting from "+serverThread.getClientAddress());
 		
 		//Get all accounts currently logged into the server.
 		HashMap<String, Account> loggedInAccounts = serverThread.getLoggedInAccounts();
 		
 		//If the user supplied account is in loggedInAccounts, then the user supplied account
 		//is already logged in.
-		if(loggedInAccounts.containsKey(user.getAccountName().toLowerCase())) {
+		if(loggedInAccounts.containsKey(accountName.toLowerCase())) {
 			
-			serverThread.println(user.getAccountName()+" failed to connect. Account is already connected.");
+			serverThread.println(accountName+" failed to connect. Account is already connected.");
 			
 			//Write a login failed packet to the client.
 			Packet response = new Packet(ERROR_LOGIN_ACCOUNT_LOGGED_IN, Directive.LOGIN_FALSE);
@@ -307,8 +335,12 @@ public class ServerCommands {
 		}
 		else {
 			
-			//Attempt to log the user in.
-			if(user.logIn()) {
+			//An account that just logged out may not have been written yet.
+			serverThread.getParentThread().getSaveThread().awaitLoggedOut(accountName);
+			
+			//Attempt to log the user in, from the account cache if it holds the account.
+			Account user = serverThread.getParentThread().getAccountCache().logIn(accountName, params[1]);
+			if(user != null) {
 				
 				//Print connection success message.
 				serverThread.println(user.getAccountName()+" has connected.");
@@ -327,7 +359,7 @@ public class ServerCommands {
 			//User login failed.
 			else {
 				//Print connection failed message.
-				serverThread.println(user.getAccountName()+" failed to connect.");
+				serverThread.println(accountName+" failed to connect.");
 				
 				//Write a login failed packet to the client to indicate failed login.
 				Packet response = new Packet(ERROR_LOGIN_FAILED, Directive.LOGIN_FALSE);
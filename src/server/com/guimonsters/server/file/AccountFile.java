@@ -0,0 +1,146 @@
+package com.guimonsters.server.file;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Serializer for account files. The account name and password hash are
+ * written in a small header in front of the serialized account, so a login
+ * can be checked by reading only the header. The characters are only
+ * deserialized once the password has matched.
+ *
+ * Account files written before the header existed hold only the serialized
+ * account. They are still read, and get a header the next time they are saved.
+ *
+ * @author Elijah Atkinson
+ * @version 1.00, 2013-05-12
+ */
+public class AccountFile extends Serializer {
+
+	//Header marker "GMAC", which can never start a serialization stream.
+	private static final int MAGIC = 0x474D4143;
+	private static final int VERSION = 1;
+	//The header is never bigger than this, two short strings and a few bytes.
+	private static final int HEADER_READ_LIMIT = 1024;
+
+	//Data Fields
+	private String accountName;
+	private String passwordHash;
+
+	/**
+	 * Create an AccountFile for writing an account.
+	 * @param file The account file.
+	 * @param account The account object to serialize.
+	 * @param accountName The account name to write in the header.
+	 * @param passwordHash The password hash to write in the header.
+	 */
+	public AccountFile(File file, Object account, String accountName, String passwordHash) {
+		super(file, account);
+		this.accountName = accountName;
+		this.passwordHash = passwordHash;
+	}
+
+	/**
+	 * Create an AccountFile for reading an account.
+	 * @param file The account file.
+	 */
+	public AccountFile(File file) {
+		super(file);
+	}
+
+	/**
+	 * Write the header and the serialized account.
+	 * @param stream The stream to write to.
+	 * @throws IOException
+	 */
+	@Override
+	protected void write(OutputStream stream) throws IOException {
+		DataOutputStream out = new DataOutputStream(stream);
+		out.writeInt(MAGIC);
+		out.writeByte(VERSION);
+		out.writeUTF(this.accountName);
+		out.writeUTF(this.passwordHash);
+		ObjectOutputStream oos = new ObjectOutputStream(out);
+		oos.writeObject(this.serialize_object);
+		oos.flush();
+	}
+
+	/**
+	 * Read only the header of the account file.
+	 * Use getAccountName() and getPasswordHash() afterwards.
+	 * @return header False if the file has no header and must be deserialized to check a login.
+	 * @throws IOException
+	 */
+	public boolean readHeader() throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(this.file.getAbsolutePath()), HEADER_READ_LIMIT));
+		try {
+			return this.readHeader(in);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Read the account from the file, skipping the header if there is one.
+	 * @return account The deserialized account object.
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	@Override
+	public Object deserialize() throws IOException, ClassNotFoundException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(this.file.getAbsolutePath())));
+		try {
+			//Files without a header start with the serialized account.
+			in.mark(HEADER_READ_LIMIT);
+			if(!this.readHeader(in)) {
+				in.reset();
+			}
+			ObjectInputStream ois = new ObjectInputStream(in);
+			this.serialize_object = ois.readObject();
+			return this.serialize_object;
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Read the header from the start of a stream.
+	 * @param in The stream positioned at the start of the file.
+	 * @return header True if a header was read, false if the file has none.
+	 * @throws IOException
+	 */
+	private boolean readHeader(DataInputStream in) throws IOException {
+		if(in.readInt() != MAGIC) {
+			return false;
+		}
+		int version = in.readUnsignedByte();
+		if(version != VERSION) {
+			throw new IOException("Unknown account file version "+version+" in "+this.file+".");
+		}
+		this.accountName = in.readUTF();
+		this.passwordHash = in.readUTF();
+		return true;
+	}
+
+	//Getters
+
+	public String getAccountName() {
+		return this.accountName;
+	}
+
+	public String getPasswordHash() {
+		return this.passwordHash;
+	}
+}
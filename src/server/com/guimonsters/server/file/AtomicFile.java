@@ -0,0 +1,177 @@
+package com.guimonsters.server.file;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Replaces a file in a way that survives a crash.
+ * The new contents are written to a temporary file next to the file,
+ * synced to disk, and then renamed over the file. A crash at any point
+ * leaves either the whole old file or the whole new file, never part of one.
+ *
+ * The rename is only durable once the directory holding the file has been synced.
+ * A SyncBatch collects the directories of many writes and syncs each of them once,
+ * so saving many files in a row costs one directory sync instead of one per file.
+ *
+ * @author Elijah Atkinson
+ * @version 1.00, 2013-05-12
+ */
+public class AtomicFile {
+
+	private static final String TEMP_EXTENSION = ".tmp";
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	//Data Fields
+	private File file;
+	private File tempFile;
+	private FileOutputStream fileOut;
+	private OutputStream out;
+
+	/**
+	 * Create an AtomicFile for replacing a file.
+	 * @param file The file to replace.
+	 */
+	public AtomicFile(File file) {
+		this.file = file.getAbsoluteFile();
+		this.tempFile = new File(this.file.getPath()+TEMP_EXTENSION);
+	}
+
+	/**
+	 * Open the temporary file for the new contents.
+	 * Call finishWrite() once everything has been written, or failWrite() if writing failed.
+	 * @return out The buffered stream to write the new contents to.
+	 * @throws IOException If the temporary file can not be created.
+	 */
+	public OutputStream startWrite() throws IOException {
+		this.file.getParentFile().mkdirs();
+		this.fileOut = new FileOutputStream(this.tempFile);
+		this.out = new BufferedOutputStream(this.fileOut, BUFFER_SIZE);
+		return this.out;
+	}
+
+	/**
+	 * Sync the new contents to disk and rename them over the file.
+	 * @param batch The SyncBatch that syncs the directory later, or null to sync it now.
+	 * @throws IOException If the contents could not be synced or renamed. The old file is kept.
+	 */
+	public void finishWrite(SyncBatch batch) throws IOException {
+		try {
+			this.out.flush();
+			this.fileOut.getFD().sync();
+			this.out.close();
+		}
+		catch (IOException e) {
+			this.failWrite();
+			throw e;
+		}
+
+		try {
+			Files.move(this.tempFile.toPath(), this.file.toPath(),
+					StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (AtomicMoveNotSupportedException e) {
+			Files.move(this.tempFile.toPath(), this.file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+
+		if(batch != null) {
+			batch.add(this.file.getParentFile());
+		}
+		else {
+			syncDirectory(this.file.getParentFile());
+		}
+	}
+
+	/**
+	 * Throw away the temporary file after a failed write. The old file is kept.
+	 */
+	public void failWrite() {
+		try {
+			this.out.close();
+		}
+		catch (IOException e) {
+			//The temporary file is deleted either way.
+		}
+		this.tempFile.delete();
+	}
+
+	/**
+	 * Sync a directory, so the files renamed into it stay renamed after a crash.
+	 * Some systems can not sync a directory, there renames are left to the file system.
+	 * @param directory The directory to sync.
+	 */
+	public static void syncDirectory(File directory) {
+		try {
+			FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+			try {
+				channel.force(true);
+			}
+			finally {
+				channel.close();
+			}
+		}
+		catch (IOException e) {
+			//Directories can not be opened for syncing on every system.
+		}
+	}
+
+	//Getters
+
+	public File getFile() {
+		return this.file;
+	}
+
+	/**
+	 * Collects the directories of several writes and syncs each of them once.
+	 */
+	public static class SyncBatch {
+
+		private Set<File> directories = new LinkedHashSet<File>();
+		private int files;
+		private long syncs;
+
+		private synchronized void add(File directory) {
+			this.directories.add(directory);
+			this.files++;
+		}
+
+		/**
+		 * Sync every directory written to since the last sync.
+		 * @return files The number of files made durable by this sync.
+		 */
+		public int sync() {
+			File[] pending;
+			int synced;
+			synchronized (this) {
+				pending = this.directories.toArray(new File[this.directories.size()]);
+				synced = this.files;
+				this.directories.clear();
+				this.files = 0;
+			}
+			for(File directory : pending) {
+				syncDirectory(directory);
+			}
+			synchronized (this) {
+				this.syncs += pending.length;
+			}
+			return synced;
+		}
+
+		/**
+		 * Get the number of directory syncs this batch has made.
+		 * @return syncs The number of directory syncs.
+		 */
+		public synchronized long getSyncs() {
+			return this.syncs;
+		}
+	}
+}
@@ -0,0 +1,739 @@
+package com.guimonsters.server.file;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import com.guimonsters.server.game.Account;
+import com.guimonsters.server.game.Actor;
+import com.guimonsters.server.game.Exit;
+import com.guimonsters.server.game.GameObject;
+import com.guimonsters.server.game.GameWorld;
+import com.guimonsters.server.game.PlayerCharacter;
+import com.guimonsters.server.game.Room;
+import com.guimonsters.server.game.Visibility;
+
+/**
+ * Append-only journal of the changes made to the GameWorld and of new characters,
+ * so a crash does not lose the changes made since the world was last saved.
+ *
+ * A change is encoded and queued by the thread that makes it, which does not wait
+ * for the disk. The journal thread writes every queued record in one batch and
+ * forces it to disk with a single sync, so many changes share one sync (group commit).
+ *
+ * The journal is kept in segment files. A checkpoint starts a new segment while it
+ * captures the world, and once the world has been written it deletes the older
+ * segments, since the written world holds their changes.
+ * New characters are saved with their accounts rather than with the world, so the
+ * journal keeps the record of every character whose account has not been saved since,
+ * and writes it again at the start of each new segment until the account is saved.
+ * On startup the segments left by a crash are replayed on top of the saved world.
+ * Every record has a checksum, and replay stops at a record that was only partly
+ * written when the server stopped.
+ *
+ * @author Elijah Atkinson
+ * @version 1.00, 2013-05-12
+ */
+public class Journal extends Thread {
+
+	//Record types.
+	public static final byte ITEM_MOVED = 1;
+	public static final byte ACTOR_MOVED = 2;
+	public static final byte EXIT_MOVED = 3;
+	public static final byte ITEM_ADDED = 4;
+	public static final byte ITEM_REMOVED = 5;
+	public static final byte ROOM_ADDED = 6;
+	public static final byte ROOM_REMOVED = 7;
+	public static final byte CHARACTER_ADDED = 8;
+
+	//Segment header marker "GMJL".
+	private static final int MAGIC = 0x474D4A4C;
+	private static final int VERSION = 1;
+	private static final String SEGMENT_PREFIX = "journal-";
+	private static final String SEGMENT_EXTENSION = ".log";
+	//How long to wait before writing a batch again after a failed write.
+	private static final long RETRY_DELAY_MILLIS = 1000;
+
+	//Data fields
+	private File directory;
+	private String worldName;
+	private long commitDelayNanos;
+	private Object writeLock;
+	private ArrayList<byte[]> pending;
+	private FileChannel channel;
+	private long segment;
+	private long segmentBytes;
+	private volatile boolean running;
+	private long records;
+	private long committed;
+	private long failed;
+	private long commits;
+	private ArrayList<UnsavedCharacter> unsavedCharacters;
+	private long replayed;
+
+	/**
+	 * Create a journal. Call open() to replay old segments and start a new one,
+	 * then start() to start writing.
+	 * @param directory The directory holding the journal segments.
+	 * @param worldName The file name of the world, written in every segment.
+	 * @param commitDelayMillis How long to collect records before writing a batch.
+	 */
+	public Journal(File directory, String worldName, long commitDelayMillis) {
+		super("Journal");
+		this.directory = directory;
+		this.worldName = worldName;
+		this.commitDelayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, commitDelayMillis));
+		this.writeLock = new Object();
+		this.pending = new ArrayList<byte[]>();
+		this.unsavedCharacters = new ArrayList<UnsavedCharacter>();
+		this.running = true;
+	}
+
+	/**
+	 * Replay the segments of the world left by the last run, then start a new segment.
+	 * If anything was replayed, the world is saved before the old segments are deleted.
+	 * @param world The GameWorld loaded from its last saved file.
+	 * @return replayed The number of records replayed.
+	 * @throws IOException If the new segment can not be created.
+	 */
+	public long open(GameWorld world) throws IOException {
+		this.directory.mkdirs();
+		long[] segments = this.listSegments();
+		for(long old : segments) {
+			this.replayed += this.replay(this.segmentFile(old), world);
+		}
+		this.segment = segments.length == 0 ? 1 : segments[segments.length - 1] + 1;
+		this.openSegment();
+
+		if(this.replayed == 0 || world.save()) {
+			this.deleteSegmentsBefore(this.segment);
+		}
+		return this.replayed;
+	}
+
+	/**
+	 * Journal main method. Writes queued records in batches.
+	 */
+	public void run() {
+		while(this.running) {
+			synchronized (this) {
+				while(this.running && this.pending.isEmpty()) {
+					try {
+						this.wait();
+					}
+					catch (InterruptedException e) {
+						//Check running again.
+					}
+				}
+			}
+
+			//Give other threads a moment to add to the batch.
+			if(this.commitDelayNanos > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(this.commitDelayNanos);
+				}
+				catch (InterruptedException e) {
+					//Write now.
+				}
+			}
+
+			try {
+				this.commit();
+			}
+			catch (IOException e) {
+				System.err.println("Could not write the journal: "+e.getMessage());
+				//Wait a while before trying the batch again.
+				try {
+					TimeUnit.MILLISECONDS.sleep(RETRY_DELAY_MILLIS);
+				}
+				catch (InterruptedException e2) {
+					//Try again now.
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write every queued record to the current segment and sync it.
+	 * If the write fails, the threads waiting for the records are told at once,
+	 * and the batch is cut off the segment and queued to be written again.
+	 * @throws IOException
+	 */
+	private void commit() throws IOException {
+		synchronized (this.writeLock) {
+			ArrayList<byte[]> batch;
+			long last;
+			synchronized (this) {
+				if(this.pending.isEmpty()) {
+					return;
+				}
+				batch = this.pending;
+				last = this.records;
+				this.pending = new ArrayList<byte[]>();
+			}
+
+			long start = this.channel.position();
+			try {
+				this.segmentBytes += this.write(batch);
+			}
+			catch (IOException e) {
+				this.failed = last;
+				this.writeLock.notifyAll();
+
+				//Without the cut, replay would stop at the part of the batch that was written.
+				this.channel.truncate(start);
+				this.channel.position(start);
+				synchronized (this) {
+					this.pending.addAll(0, batch);
+				}
+				throw e;
+			}
+			this.commits++;
+
+			//Wake the threads waiting for their records.
+			this.committed = last;
+			this.writeLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Write records to the current segment and sync it.
+	 * @param batch The encoded records.
+	 * @return size The number of bytes written.
+	 * @throws IOException
+	 */
+	private int write(List<byte[]> batch) throws IOException {
+		int size = 0;
+		for(byte[] record : batch) {
+			size += record.length;
+		}
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		for(byte[] record : batch) {
+			buffer.put(record);
+		}
+		buffer.flip();
+		while(buffer.hasRemaining()) {
+			this.channel.write(buffer);
+		}
+		this.channel.force(false);
+		return size;
+	}
+
+	/**
+	 * Wait until a record has been written to disk.
+	 * @param record The number of the record, as returned when it was recorded.
+	 * @param timeoutMillis The most milliseconds to wait.
+	 * @return committed True if the record is on disk, false if writing it failed or the wait timed out.
+	 */
+	public boolean awaitCommit(long record, long timeoutMillis) {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		synchronized (this.writeLock) {
+			while(this.committed < record) {
+				if(this.failed >= record) {
+					return false;
+				}
+				long wait = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+				if(wait <= 0) {
+					return false;
+				}
+				try {
+					this.writeLock.wait(wait);
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * Write the remaining records and stop the journal thread.
+	 */
+	public void terminate() {
+		this.running = false;
+		synchronized (this) {
+			this.notify();
+		}
+		try {
+			this.join();
+			this.commit();
+			synchronized (this.writeLock) {
+				this.channel.close();
+			}
+		}
+		catch (InterruptedException | IOException e) {
+			System.err.println("Could not close the journal: "+e.getMessage());
+		}
+	}
+
+	//Recording changes
+	//------------------------------
+
+	public void itemMoved(GameObject item, Room start, Room destination) {
+		this.append(ITEM_MOVED, null, item.getName(), start.getName(), destination.getName());
+	}
+
+	public void actorMoved(Actor actor, Room start, Room destination) {
+		this.append(ACTOR_MOVED, null, actor.getName(), start.getName(), destination.getName());
+	}
+
+	public void exitMoved(Exit exit, Room start, Room destination) {
+		this.append(EXIT_MOVED, null, exit.getName(), start.getName(), destination.getName());
+	}
+
+	public void itemAdded(Room room, GameObject item) {
+		Visibility visibility = item.getVisibilityLevel();
+		this.append(ITEM_ADDED, null, room.getName(), item.getName(), item.getDescription(),
+				visibility == null ? null : visibility.name());
+	}
+
+	public void itemRemoved(Room room, GameObject item) {
+		this.append(ITEM_REMOVED, null, room.getName(), item.getName());
+	}
+
+	public void roomAdded(String name, String description) {
+		this.append(ROOM_ADDED, null, name, description);
+	}
+
+	public void roomRemoved(String name) {
+		this.append(ROOM_REMOVED, null, name);
+	}
+
+	/**
+	 * Record a new character, so it is not lost if the server stops before its account is saved.
+	 * The record is kept in every new segment until accountSaved() is called for a later record.
+	 * @param accountName The name of the account the character was added to.
+	 * @param character The new PlayerCharacter.
+	 * @return record The number of the record to pass to awaitCommit(), or 0 if it could not be recorded.
+	 */
+	public long characterAdded(String accountName, PlayerCharacter character) {
+		byte[] record;
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(character);
+			out.close();
+			record = this.encode(CHARACTER_ADDED, bytes.toByteArray(), accountName);
+		}
+		catch (IOException e) {
+			record = null;
+		}
+		if(record == null) {
+			System.err.println("Could not journal character "+character.getName()+".");
+			return 0;
+		}
+		synchronized (this) {
+			long number = this.queue(record);
+			this.unsavedCharacters.add(new UnsavedCharacter(accountName, number, record));
+			return number;
+		}
+	}
+
+	/**
+	 * Forget the new characters of an account that has been saved and synced to disk,
+	 * so their records are left behind with the old segments.
+	 * @param accountName The name of the saved account.
+	 * @param record The number of the last record that was made before the account was saved,
+	 * 				 from getRecords().
+	 */
+	public synchronized void accountSaved(String accountName, long record) {
+		Iterator<UnsavedCharacter> characters = this.unsavedCharacters.iterator();
+		while(characters.hasNext()) {
+			UnsavedCharacter character = characters.next();
+			if(character.number <= record && character.accountName.equals(accountName)) {
+				characters.remove();
+			}
+		}
+	}
+
+	/**
+	 * Encode a record and queue it for the journal thread.
+	 * @param type The record type.
+	 * @param object Serialized object bytes, or null.
+	 * @param fields The strings of the record. Null strings are allowed.
+	 */
+	private void append(byte type, byte[] object, String... fields) {
+		byte[] record = this.encode(type, object, fields);
+		if(record != null) {
+			this.queue(record);
+		}
+	}
+
+	/**
+	 * Queue an encoded record for the journal thread.
+	 * @param record The encoded record.
+	 * @return number The number of the record.
+	 */
+	private synchronized long queue(byte[] record) {
+		this.pending.add(record);
+		this.records++;
+		this.notify();
+		return this.records;
+	}
+
+	/**
+	 * Encode a record.
+	 * A record is its length, its type, its strings, an optional object, and a checksum.
+	 * @param type The record type.
+	 * @param object Serialized object bytes, or null.
+	 * @param fields The strings of the record. Null strings are allowed.
+	 * @return record The encoded record, or null if it could not be encoded.
+	 */
+	private byte[] encode(byte type, byte[] object, String... fields) {
+		byte[] body;
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeByte(type);
+			out.writeByte(fields.length);
+			for(String field : fields) {
+				out.writeBoolean(field != null);
+				if(field != null) {
+					out.writeUTF(field);
+				}
+			}
+			out.writeInt(object == null ? 0 : object.length);
+			if(object != null) {
+				out.write(object);
+			}
+			body = bytes.toByteArray();
+		}
+		catch (IOException e) {
+			//Only a string too long for the record.
+			System.err.println("Could not journal a change: "+e.getMessage());
+			return null;
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(body);
+		ByteBuffer record = ByteBuffer.allocate(body.length + 8);
+		record.putInt(body.length);
+		record.put(body);
+		record.putInt((int) crc.getValue());
+		return record.array();
+	}
+
+	//Segments
+	//------------------------------
+
+	/**
+	 * Write the queued records to the current segment and start a new one.
+	 * A checkpoint calls this while the world is locked, so every change is
+	 * either part of the checkpoint or in the new segment.
+	 * The new segment starts with the characters whose accounts have not been saved yet.
+	 * @return segment The number of the new segment.
+	 * @throws IOException
+	 */
+	public long rotate() throws IOException {
+		synchronized (this.writeLock) {
+			this.commit();
+			this.channel.close();
+			this.segment++;
+			this.openSegment();
+
+			ArrayList<byte[]> carried = new ArrayList<byte[]>();
+			synchronized (this) {
+				for(UnsavedCharacter character : this.unsavedCharacters) {
+					carried.add(character.record);
+				}
+			}
+			if(!carried.isEmpty()) {
+				this.write(carried);
+			}
+			return this.segment;
+		}
+	}
+
+	private void openSegment() throws IOException {
+		File file = this.segmentFile(this.segment);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(0);
+		this.channel = raf.getChannel();
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeUTF(this.worldName);
+		ByteBuffer header = ByteBuffer.wrap(bytes.toByteArray());
+		while(header.hasRemaining()) {
+			this.channel.write(header);
+		}
+		this.channel.force(true);
+		this.segmentBytes = 0;
+	}
+
+	/**
+	 * Delete the segments whose changes have been written to the world.
+	 * @param segment The segment started by the checkpoint that was written.
+	 */
+	public void deleteSegmentsBefore(long segment) {
+		for(long old : this.listSegments()) {
+			if(old < segment && !this.segmentFile(old).delete()) {
+				System.err.println("Could not delete "+this.segmentFile(old)+".");
+			}
+		}
+	}
+
+	private File segmentFile(long segment) {
+		return new File(this.directory, SEGMENT_PREFIX+segment+SEGMENT_EXTENSION);
+	}
+
+	/**
+	 * Find the numbers of the segments in the journal directory.
+	 * @return segments The segment numbers in ascending order.
+	 */
+	private long[] listSegments() {
+		File[] files = this.directory.listFiles();
+		if(files == null) {
+			return new long[0];
+		}
+		long[] segments = new long[files.length];
+		int count = 0;
+		for(File file : files) {
+			String name = file.getName();
+			if(name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_EXTENSION)) {
+				try {
+					segments[count] = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_EXTENSION.length()));
+					count++;
+				}
+				catch (NumberFormatException e) {
+					//Not a segment.
+				}
+			}
+		}
+		segments = Arrays.copyOf(segments, count);
+		Arrays.sort(segments);
+		return segments;
+	}
+
+	//Replay
+	//------------------------------
+
+	/**
+	 * Apply the records of one segment to the world and the account files.
+	 * @param file The segment file.
+	 * @param world The GameWorld to apply the records to.
+	 * @return count The number of records applied.
+	 */
+	private long replay(File file, GameWorld world) {
+		long count = 0;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+					System.err.println(file+" is not a journal segment. Skipping it.");
+					return 0;
+				}
+				String segmentWorld = in.readUTF();
+				if(!segmentWorld.equals(this.worldName)) {
+					System.err.println(file+" belongs to world "+segmentWorld+". Skipping it.");
+					return 0;
+				}
+
+				while(true) {
+					int length;
+					try {
+						length = in.readInt();
+					}
+					catch (EOFException e) {
+						break;
+					}
+					if(length <= 0 || length > (64 << 20)) {
+						System.err.println(file+" has a damaged record. Stopping the replay there.");
+						break;
+					}
+					byte[] body = new byte[length];
+					in.readFully(body);
+					CRC32 crc = new CRC32();
+					crc.update(body);
+					if(in.readInt() != (int) crc.getValue()) {
+						System.err.println(file+" has a damaged record. Stopping the replay there.");
+						break;
+					}
+					this.apply(body, world);
+					count++;
+				}
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (EOFException e) {
+			//The last record was cut off when the server stopped.
+		}
+		catch (IOException e) {
+			System.err.println("Could not replay "+file+": "+e.getMessage());
+		}
+		return count;
+	}
+
+	/**
+	 * Apply one record. Records whose rooms or objects no longer exist are skipped,
+	 * so a record that is already part of the saved world changes nothing.
+	 * @param body The record without its length and checksum.
+	 * @param world The GameWorld to apply it to.
+	 * @throws IOException
+	 */
+	private void apply(byte[] body, GameWorld world) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+		byte type = in.readByte();
+		String[] fields = new String[in.readUnsignedByte()];
+		for(int i = 0; i < fields.length; i++) {
+			fields[i] = in.readBoolean() ? in.readUTF() : null;
+		}
+		byte[] object = new byte[in.readInt()];
+		in.readFully(object);
+
+		switch (type) {
+			case ITEM_MOVED: {
+				Room start = world.getRoom(fields[1]);
+				Room destination = world.getRoom(fields[2]);
+				GameObject item = start == null ? null : start.getItem(fields[0]);
+				if(item != null && destination != null) {
+					destination.addRoomItem(item);
+					start.removeRoomItem(item);
+				}
+				break;
+			}
+			case ACTOR_MOVED: {
+				Room start = world.getRoom(fields[1]);
+				Room destination = world.getRoom(fields[2]);
+				Actor actor = start == null ? null : start.getActor(fields[0]);
+				if(actor != null && destination != null) {
+					destination.addActor(actor);
+					start.removeActor(actor);
+				}
+				break;
+			}
+			case EXIT_MOVED: {
+				Room start = world.getRoom(fields[1]);
+				Room destination = world.getRoom(fields[2]);
+				Exit exit = start == null ? null : start.getExit(fields[0]);
+				if(exit != null && destination != null) {
+					destination.addExit(exit);
+					start.removeExit(exit);
+				}
+				break;
+			}
+			case ITEM_ADDED: {
+				Room room = world.getRoom(fields[0]);
+				if(room != null) {
+					Visibility visibility = fields[3] == null ? null : Visibility.valueOf(fields[3]);
+					room.addRoomItem(new GameObject(fields[1], fields[2], visibility));
+				}
+				break;
+			}
+			case ITEM_REMOVED: {
+				Room room = world.getRoom(fields[0]);
+				GameObject item = room == null ? null : room.getItem(fields[1]);
+				if(item != null) {
+					room.removeRoomItem(item);
+				}
+				break;
+			}
+			case ROOM_ADDED:
+				world.addRoom(new Room(fields[0], fields[1]));
+				break;
+			case ROOM_REMOVED:
+				world.removeRoom(fields[0]);
+				break;
+			case CHARACTER_ADDED:
+				this.applyCharacter(fields[0], object);
+				break;
+			default:
+				System.err.println("Unknown journal record type "+type+". Skipping it.");
+				break;
+		}
+	}
+
+	/**
+	 * Add a journaled character to its account file if the account was not saved with it.
+	 * @param accountName The account the character belongs to.
+	 * @param object The serialized PlayerCharacter.
+	 */
+	private void applyCharacter(String accountName, byte[] object) {
+		Account account = new Account(new File(Account.ACCOUNT_DIRECTORY, accountName+".ser"));
+		if(!account.load()) {
+			return;
+		}
+		try {
+			ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(object));
+			PlayerCharacter character = (PlayerCharacter) in.readObject();
+			String key = character.getName().toLowerCase();
+			if(!account.getCharacters().containsKey(key)) {
+				account.getCharacters().put(key, character);
+				account.save();
+			}
+		}
+		catch (IOException | ClassNotFoundException e) {
+			System.err.println("Could not replay a character for account "+accountName+".");
+		}
+	}
+
+	//Getters and setters
+	//------------------------------
+
+	public synchronized long getRecords() {
+		return this.records;
+	}
+
+	public long getCommits() {
+		synchronized (this.writeLock) {
+			return this.commits;
+		}
+	}
+
+	public long getSegmentBytes() {
+		synchronized (this.writeLock) {
+			return this.segmentBytes;
+		}
+	}
+
+	public long getReplayed() {
+		return this.replayed;
+	}
+
+	/**
+	 * Get the number of new characters whose accounts have not been saved since.
+	 * @return unsaved The number of characters kept in every new segment.
+	 */
+	public synchronized int getUnsavedCharacters() {
+		return this.unsavedCharacters.size();
+	}
+
+	/**
+	 * The record of a new character whose account has not been saved yet.
+	 */
+	private static class UnsavedCharacter {
+
+		private String accountName;
+		private long number;
+		private byte[] record;
+
+		private UnsavedCharacter(String accountName, long number, byte[] record) {
+			this.accountName = accountName;
+			this.number = number;
+			this.record = record;
+		}
+	}
+}
@@ -5,12 +5,15 @@ package com.guimonsters.server.file;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 
 /**
+ * Reads and writes serialized objects.
+ * A file is never written in place: the object is written to a temporary
+ * file that replaces the file once it is on disk, see AtomicFile.
  * @author Curran Hamilton
  * @author Modified by Elijah Atkinson
  * @version 2.00, 2013-05-05
@@ -39,16 +42,31 @@ public class Serializer {
 	}
 	
 	/**
-	 * 
-	 * @throws IOException 
+	 * Replace the file with the serialized object, and sync it to disk.
+	 * @return success True if the file was written.
 	 */
 	public boolean serialize() {
+		return this.serialize(null);
+	}
+	
+	/**
+	 * Replace the file with the serialized object.
+	 * @param batch The SyncBatch that makes the new file durable later, or null to do it now.
+	 * @return success True if the file was written. The old file is kept otherwise.
+	 */
+	public boolean serialize(AtomicFile.SyncBatch batch) {
 		boolean success = false;
+		AtomicFile atomic = new AtomicFile(this.file);
 		try {
-			FileOutputStream fout = new FileOutputStream(this.file.getAbsolutePath());
-			ObjectOutputStream oos = new ObjectOutputStream(fout);   
-			oos.writeObject(this.serialize_object);
-			oos.close();
+			OutputStream out = atomic.startWrite();
+			try {
+				this.write(out);
+			}
+			catch(IOException | RuntimeException e) {
+				atomic.failWrite();
+				throw e;
+			}
+			atomic.finishWrite(batch);
 			success = true;
 		}
 		catch(IOException e) {
@@ -58,6 +76,17 @@ public class Serializer {
 		return success;
 	}
 	
+	/**
+	 * Write the serialized object to a stream.
+	 * @param out The stream to write to. It is closed by the caller.
+	 * @throws IOException
+	 */
+	protected void write(OutputStream out) throws IOException {
+		ObjectOutputStream oos = new ObjectOutputStream(out);
+		oos.writeObject(this.serialize_object);
+		oos.flush();
+	}
+	
 	/**
 	 * 
 	 * @throws IOException
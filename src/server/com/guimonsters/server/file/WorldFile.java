@@ -0,0 +1,522 @@
+package com.guimonsters.server.file;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import com.guimonsters.server.game.Actor;
+import com.guimonsters.server.game.Exit;
+import com.guimonsters.server.game.GameObject;
+import com.guimonsters.server.game.GameWorld;
+import com.guimonsters.server.game.Room;
+import com.guimonsters.server.game.RoomResolver;
+import com.guimonsters.server.game.Visibility;
+
+/**
+ * Reads and writes GameWorlds in the binary .world format.
+ * Unlike a serialized GameWorld, the file does not depend on the fields of
+ * the game classes, and it is read in one pass without recursing through exits.
+ *
+ * The file holds, in order:
+ *     A header: the marker "GMWD" and the format version.
+ *     A string table holding every name and description once.
+ *     A room table. Each room's id is its position in the table, and names,
+ *     descriptions and other text are stored as positions in the string table.
+ *     The exits of every room, with their destinations stored as room ids.
+ * Exits come last so that every destination room already exists when they are read.
+ *
+ * A zone of a sharded world is written in the same format, holding only the
+ * rooms of the zone. Exits into other zones store the name of their destination
+ * room instead of an id (version 2), and are resolved when they are used.
+ *
+ * Players are never written to a world file, they are saved with their accounts.
+ * Items are written as plain GameObjects.
+ *
+ * Writing is split in two steps. capture() takes the contents of every room,
+ * which is quick since rooms never change a map they have handed out, and
+ * the Snapshot it returns can then be written while the world keeps changing.
+ *
+ * @author Elijah Atkinson
+ * @version 1.00, 2013-05-12
+ */
+public class WorldFile {
+
+	//Header marker "GMWD", which can never start a serialization stream.
+	private static final int MAGIC = 0x474D5744;
+	public static final int VERSION = 2;
+	//Stands for a null string, room or visibility.
+	private static final int NONE = -1;
+	//Stands for an exit into a room in another zone. The room name follows.
+	private static final int EXTERNAL = -2;
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	//Data Fields
+	private File file;
+
+	/**
+	 * Create a WorldFile for reading or writing a world.
+	 * @param file The world file.
+	 */
+	public WorldFile(File file) {
+		this.file = file;
+	}
+
+	/**
+	 * Check if the file is in the binary world format.
+	 * Worlds saved before this format are serialized GameWorld objects.
+	 * @return binary True if the file starts with the world file header.
+	 */
+	public boolean isWorldFile() {
+		try {
+			DataInputStream in = new DataInputStream(new FileInputStream(this.file));
+			try {
+				return in.readInt() == MAGIC;
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Write a GameWorld to the file.
+	 * @param world The GameWorld to write.
+	 * @return success True if the file was written.
+	 */
+	public boolean write(GameWorld world) {
+		return this.capture(world).write();
+	}
+
+	/**
+	 * Write the rooms of one zone to the file.
+	 * Exits that lead out of the zone are written with the name of their destination.
+	 * @param zoneRooms The rooms of the zone.
+	 * @return success True if the file was written.
+	 */
+	public boolean writeZone(Collection<Room> zoneRooms) {
+		return this.captureZone(zoneRooms).write();
+	}
+
+	/**
+	 * Take the rooms of a GameWorld as they are right now, to write them later.
+	 * The world must not be changed by other threads until this returns.
+	 * @param world The GameWorld to capture.
+	 * @return snapshot The Snapshot to write to this file.
+	 */
+	public Snapshot capture(GameWorld world) {
+		//Number every room, including rooms that are only reached through exits.
+		Snapshot snapshot = new Snapshot(new HashMap<String, Room>(world.getRoomList()), world.getStartingRoom());
+		for(Room room : snapshot.roomList.values()) {
+			snapshot.add(room);
+		}
+		for(int i = 0; i < snapshot.rooms.size(); i++) {
+			for(Exit exit : snapshot.contents.get(i).getExits().values()) {
+				snapshot.add(exit.getLinkedDestination());
+			}
+		}
+		snapshot.add(snapshot.startingRoom);
+		return snapshot;
+	}
+
+	/**
+	 * Take the rooms of one zone as they are right now, to write them later.
+	 * @param zoneRooms The rooms of the zone.
+	 * @return snapshot The Snapshot to write to this file.
+	 */
+	public Snapshot captureZone(Collection<Room> zoneRooms) {
+		Snapshot snapshot = new Snapshot(null, null);
+		for(Room room : zoneRooms) {
+			snapshot.add(room);
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Write captured rooms to the file.
+	 * @param snapshot The rooms and their contents.
+	 * @param batch The SyncBatch that makes the new file durable later, or null to do it now.
+	 * @return success True if the file was written.
+	 */
+	private boolean write(Snapshot snapshot, AtomicFile.SyncBatch batch) {
+		boolean success = false;
+		ArrayList<Room> rooms = snapshot.rooms;
+		IdentityHashMap<Room, Integer> roomIds = snapshot.roomIds;
+		Map<String, Room> roomList = snapshot.roomList;
+		Room startingRoom = snapshot.startingRoom;
+
+		StringTable strings = new StringTable();
+		for(int i = 0; i < rooms.size(); i++) {
+			strings.add(rooms.get(i), snapshot.contents.get(i));
+		}
+
+		try {
+			AtomicFile atomic = new AtomicFile(this.file);
+			DataOutputStream out = new DataOutputStream(atomic.startWrite());
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				strings.write(out);
+
+				out.writeInt(rooms.size());
+				out.writeInt(startingRoom == null ? NONE : roomIds.get(startingRoom));
+				for(int i = 0; i < rooms.size(); i++) {
+					Room room = rooms.get(i);
+					Room.Contents contents = snapshot.contents.get(i);
+					out.writeBoolean(roomList == null || roomList.get(room.getName().toLowerCase()) == room);
+					out.writeInt(strings.id(room.getName()));
+					out.writeInt(strings.id(room.getDescription()));
+					this.writeObjects(out, contents.getRoomItems().values(), strings);
+					out.writeInt(contents.getActors().size());
+					for(Actor actor : contents.getActors().values()) {
+						this.writeActor(out, actor, strings);
+					}
+				}
+
+				for(Room.Contents contents : snapshot.contents) {
+					out.writeInt(contents.getExits().size());
+					for(Exit exit : contents.getExits().values()) {
+						this.writeObject(out, exit, strings);
+						Integer destination = roomIds.get(exit.getLinkedDestination());
+						if(destination != null) {
+							out.writeInt(destination);
+						}
+						else if(exit.getDestinationKey() != null) {
+							out.writeInt(EXTERNAL);
+							out.writeInt(strings.id(exit.getDestinationKey()));
+						}
+						else {
+							out.writeInt(NONE);
+						}
+					}
+				}
+				out.flush();
+			}
+			catch (IOException | RuntimeException e) {
+				atomic.failWrite();
+				throw e;
+			}
+			atomic.finishWrite(batch);
+			snapshot.bytes = out.size();
+			success = true;
+		}
+		catch (IOException e) {
+			success = false;
+			e.printStackTrace();
+		}
+		return success;
+	}
+
+	private void writeObjects(DataOutputStream out, Collection<GameObject> objects, StringTable strings) throws IOException {
+		out.writeInt(objects.size());
+		for(GameObject object : objects) {
+			this.writeObject(out, object, strings);
+		}
+	}
+
+	private void writeObject(DataOutputStream out, GameObject object, StringTable strings) throws IOException {
+		out.writeInt(strings.id(object.getName()));
+		out.writeInt(strings.id(object.getDescription()));
+		out.writeByte(object.getVisibilityLevel() == null ? NONE : object.getVisibilityLevel().ordinal());
+	}
+
+	private void writeActor(DataOutputStream out, Actor actor, StringTable strings) throws IOException {
+		this.writeObject(out, actor, strings);
+		out.writeInt(strings.id(actor.getProfession()));
+		out.writeInt(strings.id(actor.getRace()));
+		out.writeInt(strings.id(actor.getSex()));
+		out.writeInt(actor.getLevel());
+		out.writeInt(actor.getExperience());
+		out.writeInt(actor.getMoney());
+		this.writeObjects(out, actor.getInventory().getItemList(), strings);
+
+		Map<String, String> topics = actor.getConversation().getTopics();
+		out.writeInt(topics.size());
+		for(Map.Entry<String, String> topic : topics.entrySet()) {
+			out.writeInt(strings.id(topic.getKey()));
+			out.writeInt(strings.id(topic.getValue()));
+		}
+	}
+
+	/**
+	 * Read a GameWorld from the file.
+	 * @return world The GameWorld that was read. It is not associated with the file.
+	 * @throws IOException If the file is not a world file, is damaged, or is from a newer server.
+	 */
+	public GameWorld read() throws IOException {
+		GameWorld world = new GameWorld();
+		this.read(world, world);
+		return world;
+	}
+
+	/**
+	 * Read the rooms of one zone from the file.
+	 * @param resolver The RoomResolver that finds the destinations of exits out of the zone.
+	 * @return rooms The rooms of the zone.
+	 * @throws IOException If the file is not a world file, is damaged, or is from a newer server.
+	 */
+	public Room[] readZone(RoomResolver resolver) throws IOException {
+		return this.read(null, resolver);
+	}
+
+	/**
+	 * Read every room from the file in one pass.
+	 * @param world The GameWorld to add the rooms and starting room to, or null.
+	 * @param resolver The RoomResolver for exits into other zones.
+	 * @return rooms The rooms in id order.
+	 * @throws IOException
+	 */
+	private Room[] read(GameWorld world, RoomResolver resolver) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(this.file.getAbsolutePath()), BUFFER_SIZE));
+		try {
+			if(in.readInt() != MAGIC) {
+				throw new IOException(this.file+" is not a world file.");
+			}
+			int version = in.readInt();
+			if(version < 1 || version > VERSION) {
+				throw new IOException(this.file+" has world file version "+version+", this server reads up to version "+VERSION+".");
+			}
+
+			String[] strings = new String[this.readCount(in)];
+			for(int i = 0; i < strings.length; i++) {
+				byte[] bytes = new byte[this.readCount(in)];
+				in.readFully(bytes);
+				strings[i] = new String(bytes, StandardCharsets.UTF_8);
+			}
+
+			Room[] rooms = new Room[this.readCount(in)];
+			int startingRoom = in.readInt();
+			for(int i = 0; i < rooms.length; i++) {
+				boolean listed = in.readBoolean();
+				rooms[i] = new Room(this.string(strings, in.readInt()), this.string(strings, in.readInt()));
+				int itemCount = this.readCount(in);
+				for(int j = 0; j < itemCount; j++) {
+					rooms[i].addRoomItem(this.readObject(in, strings));
+				}
+				int actorCount = this.readCount(in);
+				for(int j = 0; j < actorCount; j++) {
+					rooms[i].addActor(this.readActor(in, strings));
+				}
+				if(listed && world != null) {
+					world.addRoom(rooms[i]);
+				}
+			}
+
+			for(int i = 0; i < rooms.length; i++) {
+				int exitCount = this.readCount(in);
+				for(int j = 0; j < exitCount; j++) {
+					GameObject object = this.readObject(in, strings);
+					int destination = in.readInt();
+					if(destination == EXTERNAL && version >= 2) {
+						rooms[i].addExit(new Exit(object.getName(), object.getDescription(),
+								this.string(strings, in.readInt()), resolver, object.getVisibilityLevel()));
+					}
+					else {
+						rooms[i].addExit(new Exit(object.getName(), object.getDescription(),
+								destination == NONE ? null : this.element(rooms, destination), object.getVisibilityLevel()));
+					}
+				}
+			}
+
+			if(startingRoom != NONE && world != null) {
+				world.setStartingRoom(this.element(rooms, startingRoom));
+			}
+			return rooms;
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	private GameObject readObject(DataInputStream in, String[] strings) throws IOException {
+		String name = this.string(strings, in.readInt());
+		String description = this.string(strings, in.readInt());
+		return new GameObject(name, description, this.visibility(in.readByte()));
+	}
+
+	private Actor readActor(DataInputStream in, String[] strings) throws IOException {
+		GameObject object = this.readObject(in, strings);
+		String profession = this.string(strings, in.readInt());
+		String race = this.string(strings, in.readInt());
+		String sex = this.string(strings, in.readInt());
+		Actor actor = new Actor(object.getName(), object.getDescription(), profession, race, sex,
+				in.readInt(), object.getVisibilityLevel());
+		actor.setExperience(in.readInt());
+		actor.setMoney(in.readInt());
+
+		int itemCount = this.readCount(in);
+		for(int i = 0; i < itemCount; i++) {
+			actor.getInventory().addItem(this.readObject(in, strings));
+		}
+		int topicCount = this.readCount(in);
+		for(int i = 0; i < topicCount; i++) {
+			actor.addTalkOption(this.string(strings, in.readInt()), this.string(strings, in.readInt()));
+		}
+		return actor;
+	}
+
+	/**
+	 * Read a count, making sure a damaged file can not ask for a huge array.
+	 */
+	private int readCount(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		if(count < 0) {
+			throw new IOException(this.file+" is damaged.");
+		}
+		return count;
+	}
+
+	private String string(String[] strings, int id) throws IOException {
+		return id == NONE ? null : this.element(strings, id);
+	}
+
+	private <T> T element(T[] table, int id) throws IOException {
+		if(id < 0 || id >= table.length) {
+			throw new IOException(this.file+" is damaged.");
+		}
+		return table[id];
+	}
+
+	private Visibility visibility(int ordinal) throws IOException {
+		if(ordinal == NONE) {
+			return null;
+		}
+		return this.element(Visibility.values(), ordinal);
+	}
+
+	//Getters
+
+	public File getFile() {
+		return this.file;
+	}
+
+	/**
+	 * Rooms captured for writing, numbered by id, with their contents at the time of the capture.
+	 */
+	public class Snapshot {
+
+		private ArrayList<Room> rooms = new ArrayList<Room>();
+		private ArrayList<Room.Contents> contents = new ArrayList<Room.Contents>();
+		private IdentityHashMap<Room, Integer> roomIds = new IdentityHashMap<Room, Integer>();
+		//The rooms a GameWorld finds by name, or null if all of them are.
+		private Map<String, Room> roomList;
+		private Room startingRoom;
+		private long bytes;
+
+		private Snapshot(Map<String, Room> roomList, Room startingRoom) {
+			this.roomList = roomList;
+			this.startingRoom = startingRoom;
+		}
+
+		/**
+		 * Give a room the next id if it does not have one yet, and take its contents.
+		 */
+		private void add(Room room) {
+			if(room != null && !this.roomIds.containsKey(room)) {
+				this.roomIds.put(room, this.rooms.size());
+				this.rooms.add(room);
+				this.contents.add(room.getContents());
+			}
+		}
+
+		/**
+		 * Write the captured rooms to the file.
+		 * @return success True if the file was written.
+		 */
+		public boolean write() {
+			return WorldFile.this.write(this, null);
+		}
+
+		/**
+		 * Write the captured rooms to the file, leaving the directory sync to a batch.
+		 * @param batch The SyncBatch that makes the new file durable.
+		 * @return success True if the file was written.
+		 */
+		public boolean write(AtomicFile.SyncBatch batch) {
+			return WorldFile.this.write(this, batch);
+		}
+
+		public int getRoomCount() {
+			return this.rooms.size();
+		}
+
+		/**
+		 * Get the size of the file once the snapshot has been written.
+		 * @return bytes The number of bytes written, 0 if it has not been written.
+		 */
+		public long getBytes() {
+			return this.bytes;
+		}
+	}
+
+	/**
+	 * Numbers every distinct string in a world, so each one is written once.
+	 */
+	private static class StringTable {
+
+		private HashMap<String, Integer> ids = new HashMap<String, Integer>();
+		private ArrayList<String> strings = new ArrayList<String>();
+
+		private void add(String string) {
+			if(string != null && !this.ids.containsKey(string)) {
+				this.ids.put(string, this.strings.size());
+				this.strings.add(string);
+			}
+		}
+
+		private void add(GameObject object) {
+			this.add(object.getName());
+			this.add(object.getDescription());
+		}
+
+		private void add(Room room, Room.Contents contents) {
+			this.add(room.getName());
+			this.add(room.getDescription());
+			for(GameObject item : contents.getRoomItems().values()) {
+				this.add(item);
+			}
+			for(Exit exit : contents.getExits().values()) {
+				this.add(exit);
+				this.add(exit.getDestinationKey());
+			}
+			for(Actor actor : contents.getActors().values()) {
+				this.add(actor);
+				this.add(actor.getProfession());
+				this.add(actor.getRace());
+				this.add(actor.getSex());
+				for(GameObject item : actor.getInventory().getItemList()) {
+					this.add(item);
+				}
+				for(Map.Entry<String, String> topic : actor.getConversation().getTopics().entrySet()) {
+					this.add(topic.getKey());
+					this.add(topic.getValue());
+				}
+			}
+		}
+
+		private int id(String string) {
+			return string == null ? NONE : this.ids.get(string);
+		}
+
+		private void write(DataOutputStream out) throws IOException {
+			out.writeInt(this.strings.size());
+			for(String string : this.strings) {
+				byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+		}
+	}
+}
@@ -0,0 +1,165 @@
+package com.guimonsters.server.file;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The index of a sharded world. A sharded world is a directory holding one
+ * world file per zone, and this index tells which zone each room is in,
+ * so a zone can be loaded the first time one of its rooms is needed.
+ *
+ * The index file holds the marker "GMZI", a version, the name of the
+ * starting room, and the room names of every zone. Room names are kept in lower case.
+ *
+ * @author Elijah Atkinson
+ * @version 1.00, 2013-05-12
+ */
+public class ZoneIndex {
+
+	//Header marker "GMZI".
+	private static final int MAGIC = 0x474D5A49;
+	private static final int VERSION = 1;
+
+	//Data Fields
+	private File file;
+	private String startingRoom;
+	private HashMap<String, String> roomZones;
+	private LinkedHashMap<String, ArrayList<String>> zoneRooms;
+
+	/**
+	 * Create an empty zone index.
+	 * @param file The index file.
+	 */
+	public ZoneIndex(File file) {
+		this.file = file;
+		this.startingRoom = null;
+		this.roomZones = new HashMap<String, String>();
+		this.zoneRooms = new LinkedHashMap<String, ArrayList<String>>();
+	}
+
+	/**
+	 * Add a room to a zone.
+	 * @param roomName The name of the room.
+	 * @param zoneName The name of the zone.
+	 */
+	public void put(String roomName, String zoneName) {
+		String key = roomName.toLowerCase();
+		this.roomZones.put(key, zoneName);
+		ArrayList<String> rooms = this.zoneRooms.get(zoneName);
+		if(rooms == null) {
+			rooms = new ArrayList<String>();
+			this.zoneRooms.put(zoneName, rooms);
+		}
+		rooms.add(key);
+	}
+
+	/**
+	 * Read the index file.
+	 * @throws IOException If the file is not a zone index or is damaged.
+	 */
+	public void read() throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(this.file)));
+		try {
+			if(in.readInt() != MAGIC) {
+				throw new IOException(this.file+" is not a zone index.");
+			}
+			int version = in.readInt();
+			if(version != VERSION) {
+				throw new IOException(this.file+" has zone index version "+version+", this server reads version "+VERSION+".");
+			}
+			this.roomZones.clear();
+			this.zoneRooms.clear();
+
+			String starting = in.readUTF();
+			this.startingRoom = starting.isEmpty() ? null : starting;
+			int zoneCount = in.readInt();
+			for(int i = 0; i < zoneCount; i++) {
+				String zoneName = in.readUTF();
+				int roomCount = in.readInt();
+				for(int j = 0; j < roomCount; j++) {
+					this.put(in.readUTF(), zoneName);
+				}
+			}
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Write the index file.
+	 * @return success True if the file was written.
+	 */
+	public boolean write() {
+		boolean success = false;
+		try {
+			AtomicFile atomic = new AtomicFile(this.file);
+			DataOutputStream out = new DataOutputStream(atomic.startWrite());
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeUTF(this.startingRoom == null ? "" : this.startingRoom);
+				out.writeInt(this.zoneRooms.size());
+				for(Map.Entry<String, ArrayList<String>> zone : this.zoneRooms.entrySet()) {
+					out.writeUTF(zone.getKey());
+					out.writeInt(zone.getValue().size());
+					for(String room : zone.getValue()) {
+						out.writeUTF(room);
+					}
+				}
+				out.flush();
+			}
+			catch (IOException | RuntimeException e) {
+				atomic.failWrite();
+				throw e;
+			}
+			atomic.finishWrite(null);
+			success = true;
+		}
+		catch (IOException e) {
+			success = false;
+			e.printStackTrace();
+		}
+		return success;
+	}
+
+	//Getters and setters
+	//------------------------------
+
+	/**
+	 * Get the zone a room is in.
+	 * @param roomName The name of the room, in any case.
+	 * @return zoneName The name of the zone, or null if the room is not in the index.
+	 */
+	public String getZone(String roomName) {
+		return this.roomZones.get(roomName.toLowerCase());
+	}
+
+	public String getStartingRoom() {
+		return this.startingRoom;
+	}
+
+	public void setStartingRoom(String startingRoom) {
+		this.startingRoom = startingRoom == null ? null : startingRoom.toLowerCase();
+	}
+
+	public int getZoneCount() {
+		return this.zoneRooms.size();
+	}
+
+	public int getRoomCount() {
+		return this.roomZones.size();
+	}
+
+	public File getFile() {
+		return this.file;
+	}
+}
@@ -8,10 +8,12 @@ import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
-import com.guimonsters.server.file.Serializer;
+import com.guimonsters.server.file.AccountFile;
+import com.guimonsters.server.file.AtomicFile;
 
 /**
  * An account contains the player information that the game uses for login,
@@ -27,7 +29,7 @@ public class Account implements Serializable {
 	
 	private static final long serialVersionUID = 8620369887789374381L;
 	
-	private static final String ACCOUNT_DIRECTORY = "./accounts";
+	public static final String ACCOUNT_DIRECTORY = "./accounts";
 	private static final String MESSAGE_NO_CHARACTERS = "You have no characters.";
 	private static final String MESSAGE_HAVE_CHARACTERS = "Your characters are: ";
 	
@@ -36,6 +38,8 @@ public class Account implements Serializable {
 	private String password;
 	private File accountFile;
 	private HashMap<String, PlayerCharacter> characters;
+	//Set when the account has changed since it was last saved.
+	private transient volatile boolean dirty;
 	
 	//Static Constants
 	public static final String SALT = "sdfghdsljui783289703264!#@#$%^(^*hjfgftkyo2448697*%^%(*^()itykfhg564($$(";
@@ -86,7 +90,7 @@ public class Account implements Serializable {
 	 */
 	public boolean load() {
 		boolean success = false;
-		Serializer serial = new Serializer(this.accountFile);
+		AccountFile serial = new AccountFile(this.accountFile);
 		
 		try {
 			//Load account data from the serialized file associated
@@ -136,22 +140,75 @@ public class Account implements Serializable {
 	/**
 	 * Writes serialized data of the current account object
 	 * into the account file associated with the account.
+	 * The account and its characters are marked clean first, so
+	 * changes made while the file is written are saved next time.
 	 * 
 	 * @return success The boolean indicating if the save was successful.
 	 */
 	public boolean save() {
-		//Write this account object into the accountFile.
-		Serializer serial = new Serializer(this.accountFile, this);
-		boolean success = serial.serialize();
+		return this.save(null);
+	}
+	
+	/**
+	 * Writes the account file, leaving the sync of the account directory to a batch,
+	 * so many accounts saved together share one directory sync.
+	 * @param batch The SyncBatch that makes the save durable, or null to make it durable now.
+	 * @return success The boolean indicating if the save was successful.
+	 */
+	public synchronized boolean save(AtomicFile.SyncBatch batch) {
+		this.dirty = false;
+		for(PlayerCharacter pc : this.characters.values()) {
+			pc.markClean();
+		}
+		
+		//Write this account object into the accountFile, behind the login header.
+		AccountFile serial = new AccountFile(this.accountFile, this, this.accountName, this.password);
+		boolean success;
+		try {
+			success = serial.serialize(batch);
+		}
+		catch (RuntimeException e) {
+			//Something in the account changed while it was being written.
+			success = false;
+		}
 		
+		//Try again on the next save.
+		if(!success) {
+			this.dirty = true;
+		}
 		return success;
 	}
 	
+	/**
+	 * Record that this account has changed and must be saved.
+	 */
+	public void markDirty() {
+		this.dirty = true;
+	}
+	
+	/**
+	 * Return true if the account or any of its characters has changed since it was last saved.
+	 * @return dirty The boolean indicating if the account must be saved.
+	 */
+	public synchronized boolean isDirty() {
+		if(this.dirty) {
+			return true;
+		}
+		for(PlayerCharacter pc : this.characters.values()) {
+			if(pc.isDirty()) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
 	/**
 	 * Load the account file associated with this account
 	 * and compare the file password to the user given password.
 	 * If they match, the given account name and password are valid,
 	 * log the user in and load character data from file.
+	 * The name in the file must match the given account name exactly, so on a
+	 * file system that ignores case one account is never loaded under two names.
 	 * @return success The boolean indicating whether the user can log in or not.
 	 */
 	public boolean logIn() {
@@ -161,23 +218,32 @@ public class Account implements Serializable {
 		//If the account file exists on the file system, continue.
 		if(this.accountFile.exists()) {
 			
-			Serializer serial = new Serializer(this.accountFile);
+			AccountFile serial = new AccountFile(this.accountFile);
 			
 			try {
-				//Load account data from the serialized file associated
-				//with this account object.
-				accountFromFile = (Account) serial.deserialize();
-				
-				//If the user given password matches the password from the file,
-				//then get character data from file and return true.
-				if(this.password.equals(accountFromFile.password)) {
-					success = true;
-					this.characters = accountFromFile.characters;
-			    }
-				//Passwords do not match, user can't login.
-				else {
+				//Check the password in the file header first, so a wrong password
+				//never deserializes the characters. Older files have no header.
+				if(serial.readHeader() && (!this.accountName.equals(serial.getAccountName())
+						|| !this.passwordMatches(serial.getPasswordHash()))) {
 					success = false;
 				}
+				else {
+					//Load account data from the serialized file associated
+					//with this account object.
+					accountFromFile = (Account) serial.deserialize();
+					
+					//If the user given password matches the password from the file,
+					//then get character data from file and return true.
+					if(this.accountName.equals(accountFromFile.accountName)
+							&& this.passwordMatches(accountFromFile.password)) {
+						success = true;
+						this.characters = accountFromFile.characters;
+				    }
+					//Passwords do not match, user can't login.
+					else {
+						success = false;
+					}
+				}
 			}
 			catch (IOException | ClassNotFoundException e) {
 				success = false;
@@ -194,13 +260,20 @@ public class Account implements Serializable {
 	}
 
 	/**
-	 * Adds a PlayerCharacter to the account and saves the account to file.
+	 * Adds a PlayerCharacter to the account and records its name in the character name index.
 	 * Characters are mapped to their lower case name String.
+	 * The account is saved by the ServerSaveThread like any other change.
 	 * @param pc The PlayerCharacter to add to the account.
+	 * @param names The server's CharacterNameIndex.
+	 * @return success False if another account owns the character name.
 	 */
-	public void addCharacter(PlayerCharacter pc) {
+	public synchronized boolean addCharacter(PlayerCharacter pc, CharacterNameIndex names) {
+		if(!names.commit(pc.getName(), this.accountName)) {
+			return false;
+		}
 		this.characters.put(pc.getName().toLowerCase(), pc);
-		this.save();
+		this.markDirty();
+		return true;
 	}
 	
 	/**
@@ -232,6 +305,20 @@ public class Account implements Serializable {
 		return results;
 	}
 	
+	/**
+	 * Compare this account's password hash to a hash from an account file or another login.
+	 * Takes the same time wherever the hashes differ.
+	 * @param fileHash The password hash read from the account file.
+	 * @return matches True if the hashes are equal.
+	 */
+	boolean passwordMatches(String fileHash) {
+		if(this.password == null || fileHash == null) {
+			return false;
+		}
+		return MessageDigest.isEqual(this.password.getBytes(StandardCharsets.UTF_8),
+				fileHash.getBytes(StandardCharsets.UTF_8));
+	}
+	
 	/**
 	 * Sha256 hash a string using a given salt.
 	 * @param input The user input String to hash.
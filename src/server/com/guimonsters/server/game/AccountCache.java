@@ -0,0 +1,200 @@
+package com.guimonsters.server.game;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Keeps recently used accounts in memory, so a player who logs back in does
+ * not have to wait for the account file to be read again.
+ *
+ * An account is pinned while a session is using it and is never evicted then.
+ * Once released, it stays cached until the cache holds more than its maximum
+ * size, evicting the least recently used accounts first, or until it has gone
+ * unused for the time to live. Accounts with unsaved changes are never evicted,
+ * since the save thread still has to write them.
+ *
+ * The cache holds the same Account objects the sessions use. Changes are saved
+ * by the ServerSaveThread as before, so the account files stay up to date.
+ * Accounts are cached under their exact names, as account file names are case sensitive.
+ *
+ * @author Elijah Atkinson
+ * @version 1.00, 2013-05-12
+ */
+public class AccountCache {
+
+	//Data fields
+	private int maxSize;
+	private long ttlNanos;
+	private LinkedHashMap<String, Entry> entries;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/**
+	 * Create an empty account cache.
+	 * @param maxSize The most released accounts to keep, 0 to keep none.
+	 * @param ttlNanos How long a released account is kept, in nanoseconds. 0 keeps it until it is pushed out.
+	 */
+	public AccountCache(int maxSize, long ttlNanos) {
+		this.maxSize = Math.max(0, maxSize);
+		this.ttlNanos = ttlNanos;
+		//Access order, so the first entry is always the least recently used.
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	}
+
+	/**
+	 * Log in to an account, from the cache if it is there and from its file if not.
+	 * The account is pinned until release() is called for it.
+	 * @param accountName The account name given by the client.
+	 * @param password The password given by the client.
+	 * @return account The logged in Account, or null if the account does not exist or the password is wrong.
+	 */
+	public Account logIn(String accountName, String password) {
+		Account login = new Account(accountName, password);
+		synchronized (this) {
+			Entry entry = this.entries.get(accountName);
+			if(entry != null) {
+				if(!entry.account.passwordMatches(login.getPassword())) {
+					return null;
+				}
+				entry.pins++;
+				this.hits++;
+				return entry.account;
+			}
+			this.misses++;
+		}
+
+		//Read the file without holding up other logins.
+		if(!login.logIn()) {
+			return null;
+		}
+
+		synchronized (this) {
+			//Another session may have read the same account meanwhile.
+			Entry entry = this.entries.get(accountName);
+			if(entry != null) {
+				entry.pins++;
+				return entry.account;
+			}
+			this.entries.put(accountName, new Entry(login));
+			this.evict(System.nanoTime(), false);
+		}
+		return login;
+	}
+
+	/**
+	 * Add a newly created account to the cache, pinned for the session that created it.
+	 * @param account The new Account.
+	 */
+	public synchronized void add(Account account) {
+		this.entries.put(account.getAccountName(), new Entry(account));
+		this.evict(System.nanoTime(), false);
+	}
+
+	/**
+	 * Unpin an account once its session has ended. The account stays cached.
+	 * @param account The Account the session was using.
+	 */
+	public synchronized void release(Account account) {
+		Entry entry = this.entries.get(account.getAccountName());
+		if(entry != null && entry.account == account && entry.pins > 0) {
+			entry.pins--;
+			entry.lastUsed = System.nanoTime();
+		}
+		this.evict(System.nanoTime(), false);
+	}
+
+	/**
+	 * Evict the accounts that have outlived the time to live.
+	 * @return evicted The number of accounts evicted.
+	 */
+	public synchronized int sweep() {
+		return this.evict(System.nanoTime(), true);
+	}
+
+	/**
+	 * Evict unpinned and saved accounts, least recently used first,
+	 * until the cache is small enough.
+	 * @param now The current System.nanoTime().
+	 * @param expire True to also evict every account older than the time to live.
+	 * @return evicted The number of accounts evicted.
+	 */
+	private int evict(long now, boolean expire) {
+		int evicted = 0;
+		int unpinned = 0;
+		for(Entry entry : this.entries.values()) {
+			if(entry.pins == 0) {
+				unpinned++;
+			}
+		}
+
+		Iterator<Entry> it = this.entries.values().iterator();
+		while(it.hasNext() && (unpinned > this.maxSize || expire)) {
+			Entry entry = it.next();
+			if(entry.pins > 0 || entry.account.isDirty()) {
+				continue;
+			}
+			boolean expired = this.ttlNanos > 0 && now - entry.lastUsed >= this.ttlNanos;
+			if(unpinned > this.maxSize || expired) {
+				it.remove();
+				unpinned--;
+				evicted++;
+			}
+		}
+		this.evictions += evicted;
+		return evicted;
+	}
+
+	//Getters and setters
+	//------------------------------
+
+	public synchronized int size() {
+		return this.entries.size();
+	}
+
+	/**
+	 * Get the number of cached accounts in use by a session.
+	 * @return pinned The number of pinned accounts.
+	 */
+	public synchronized int getPinnedCount() {
+		int pinned = 0;
+		for(Entry entry : this.entries.values()) {
+			if(entry.pins > 0) {
+				pinned++;
+			}
+		}
+		return pinned;
+	}
+
+	public synchronized long getHits() {
+		return this.hits;
+	}
+
+	public synchronized long getMisses() {
+		return this.misses;
+	}
+
+	public synchronized long getEvictions() {
+		return this.evictions;
+	}
+
+	public int getMaxSize() {
+		return this.maxSize;
+	}
+
+	/**
+	 * A cached account and the number of sessions using it.
+	 */
+	private static class Entry {
+
+		private Account account;
+		private int pins;
+		private long lastUsed;
+
+		private Entry(Account account) {
+			this.account = account;
+			this.pins = 1;
+			this.lastUsed = System.nanoTime();
+		}
+	}
+}
@@ -0,0 +1,359 @@
+package com.guimonsters.server.game;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of every character name on the server, mapped to the account that owns it.
+ * The index is read from a side file in the account directory when the server
+ * starts, so checking a name never has to open the account files.
+ * If the side file is missing it is rebuilt once from the account files.
+ *
+ * A name is reserved while a player is creating a character with it, so two
+ * players can not create characters with the same name. Committing the name
+ * takes it for good, and the name is appended to the side file once the account
+ * holding the character has been saved, so the side file never names a character
+ * that is not in an account file. Account files written after the side file,
+ * such as one saved just before a crash, are read again when the index is loaded.
+ * Names are kept in lower case.
+ *
+ * @author Elijah Atkinson
+ * @version 1.00, 2013-05-12
+ */
+public class CharacterNameIndex {
+
+	private static final String INDEX_FILE_NAME = "characters.index";
+	private static final String ACCOUNT_FILE_EXTENSION = ".ser";
+	private static final char SEPARATOR = '\t';
+
+	//Data fields
+	private File indexFile;
+	private ConcurrentHashMap<String, String> owners;
+	private Set<String> reserved;
+	private ArrayList<Unwritten> unwritten;
+	private long commits;
+
+	/**
+	 * Create an empty index that is saved in the given account directory.
+	 * Call load() to read the names already on the server.
+	 * @param accountDirectory The directory holding the account files.
+	 */
+	public CharacterNameIndex(File accountDirectory) {
+		this.indexFile = new File(accountDirectory, INDEX_FILE_NAME);
+		this.owners = new ConcurrentHashMap<String, String>();
+		this.reserved = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		this.unwritten = new ArrayList<Unwritten>();
+		this.commits = 0;
+	}
+
+	/**
+	 * Read the index file and the account files written after it,
+	 * or rebuild it from the account files if there is none.
+	 * @return count The number of character names in the index.
+	 */
+	public synchronized int load() {
+		this.owners.clear();
+		if(this.indexFile.isFile()) {
+			try {
+				this.read();
+				this.readNewerAccounts();
+				return this.owners.size();
+			}
+			catch (IOException e) {
+				System.err.println("Could not read "+this.indexFile+". Rebuilding it from the account files.");
+				this.owners.clear();
+			}
+		}
+		this.rebuild();
+		return this.owners.size();
+	}
+
+	/**
+	 * Read every name and owner from the index file.
+	 * @throws IOException
+	 */
+	private void read() throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(this.indexFile), StandardCharsets.UTF_8));
+		try {
+			String line;
+			while((line = in.readLine()) != null) {
+				int split = line.indexOf(SEPARATOR);
+				//Skip a line that was cut off when the server stopped.
+				if(split > 0 && split < line.length() - 1) {
+					this.owners.put(line.substring(0, split), line.substring(split + 1));
+				}
+			}
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Add the characters of the account files written since the index file was,
+	 * whose names may not have been appended to it before the server stopped.
+	 * @throws IOException
+	 */
+	private void readNewerAccounts() throws IOException {
+		long indexTime = this.indexFile.lastModified();
+		File[] accountFiles = this.indexFile.getParentFile().listFiles();
+		if(accountFiles == null) {
+			return;
+		}
+
+		Writer out = null;
+		try {
+			for(File accountFile : accountFiles) {
+				//Files written in the same clock step as the index are read too.
+				if(!accountFile.getName().endsWith(ACCOUNT_FILE_EXTENSION) || accountFile.lastModified() < indexTime) {
+					continue;
+				}
+				Account account = new Account(accountFile);
+				if(!account.load()) {
+					continue;
+				}
+				for(String name : account.getCharacters().keySet()) {
+					String key = name.toLowerCase();
+					if(this.owners.putIfAbsent(key, account.getAccountName()) == null) {
+						if(out == null) {
+							out = this.openWriter(true);
+						}
+						this.writeEntry(out, key, account.getAccountName());
+					}
+				}
+			}
+		}
+		finally {
+			if(out != null) {
+				out.close();
+			}
+		}
+		//The account files read here need not be read again next time.
+		this.indexFile.setLastModified(System.currentTimeMillis());
+	}
+
+	/**
+	 * Load every account file in the account directory once to find the
+	 * names already taken, then write a new index file.
+	 */
+	private void rebuild() {
+		File[] accountFiles = this.indexFile.getParentFile().listFiles();
+		if(accountFiles != null) {
+			for(File accountFile : accountFiles) {
+				if(!accountFile.getName().endsWith(ACCOUNT_FILE_EXTENSION)) {
+					continue;
+				}
+				Account account = new Account(accountFile);
+				if(account.load()) {
+					for(String name : account.getCharacters().keySet()) {
+						this.owners.put(name.toLowerCase(), account.getAccountName());
+					}
+				}
+			}
+		}
+
+		try {
+			Writer out = this.openWriter(false);
+			try {
+				for(Map.Entry<String, String> entry : this.owners.entrySet()) {
+					this.writeEntry(out, entry.getKey(), entry.getValue());
+				}
+			}
+			finally {
+				out.close();
+			}
+		}
+		catch (IOException e) {
+			System.err.println("Could not write "+this.indexFile+".");
+		}
+	}
+
+	/**
+	 * Check if a character name is free.
+	 * @param name The character name to check.
+	 * @return available True if no character has or is being created with the name.
+	 */
+	public boolean isAvailable(String name) {
+		return !this.owners.containsKey(name.toLowerCase());
+	}
+
+	/**
+	 * Reserve a character name for an account while the character is being created.
+	 * Only one account can hold a name, so of two players racing for the same name only one succeeds.
+	 * @param name The character name to reserve.
+	 * @param accountName The name of the account creating the character.
+	 * @return success True if the name was free and is now reserved.
+	 */
+	public boolean reserve(String name, String accountName) {
+		String key = name.toLowerCase();
+		if(this.owners.putIfAbsent(key, accountName) != null) {
+			return false;
+		}
+		this.reserved.add(key);
+		return true;
+	}
+
+	/**
+	 * Free a name that was reserved but not used.
+	 * Names that have been committed are not affected.
+	 * @param name The character name to release.
+	 * @param accountName The name of the account that reserved it.
+	 */
+	public void release(String name, String accountName) {
+		String key = name.toLowerCase();
+		if(this.reserved.remove(key)) {
+			this.owners.remove(key, accountName);
+		}
+	}
+
+	/**
+	 * Record that a character has been added to an account. The name is appended
+	 * to the index file once the account has been saved, see accountSaved().
+	 * @param name The name of the new character.
+	 * @param accountName The name of the account that owns the character.
+	 * @return success False if the name belongs to another account.
+	 */
+	public synchronized boolean commit(String name, String accountName) {
+		String key = name.toLowerCase();
+		String owner = this.owners.putIfAbsent(key, accountName);
+		if(owner != null && !owner.equals(accountName)) {
+			return false;
+		}
+		this.reserved.remove(key);
+		this.commits++;
+		this.unwritten.add(new Unwritten(key, accountName, this.commits));
+		return true;
+	}
+
+	/**
+	 * Append the names committed to an account to the index file, once the
+	 * account has been saved and synced to disk. Names that can not be written
+	 * are tried again the next time the account is saved.
+	 * @param accountName The name of the account that was saved.
+	 * @param commit The number of commits made before the account was saved, from getCommits().
+	 */
+	public synchronized void accountSaved(String accountName, long commit) {
+		ArrayList<Unwritten> saved = new ArrayList<Unwritten>();
+		for(Unwritten entry : this.unwritten) {
+			if(entry.commit <= commit && entry.accountName.equals(accountName)) {
+				saved.add(entry);
+			}
+		}
+		if(saved.isEmpty()) {
+			return;
+		}
+
+		try {
+			Writer out = this.openWriter(true);
+			try {
+				for(Unwritten entry : saved) {
+					this.writeEntry(out, entry.name, entry.accountName);
+				}
+			}
+			finally {
+				out.close();
+			}
+		}
+		catch (IOException e) {
+			//The names are still taken in memory, and the account files are read again on load.
+			System.err.println("Could not add the characters of "+accountName+" to "+this.indexFile+".");
+			return;
+		}
+		Iterator<Unwritten> it = this.unwritten.iterator();
+		while(it.hasNext()) {
+			if(saved.contains(it.next())) {
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * Open the index file for writing, creating the account directory if needed.
+	 * @param append True to add to the end of the file, false to replace it.
+	 * @return out The Writer for the index file.
+	 * @throws IOException
+	 */
+	private Writer openWriter(boolean append) throws IOException {
+		this.indexFile.getParentFile().mkdirs();
+		return new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(this.indexFile, append), StandardCharsets.UTF_8));
+	}
+
+	private void writeEntry(Writer out, String name, String accountName) throws IOException {
+		out.write(name);
+		out.write(SEPARATOR);
+		out.write(accountName);
+		out.write('\n');
+	}
+
+	//Getters and setters
+	//------------------------------
+
+	/**
+	 * Get the account that owns or is creating a character.
+	 * @param name The character name.
+	 * @return accountName The owner's account name, or null if the name is free.
+	 */
+	public String getOwner(String name) {
+		return this.owners.get(name.toLowerCase());
+	}
+
+	public int size() {
+		return this.owners.size() - this.reserved.size();
+	}
+
+	public int getReservedCount() {
+		return this.reserved.size();
+	}
+
+	/**
+	 * Get the number of names committed so far, to pass to accountSaved() once an account is saved.
+	 * @return commits The number of commits.
+	 */
+	public synchronized long getCommits() {
+		return this.commits;
+	}
+
+	/**
+	 * Get the number of committed names not yet in the index file.
+	 * @return unwritten The number of names waiting for their accounts to be saved.
+	 */
+	public synchronized int getUnwrittenCount() {
+		return this.unwritten.size();
+	}
+
+	public File getIndexFile() {
+		return this.indexFile;
+	}
+
+	/**
+	 * A committed name waiting for its account to be saved.
+	 */
+	private static class Unwritten {
+
+		private String name;
+		private String accountName;
+		private long commit;
+
+		private Unwritten(String name, String accountName, long commit) {
+			this.name = name;
+			this.accountName = accountName;
+			this.commit = commit;
+		}
+	}
+}
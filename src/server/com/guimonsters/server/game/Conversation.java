@@ -67,6 +67,12 @@ public class Conversation implements Serializable
 		return text;
 	}
 	
+	//Returns every conversation keyword mapped to its text.
+	public Map<String, String> getTopics()
+	{
+		return Collections.unmodifiableMap(convoMap);
+	}
+	
 	//Returns true if conversation key exists in HashMap
 	public boolean knowsTopic(String key)
 	{
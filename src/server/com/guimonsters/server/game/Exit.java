@@ -8,6 +8,9 @@ import java.io.Serializable;
  * move from an exits start to its destination.
  * Exits are one way! If you want to create a two way
  * link between rooms, you need to make an exit in both rooms.
+ * An exit into another zone holds the key of its destination instead
+ * of the room, so it does not keep that zone loaded. The room is looked
+ * up each time the exit is used.
  * 
  * @author Elijah Atkinson
  * @version 2.00, 2013-05-07
@@ -17,6 +20,8 @@ public class Exit extends GameObject implements Serializable {
 	//Data fields
 	private static final long serialVersionUID = -6672896583523995917L;
 	private Room destination;
+	private String destinationKey;
+	private transient RoomResolver resolver;
 
 	public Exit(String name, String description, Room destination, Visibility vLevel) {
 		super(name, description, vLevel);
@@ -28,11 +33,52 @@ public class Exit extends GameObject implements Serializable {
 		this.destination = destination;
 	}
 
+	/**
+	 * Create an exit into a room that is found by key when the exit is used.
+	 * @param name The name of the exit.
+	 * @param description The description of the exit.
+	 * @param destinationKey The name of the destination room.
+	 * @param resolver The RoomResolver that finds the destination room.
+	 * @param vLevel The Visibility of the exit.
+	 */
+	public Exit(String name, String description, String destinationKey, RoomResolver resolver, Visibility vLevel) {
+		super(name, description, vLevel);
+		this.destinationKey = destinationKey;
+		this.resolver = resolver;
+	}
+
+	/**
+	 * Get the room this exit leads to, loading its zone if needed.
+	 * @return destination The destination Room, or null if the exit leads nowhere.
+	 */
 	public Room getDestination() {
+		if(this.destination == null && this.destinationKey != null && this.resolver != null) {
+			return this.resolver.getRoom(this.destinationKey);
+		}
 		return destination;
 	}
 
+	/**
+	 * Get the name of the room this exit leads to without looking the room up.
+	 * @return destinationKey The destination room name, or null if the exit leads nowhere.
+	 */
+	public String getDestinationKey() {
+		if(this.destination != null) {
+			return this.destination.getName();
+		}
+		return this.destinationKey;
+	}
+
+	/**
+	 * Get the destination room only if this exit holds it directly.
+	 * @return destination The destination Room, or null for exits into other zones.
+	 */
+	public Room getLinkedDestination() {
+		return this.destination;
+	}
+
 	public void setDestination(Room destination) {
 		this.destination = destination;
+		this.destinationKey = null;
 	}
 }
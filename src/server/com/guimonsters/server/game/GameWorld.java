@@ -3,32 +3,58 @@ package com.guimonsters.server.game;
 import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
 
+import com.guimonsters.server.file.Journal;
 import com.guimonsters.server.file.Serializer;
+import com.guimonsters.server.file.WorldFile;
+import com.guimonsters.server.file.ZoneIndex;
 
 /**
  * The class GameWorld loads a character specific world when
  * that character is selected at login, and saves the world 
  * every time the user logs off.
  * Rooms can be added or removed from the world.
+ * 
+ * A world can also be sharded: a directory with one file per zone and a zone index.
+ * A zone is loaded the first time one of its rooms is looked up, and is saved and
+ * unloaded once it has been empty of players for a while, so only the zones
+ * players are in have to fit in memory.
+ * 
+ * Once a Journal is set, every change made through the GameWorld is recorded in it,
+ * so changes made since the last save survive a crash. Changes made straight to a
+ * Room are not recorded; the loaders and the journal replay use those.
  * @author Kendall Lewis
  * @author Elijah Atkinson
  * @author Curran Hamilton
  * @author Stephen Butler
  * @version 2.00, 2013-05-07
  */
-public class GameWorld implements Serializable {
+public class GameWorld implements Serializable, RoomResolver {
 	
 	// Data fields
 	private static final long serialVersionUID = -8221865884947706117L;
 	//The main world file path
 	private static final String GAME_WORLD_PATH = "./worlds";
+	//Files in the directory of a sharded world.
+	private static final String ZONE_INDEX_NAME = "zones.index";
+	private static final String ZONE_EXTENSION = ".zone";
+	private static final String ZONE_NAME_PREFIX = "zone";
 	private File worldFile;
 	private Room startingRoom;
 	/*private ArrayList<Room> roomList;*/
 	private HashMap<String, Room> roomList;
+	//Set for sharded worlds only.
+	private transient ZoneIndex zoneIndex;
+	private transient HashMap<String, Zone> zones;
+	private transient long zoneLoads;
+	private transient long zoneUnloads;
+	private transient Journal journal;
 	
 	/**
 	 * Create a GameWorld.
@@ -56,9 +82,25 @@ public class GameWorld implements Serializable {
 	 * @param name The name of the room to look for.
 	 * @return results The room object if found, or null if not found.
 	 */
-	public Room getRoom(String name) {
+	public synchronized Room getRoom(String name) {
 		Room results;
-		results = this.roomList.get(name.toLowerCase());
+		String key = name.toLowerCase();
+		results = this.roomList.get(key);
+		
+		//In a sharded world, load the zone of the room if it is not loaded yet.
+		if(this.zoneIndex != null) {
+			String zoneName = this.zoneIndex.getZone(key);
+			if(zoneName != null) {
+				Zone zone = this.zones.get(zoneName);
+				if(zone == null) {
+					zone = this.loadZone(zoneName);
+					results = this.roomList.get(key);
+				}
+				if(zone != null) {
+					zone.touch();
+				}
+			}
+		}
 		return results;
 	}
 
@@ -68,8 +110,9 @@ public class GameWorld implements Serializable {
 	 * @param name The name of the room to look for.
 	 * @return success True if the room was found in the GameWorld, false otherwise.
 	 */
-	public boolean roomExists(String name) {
-		return this.roomList.containsKey(name.toLowerCase());
+	public synchronized boolean roomExists(String name) {
+		String key = name.toLowerCase();
+		return this.roomList.containsKey(key) || (this.zoneIndex != null && this.zoneIndex.getZone(key) != null);
 	}
 	
 	/**
@@ -77,7 +120,7 @@ public class GameWorld implements Serializable {
 	 * @param r The Room object to check for.
 	 * @return success True if the Room object exists in the GameWorld, false otherwise.
 	 */
-	public boolean roomExists(Room r) {
+	public synchronized boolean roomExists(Room r) {
 		return this.roomList.containsValue(r);
 	}
 	
@@ -87,7 +130,7 @@ public class GameWorld implements Serializable {
 	 * @param r The room to add.
 	 * @return success The success of the add.
 	 */
-	public boolean addRoom(Room r) {
+	public synchronized boolean addRoom(Room r) {
 		boolean success = false;
 		
 		//If the room is not already in the map, add it.
@@ -111,12 +154,15 @@ public class GameWorld implements Serializable {
 	 * @param description A description of the room being added.
 	 * @return success Whether the room was successfully added or not.
 	 */
-	public boolean addRoom(String name, String description) {
+	public synchronized boolean addRoom(String name, String description) {
 		boolean success = false;
 		Room r = new Room(name, description);
 
 		//Add the new room if it doesn't already exist.
 		success = addRoom(r);
+		if(success && this.journal != null) {
+			this.journal.roomAdded(name, description);
+		}
 		
 		return success;
 	}
@@ -148,33 +194,48 @@ public class GameWorld implements Serializable {
 	 * @param name The name of the room to be removed.
 	 * @return success Whether the room was successfully removed or not.
 	 */
-	public boolean removeRoom(String name) {
+	public synchronized boolean removeRoom(String name) {
 		boolean success = false;
 		
 		Room oldRoom = this.roomList.remove(name.toLowerCase());
 		//If a room was returned, it was removed. Return true.
 		if(oldRoom != null) {
 			success= true;
+			if(this.journal != null) {
+				this.journal.roomRemoved(name);
+			}
 		}
 		
 		return success;
 	}
 	
 	/**
-	 * Loads a GameWorld from a serialized file in the worlds directory.
+	 * Loads a GameWorld from a world file in the worlds directory.
+	 * Reads both the binary world format and worlds saved as serialized GameWorld objects.
+	 * If the name is a directory, it is loaded as a sharded world, and its zones
+	 * are loaded as they are needed.
 	 * @param filename The name of the file to attempt to open (must include extension).
 	 * @return The success of the load.
 	 */
-	public boolean load(String filename) {
+	public synchronized boolean load(String filename) {
 		boolean success = false;
 		
 		this.worldFile = new File(GAME_WORLD_PATH+"/"+filename);
-		Serializer serial = new Serializer(this.worldFile);
+		if(this.worldFile.isDirectory()) {
+			return this.loadZoneIndex();
+		}
+		WorldFile binary = new WorldFile(this.worldFile);
 		
 		try {
-			//Load world data from the serialized file associated
-			//with this world object.
-			GameWorld worldFromFile = (GameWorld) serial.deserialize();
+			//Load world data from the file associated with this world object.
+			GameWorld worldFromFile;
+			if(binary.isWorldFile()) {
+				worldFromFile = binary.read();
+			}
+			else {
+				Serializer serial = new Serializer(this.worldFile);
+				worldFromFile = (GameWorld) serial.deserialize();
+			}
 			
 			this.startingRoom = worldFromFile.startingRoom;
 			this.roomList = worldFromFile.roomList;
@@ -190,28 +251,196 @@ public class GameWorld implements Serializable {
 	
 	
 	/**
-	 * Saves the current GameWorld. Rewrites the file for the
+	 * Saves the current GameWorld in the binary world format. Rewrites the file for the
 	 * previous GameWorld (if it exists) to reflect recent changes.
 	 * @return success The success of the save.
 	 */
-	public boolean save() {
+	public synchronized boolean save() {
+		//A sharded world saves every loaded zone into its own file.
+		if(this.zoneIndex != null) {
+			boolean success = true;
+			for(Zone zone : this.zones.values()) {
+				success &= zone.save();
+			}
+			return success;
+		}
+		
 		//Write this world object into the worldFile.
 		
-		Serializer serial = new Serializer(this.worldFile, this);
-		boolean success = serial.serialize();
+		WorldFile serial = new WorldFile(this.worldFile);
+		boolean success = serial.write(this);
 		
 		return success;
 	}
 	
+	/**
+	 * Take the rooms of the world as they are right now, so they can be written
+	 * without holding up the players. Only the room maps are taken, since rooms
+	 * replace their maps instead of changing them, so this is quick.
+	 * A sharded world gives one snapshot for each loaded zone.
+	 * @return snapshots The snapshots to write.
+	 */
+	public synchronized List<WorldFile.Snapshot> capture() {
+		ArrayList<WorldFile.Snapshot> snapshots = new ArrayList<WorldFile.Snapshot>();
+		if(this.zoneIndex != null) {
+			for(Zone zone : this.zones.values()) {
+				snapshots.add(zone.capture());
+			}
+		}
+		else {
+			snapshots.add(new WorldFile(this.worldFile).capture(this));
+		}
+		return snapshots;
+	}
+	
+	/**
+	 * Read the zone index of a sharded world. No zone is loaded until one of its rooms is needed.
+	 * @return success True if the zone index was read.
+	 */
+	private boolean loadZoneIndex() {
+		ZoneIndex index = new ZoneIndex(new File(this.worldFile, ZONE_INDEX_NAME));
+		try {
+			index.read();
+		}
+		catch (IOException e) {
+			System.out.println(e.getMessage());
+			return false;
+		}
+		this.zoneIndex = index;
+		this.zones = new HashMap<String, Zone>();
+		this.roomList = new HashMap<String, Room>();
+		this.startingRoom = null;
+		return true;
+	}
+	
+	/**
+	 * Load a zone of a sharded world and add its rooms to the world.
+	 * @param zoneName The name of the zone to load.
+	 * @return zone The loaded Zone, or null if the zone file could not be read.
+	 */
+	private Zone loadZone(String zoneName) {
+		File file = new File(this.worldFile, zoneName+ZONE_EXTENSION);
+		Room[] rooms;
+		try {
+			rooms = new WorldFile(file).readZone(this);
+		}
+		catch (IOException e) {
+			System.out.println("Could not load zone "+zoneName+": "+e.getMessage());
+			return null;
+		}
+		
+		for(Room room : rooms) {
+			this.roomList.put(room.getName().toLowerCase(), room);
+		}
+		Zone zone = new Zone(zoneName, file, rooms);
+		this.zones.put(zoneName, zone);
+		this.zoneLoads++;
+		return zone;
+	}
+	
+	/**
+	 * Save and unload every zone that has had no players and no room
+	 * lookups for a while, and has no game events waiting to run.
+	 * Does nothing if the world is not sharded.
+	 * @param idleNanos How long a zone must be unused before it is unloaded, in nanoseconds.
+	 * @return unloaded The number of zones that were unloaded.
+	 */
+	public synchronized int unloadIdleZones(long idleNanos) {
+		if(this.zoneIndex == null) {
+			return 0;
+		}
+		
+		int unloaded = 0;
+		long now = System.nanoTime();
+		Iterator<Zone> it = this.zones.values().iterator();
+		while(it.hasNext()) {
+			Zone zone = it.next();
+			if(now - zone.getLastUsed() < idleNanos || !zone.isEmpty()) {
+				continue;
+			}
+			//Keep the zone loaded if its changes could not be saved.
+			if(!zone.save()) {
+				continue;
+			}
+			for(Room room : zone.getRooms()) {
+				this.roomList.remove(room.getName().toLowerCase());
+			}
+			it.remove();
+			this.zoneUnloads++;
+			unloaded++;
+		}
+		return unloaded;
+	}
+	
+	/**
+	 * Write this world as a sharded world: a directory with a zone index and one file per zone.
+	 * Rooms are put into zones in the order they are reached from the starting room,
+	 * so rooms that are close together end up in the same zone.
+	 * @param directory The directory to write the sharded world to. Must not exist yet.
+	 * @param zoneSize The most rooms in one zone.
+	 * @return zoneCount The number of zones written, or -1 if writing failed.
+	 */
+	public synchronized int saveZones(File directory, int zoneSize) {
+		if(!directory.mkdirs()) {
+			return -1;
+		}
+		
+		//Walk the rooms breadth first from the starting room, then any rooms not reached.
+		ArrayList<Room> order = new ArrayList<Room>();
+		IdentityHashMap<Room, Boolean> seen = new IdentityHashMap<Room, Boolean>();
+		ArrayDeque<Room> queue = new ArrayDeque<Room>();
+		ArrayList<Room> roots = new ArrayList<Room>();
+		if(this.startingRoom != null) {
+			roots.add(this.startingRoom);
+		}
+		roots.addAll(this.roomList.values());
+		for(Room root : roots) {
+			if(seen.put(root, Boolean.TRUE) == null) {
+				queue.add(root);
+			}
+			while(!queue.isEmpty()) {
+				Room room = queue.poll();
+				order.add(room);
+				for(Exit exit : room.getExits().values()) {
+					Room next = exit.getLinkedDestination();
+					if(next != null && seen.put(next, Boolean.TRUE) == null) {
+						queue.add(next);
+					}
+				}
+			}
+		}
+		
+		ZoneIndex index = new ZoneIndex(new File(directory, ZONE_INDEX_NAME));
+		if(this.startingRoom != null) {
+			index.setStartingRoom(this.startingRoom.getName());
+		}
+		int size = Math.max(1, zoneSize);
+		int zoneCount = 0;
+		for(int start = 0; start < order.size(); start += size) {
+			String zoneName = ZONE_NAME_PREFIX+(++zoneCount);
+			List<Room> zoneRooms = order.subList(start, Math.min(order.size(), start + size));
+			if(!new WorldFile(new File(directory, zoneName+ZONE_EXTENSION)).writeZone(zoneRooms)) {
+				return -1;
+			}
+			for(Room room : zoneRooms) {
+				index.put(room.getName(), zoneName);
+			}
+		}
+		return index.write() ? zoneCount : -1;
+	}
+	
 	/**
 	 * Move a GameObject item from one room to another.
 	 * @param item The item to be moved.
 	 * @param start The room the item is leaving.
 	 * @param destination The room the item is going to. 
 	 */
-	public void move(GameObject item, Room start, Room destination) {
+	public synchronized void move(GameObject item, Room start, Room destination) {
 		destination.addRoomItem(item);
 		start.removeRoomItem(item);
+		if(this.journal != null) {
+			this.journal.itemMoved(item, start, destination);
+		}
 	}
 	
 	/**
@@ -231,9 +460,12 @@ public class GameWorld implements Serializable {
 	 * @param start The room the actor is leaving.
 	 * @param destination The room the actor is going to.
 	 */
-	public void move(Actor a, Room start, Room destination) {
+	public synchronized void move(Actor a, Room start, Room destination) {
 		destination.addActor(a);
 		start.removeActor(a);
+		if(this.journal != null) {
+			this.journal.actorMoved(a, start, destination);
+		}
 	}
 	
 	/**
@@ -242,9 +474,12 @@ public class GameWorld implements Serializable {
 	 * @param start The room the exit is leaving.
 	 * @param destination The room the exit is going to.
 	 */
-	public void move(Exit e, Room start, Room destination) {
+	public synchronized void move(Exit e, Room start, Room destination) {
 		destination.addExit(e);
 		start.removeExit(e);
+		if(this.journal != null) {
+			this.journal.exitMoved(e, start, destination);
+		}
 	}
 	
 	/**
@@ -255,9 +490,37 @@ public class GameWorld implements Serializable {
 	public void move(PlayerCharacter ch, Room destination) {
 		destination.addCharacter(ch);
 	}
+	
+	/**
+	 * Put a new item in a room.
+	 * @param room The room to put the item in.
+	 * @param item The item to add.
+	 */
+	public synchronized void addRoomItem(Room room, GameObject item) {
+		room.addRoomItem(item);
+		if(this.journal != null) {
+			this.journal.itemAdded(room, item);
+		}
+	}
+	
+	/**
+	 * Take an item out of the world.
+	 * @param room The room holding the item.
+	 * @param item The item to remove.
+	 */
+	public synchronized void removeRoomItem(Room room, GameObject item) {
+		room.removeRoomItem(item);
+		if(this.journal != null) {
+			this.journal.itemRemoved(room, item);
+		}
+	}
 
 	//Setter and Getter
 	//----------------------------------------------------
+	public synchronized void setJournal(Journal journal) {
+		this.journal = journal;
+	}
+	
 	public String getFileName() {
 		return this.worldFile.getName();
 	}
@@ -270,8 +533,32 @@ public class GameWorld implements Serializable {
 	}
 
 	public Room getStartingRoom() {
+		//The starting room of a sharded world is found through its zone.
+		if(this.zoneIndex != null && this.zoneIndex.getStartingRoom() != null) {
+			return this.getRoom(this.zoneIndex.getStartingRoom());
+		}
 		return startingRoom;
 	}
+	
+	public boolean isSharded() {
+		return this.zoneIndex != null;
+	}
+	
+	public int getZoneCount() {
+		return this.zoneIndex == null ? 0 : this.zoneIndex.getZoneCount();
+	}
+	
+	public synchronized int getLoadedZoneCount() {
+		return this.zones == null ? 0 : this.zones.size();
+	}
+	
+	public synchronized long getZoneLoads() {
+		return this.zoneLoads;
+	}
+	
+	public synchronized long getZoneUnloads() {
+		return this.zoneUnloads;
+	}
 
 	/**
 	 * Set the starting room for the GameWorld.
@@ -1,6 +1,8 @@
 package com.guimonsters.server.game;
 
 //import com.guimonsters.server.*;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import com.guimonsters.server.MudServerThread;
 
@@ -19,7 +21,12 @@ public class PlayerCharacter extends Actor implements Serializable {
 	//Data fields
 	
 	private transient MudServerThread playerThread;
-	private Room currentRoom;
+	//The room is not saved with the account, since it links to the rest of the GameWorld.
+	//Only its name is saved, and play() looks the room up again by name.
+	private transient Room currentRoom;
+	private String currentRoomKey;
+	//Set when the character has changed since its account was last saved.
+	private transient volatile boolean dirty;
 
 	public PlayerCharacter(String name, String description, String profession,
 			String race, String sex, int level,  Visibility vLevel) {
@@ -97,6 +104,74 @@ public class PlayerCharacter extends Actor implements Serializable {
 		return pronoun;
 	}
 	
+	/**
+	 * Record that this character has changed and its account must be saved.
+	 * Code that changes a character other than through its setters,
+	 * such as through its inventory, must call this itself.
+	 */
+	public void markDirty() {
+		this.dirty = true;
+	}
+	
+	/**
+	 * Clear the changed flag. Called by the account just before it is saved.
+	 */
+	public void markClean() {
+		this.dirty = false;
+	}
+	
+	public boolean isDirty() {
+		return this.dirty;
+	}
+	
+	@Override
+	public void setDescription(String description) {
+		super.setDescription(description);
+		this.markDirty();
+	}
+	
+	@Override
+	public void setExperience(int experience) {
+		super.setExperience(experience);
+		this.markDirty();
+	}
+	
+	@Override
+	public void setMoney(int money) {
+		super.setMoney(money);
+		this.markDirty();
+	}
+	
+	@Override
+	public void setLevel(int level) {
+		super.setLevel(level);
+		this.markDirty();
+	}
+	
+	/**
+	 * Read a character from an account file.
+	 * Account files saved before the room key existed hold the whole room,
+	 * so the key is taken from that room's name instead.
+	 * @param in The ObjectInputStream to read from.
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+		this.currentRoomKey = (String) fields.get("currentRoomKey", null);
+		if(this.currentRoomKey == null) {
+			try {
+				Room savedRoom = (Room) fields.get("currentRoom", null);
+				if(savedRoom != null) {
+					this.currentRoomKey = savedRoom.getName();
+				}
+			}
+			catch (IllegalArgumentException e) {
+				//The file was saved without a room.
+			}
+		}
+	}
+	
 	//Get the MudServerThread associated with this character
 	public MudServerThread getPlayerThread(){
 		return this.playerThread;
@@ -109,6 +184,15 @@ public class PlayerCharacter extends Actor implements Serializable {
 	public Room getCurrentRoom() {
 		return currentRoom;
 	}
+	
+	/**
+	 * Get the name of the room this player was last in, which is kept
+	 * in the account file in place of the room itself.
+	 * @return currentRoomKey The room name, or null if the player has never entered a GameWorld.
+	 */
+	public String getCurrentRoomKey() {
+		return currentRoomKey;
+	}
 
 	/**
 	 * Set the current room this player is in.
@@ -128,6 +212,8 @@ public class PlayerCharacter extends Actor implements Serializable {
 		}
 		//Update the current room pointer to the new room.
 		this.currentRoom = currentRoom;
+		this.currentRoomKey = currentRoom.getName();
+		this.markDirty();
 	}	
 	
 }
\ No newline at end of file
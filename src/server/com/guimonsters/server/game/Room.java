@@ -3,11 +3,17 @@ package com.guimonsters.server.game;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 
+import com.guimonsters.server.GameScheduler;
 import com.guimonsters.server.MudServerThread;
 
 /**
+ * The room maps are copy-on-write: a change copies the map, changes the copy
+ * and puts it in place of the old one, so a map that has been handed out never
+ * changes. Threads can read and describe a room while another thread changes
+ * it, and a checkpoint can take the contents of every room without copying them.
  * @author Modified by Elijah Atkinson
  * @author Modified by Kendall Lewis
  * @version 2.00, 2013-05-05
@@ -29,10 +35,17 @@ public class Room implements Serializable {
 	//Will change Exits array list to "GameExitObects" once they're created.
 	private ArrayList<Exit> exits;*/
 	
-	private HashMap<String, GameObject> roomItems;
-	private HashMap<String, PlayerCharacter> characters;
-	private HashMap<String, Actor> actors;
-	private HashMap<String, Exit> exits;
+	private volatile HashMap<String, GameObject> roomItems;
+	private volatile HashMap<String, PlayerCharacter> characters;
+	private volatile HashMap<String, Actor> actors;
+	private volatile HashMap<String, Exit> exits;
+	//Changed by every change to the room maps, so a cached description knows it is out of date.
+	private transient long version;
+	private transient RoomDescription descriptionCache;
+	//The zone of a sharded world the room was loaded from, null otherwise.
+	private transient volatile String zoneName;
+	//The game events scheduled in the room, which keep its zone loaded until they are done.
+	private transient ArrayList<GameScheduler.Timer> timers;
 	
 	/**
 	 * Create a new room object with no items within.
@@ -118,20 +131,20 @@ public class Room implements Serializable {
 		
 		//If the exit exists and leads somewhere, proceed with exiting.
 		if(exit != null) {
+			//Look up the destination once, it may be in another zone.
+			Room destination = exit.getDestination();
+			
 			//Make sure the exit is linked to a room.
-			if(exit.getDestination() != null) {
+			if(destination != null) {
 				
 				//Broadcast zone message to all players in the room. IF and only if
 				//player didn't go through a loop back exit (an exit that points to its own room).
-				boolean exitedToADifferentZone = !exit.getDestination().getName().equalsIgnoreCase(this.getName());
+				boolean exitedToADifferentZone = !destination.getName().equalsIgnoreCase(this.getName());
 				if(exitedToADifferentZone) {
-					player.getPlayerThread().broadcastRoom(this, player.getName()+" has left.");
-					
-					//Remove the given player from this room.
-					this.removeCharacter(player);
+					this.leave(player);
 					
 					//Enter the room attached to the exit object that the player went through.
-					message = exit.getDestination().enter(player);
+					message = destination.enter(player);
 				}
 				//Otherwise player went through a looping exit. Don't move them, but
 				//return the room description.
@@ -152,15 +165,86 @@ public class Room implements Serializable {
 		return message;
 	}
 	
+	/**
+	 * Remove the player from this room and write a [playername] has left
+	 * message to all remaining players in the room. The player is left
+	 * in no room until they enter another one.
+	 * @param player The PlayerCharacter leaving the room.
+	 */
+	public void leave(PlayerCharacter player) {
+		player.getPlayerThread().broadcastRoom(this, player.getName()+" has left.");
+		
+		//Remove the given player from this room.
+		this.removeCharacter(player);
+	}
+	
+	/**
+	 * Run a game event in this room a number of game ticks from now,
+	 * on the game loop that owns the room.
+	 * @param task The Runnable to run. It must return quickly.
+	 * @param ticks The number of ticks to wait.
+	 * @return timer The Timer that can cancel the event, or null if the server is not running.
+	 */
+	public GameScheduler.Timer schedule(Runnable task, long ticks) {
+		GameScheduler scheduler = GameScheduler.of(this);
+		return scheduler == null ? null : this.addTimer(scheduler.schedule(task, ticks));
+	}
+	
+	/**
+	 * Run a game event in this room every so many game ticks, such as an
+	 * item respawn or an NPC wander, on the game loop that owns the room.
+	 * @param task The Runnable to run. It must return quickly.
+	 * @param delay The number of ticks before the first run.
+	 * @param period The number of ticks between runs.
+	 * @return timer The Timer that can cancel the event, or null if the server is not running.
+	 */
+	public GameScheduler.Timer scheduleRepeating(Runnable task, long delay, long period) {
+		GameScheduler scheduler = GameScheduler.of(this);
+		return scheduler == null ? null : this.addTimer(scheduler.scheduleRepeating(task, delay, period));
+	}
+	
+	/**
+	 * Keep a game event of this room until it is done, dropping the ones that already are.
+	 * @param timer The Timer of the event.
+	 * @return timer The same Timer.
+	 */
+	private synchronized GameScheduler.Timer addTimer(GameScheduler.Timer timer) {
+		if(this.timers == null) {
+			this.timers = new ArrayList<GameScheduler.Timer>();
+		}
+		this.hasTimers();
+		this.timers.add(timer);
+		return timer;
+	}
+	
+	/**
+	 * Check if any game event of this room is still waiting to run.
+	 * A repeating event waits until it is cancelled.
+	 * @return waiting True if an event of the room will run again.
+	 */
+	public synchronized boolean hasTimers() {
+		if(this.timers == null) {
+			return false;
+		}
+		Iterator<GameScheduler.Timer> it = this.timers.iterator();
+		while(it.hasNext()) {
+			if(it.next().isDone()) {
+				it.remove();
+			}
+		}
+		return !this.timers.isEmpty();
+	}
+	
 	/**
 	 * Writes a description of the room to the player.
 	 * Describes all visible items, actors, players, and exits
-	 * in the room.
-	 * @return 
+	 * in the room. The text is built once per version of the room,
+	 * and only the player looking is left out each time.
+	 * @param ignoredPlayer The name of the player looking, who is not listed.
+	 * @return results The description of the room.
 	 */
 	public String descRoom(String ignoredPlayer) {
-		String results = this.description+descrItems()+descrActors()+descrPlayers(ignoredPlayer)+descrExits();
-		return results;
+		return this.getCachedDescription().describe(ignoredPlayer);
 	}
 	
 	/**
@@ -208,112 +292,96 @@ public class Room implements Serializable {
 	
 	
 	/**
-	 * Describe visible items in the room if there is at least one.
-	 * @return results The description of all items in the room.
+	 * Return the description of the room for its current version,
+	 * building it if the room has changed since it was last built.
+	 * @return cached The RoomDescription of the current version.
 	 */
-	private String descrItems() {
-		String results = "";
-		if(roomItems.size() > 0) {
-			
-			results = " It contains ";
-			
-			for(Map.Entry<String, GameObject> entry : roomItems.entrySet()) {
-				GameObject item = entry.getValue();
-				
-				//Only describe visible items.
-				if(item.getVisibilityLevel().compareTo(Visibility.INVISIBILE) > 0) {
-					results += item.getName()+", ";
-				}
-			}
-			
-			//Strip trailing comma and whitespace.
-			results = results.substring(0, results.length()-2);
-			results += ".";
+	private synchronized RoomDescription getCachedDescription() {
+		RoomDescription cached = this.descriptionCache;
+		if(cached == null || cached.version != this.version) {
+			cached = new RoomDescription(this);
+			this.descriptionCache = cached;
 		}
-		return results;
+		return cached;
 	}
 	
 	/**
-	 * Describe all of the visible actors in the room.
-	 * @return description The description of actor objects.
+	 * List the names of the visible objects in a map, as in "A, B, C".
+	 * @param results The StringBuilder to add the list to.
+	 * @param intro The text before the list, such as " It contains ".
+	 * @param objects The objects to list.
 	 */
-	private String descrActors() {
-		String results = "";
-		if(actors.size() > 0) {
-			
-			results = " Also here is ";
-			
-			for(Map.Entry<String, Actor> entry : actors.entrySet()) {
-				Actor actor = entry.getValue();
-				
-				//Only describe visible actors.
-				if(actor.getVisibilityLevel().compareTo(Visibility.INVISIBILE) > 0) {
-					results += actor.getName()+", ";
-				}
+	private static void describeNames(StringBuilder results, String intro, Map<String, ? extends GameObject> objects) {
+		boolean first = true;
+		for(GameObject object : objects.values()) {
+			//Only describe visible objects.
+			if(object.getVisibilityLevel().compareTo(Visibility.INVISIBILE) > 0) {
+				results.append(first ? intro : ", ").append(object.getName());
+				first = false;
 			}
-			
-			//Strip trailing comma and whitespace.
-			results = results.substring(0, results.length()-2);
-			results += ".";
 		}
-		return results;
+		if(!first) {
+			results.append('.');
+		}
 	}
 	
 	/**
-	 * Describe all players in the room but the player who issued
-	 * the look command.
-	 * @param ignoredPlayer The player name to not add to the description
-	 * @return description The description of players in the room.
+	 * The description of a room at one version. The players are kept as a list of
+	 * names, so the player looking can be left out without building the text again.
 	 */
-	private String descrPlayers(String ignoredPlayer) {
-		String results = "";
-		if(characters.size() > 1) {
+	private static class RoomDescription {
+		
+		private long version;
+		//The room, items and actors.
+		private String head;
+		private String[] players;
+		private String exits;
+		
+		private RoomDescription(Room room) {
+			this.version = room.version;
 			
-			results = " You also see ";
+			StringBuilder results = new StringBuilder();
+			results.append(room.description);
+			describeNames(results, " It contains ", room.roomItems);
+			describeNames(results, " Also here is ", room.actors);
+			this.head = results.toString();
 			
-			for(Map.Entry<String, PlayerCharacter> entry : characters.entrySet()) {
-				PlayerCharacter pc = entry.getValue();
-				
+			ArrayList<String> names = new ArrayList<String>(room.characters.size());
+			for(PlayerCharacter pc : room.characters.values()) {
 				//Only describe visible players.
 				if(pc.getVisibilityLevel().compareTo(Visibility.INVISIBILE) > 0) {
-					//Don't describe the ignored player.
-					if(!pc.getName().equalsIgnoreCase(ignoredPlayer)) {
-						results += pc.getName()+", ";
-					}
+					names.add(pc.getName());
 				}
 			}
+			this.players = names.toArray(new String[names.size()]);
 			
-			//Strip trailing comma and whitespace.
-			results = results.substring(0, results.length()-2);
-			results += ".";
+			results.setLength(0);
+			describeNames(results, " Obvious exits are ", room.exits);
+			this.exits = results.toString();
 		}
-		return results;
-	}
-	
-	/**
-	 * Describe all of the visible exits in the room.
-	 * @return description The description of exit objects.
-	 */
-	private String descrExits() {
-		String results = "";
-		if(exits.size() > 0) {
-			
-			results = " Obvious exits are ";
-			
-			for(Map.Entry<String, Exit> entry : exits.entrySet()) {
-				Exit ex = entry.getValue();
-				
-				//Only describe exits.
-				if(ex.getVisibilityLevel().compareTo(Visibility.INVISIBILE) > 0) {
-					results += ex.getName()+", ";
+		
+		/**
+		 * Put the description together for one player.
+		 * @param ignoredPlayer The player name to not add to the description.
+		 * @return description The description of the room.
+		 */
+		private String describe(String ignoredPlayer) {
+			StringBuilder results = new StringBuilder(this.head.length() + this.exits.length() + this.players.length * 16);
+			results.append(this.head);
+			boolean first = true;
+			for(String player : this.players) {
+				//Don't describe the ignored player.
+				if(!player.equalsIgnoreCase(ignoredPlayer)) {
+					results.append(first ? " You also see " : ", ").append(player);
+					first = false;
 				}
 			}
-			
-			//Strip trailing comma and whitespace.
-			results = results.substring(0, results.length()-2);
-			results += ".";
+			if(!first) {
+				results.append('.');
+			}
+			results.append(this.exits);
+			return results.toString();
 		}
-		return results;
 	}
 	
 	//Getters and setters
@@ -326,36 +394,101 @@ public class Room implements Serializable {
 		return this.description;
 	}
 	
+	/**
+	 * Returns the items in the room. The map must not be changed.
+	 * @return roomItems The items in the room right now.
+	 */
 	public HashMap<String, GameObject> getRoomItems() {
 		return roomItems;
 	}
 
-	public void setRoomItems(HashMap<String, GameObject> roomItems) {
+	public synchronized void setRoomItems(HashMap<String, GameObject> roomItems) {
 		this.roomItems = roomItems;
+		this.version++;
 	}
 
 	public HashMap<String, PlayerCharacter> getCharacters() {
 		return characters;
 	}
 
-	public void setCharacters(HashMap<String, PlayerCharacter> characters) {
+	public synchronized void setCharacters(HashMap<String, PlayerCharacter> characters) {
 		this.characters = characters;
+		this.version++;
 	}
 
 	public HashMap<String, Actor> getActors() {
 		return actors;
 	}
 
-	public void setActors(HashMap<String, Actor> actors) {
+	public synchronized void setActors(HashMap<String, Actor> actors) {
 		this.actors = actors;
+		this.version++;
 	}
 
 	public HashMap<String, Exit> getExits() {
 		return exits;
 	}
 
-	public void setExits(HashMap<String, Exit> exits) {
+	public synchronized void setExits(HashMap<String, Exit> exits) {
 		this.exits = exits;
+		this.version++;
+	}
+	
+	/**
+	 * Get the version of the room, which changes whenever something enters or leaves it.
+	 * @return version The version of the room maps.
+	 */
+	public synchronized long getVersion() {
+		return this.version;
+	}
+	
+	/**
+	 * Get the zone the room was loaded from.
+	 * @return zoneName The name of the zone, or null if the world is not sharded.
+	 */
+	public String getZoneName() {
+		return this.zoneName;
+	}
+	
+	public void setZoneName(String zoneName) {
+		this.zoneName = zoneName;
+	}
+	
+	/**
+	 * Take the items, actors and exits of the room as they are right now.
+	 * @return contents The Contents of the room.
+	 */
+	public synchronized Contents getContents() {
+		return new Contents(this.roomItems, this.actors, this.exits);
+	}
+	
+	/**
+	 * The items, actors and exits of a room at one moment.
+	 * Since the room replaces its maps instead of changing them, these maps never change.
+	 */
+	public static class Contents {
+		
+		private Map<String, GameObject> roomItems;
+		private Map<String, Actor> actors;
+		private Map<String, Exit> exits;
+		
+		private Contents(Map<String, GameObject> roomItems, Map<String, Actor> actors, Map<String, Exit> exits) {
+			this.roomItems = roomItems;
+			this.actors = actors;
+			this.exits = exits;
+		}
+		
+		public Map<String, GameObject> getRoomItems() {
+			return this.roomItems;
+		}
+		
+		public Map<String, Actor> getActors() {
+			return this.actors;
+		}
+		
+		public Map<String, Exit> getExits() {
+			return this.exits;
+		}
 	}
 
 	/**
@@ -401,38 +534,62 @@ public class Room implements Serializable {
 	
 	//Adders
 	//-------------------------------------------------
-	public void addRoomItem(GameObject item) {
-		this.roomItems.put(item.getName().toLowerCase(), item);
+	public synchronized void addRoomItem(GameObject item) {
+		HashMap<String, GameObject> items = new HashMap<String, GameObject>(this.roomItems);
+		items.put(item.getName().toLowerCase(), item);
+		this.roomItems = items;
+		this.version++;
 	}
 	
-	public void addCharacter(PlayerCharacter ch) {
-		this.characters.put(ch.getName().toLowerCase(), ch);
+	public synchronized void addCharacter(PlayerCharacter ch) {
+		HashMap<String, PlayerCharacter> chars = new HashMap<String, PlayerCharacter>(this.characters);
+		chars.put(ch.getName().toLowerCase(), ch);
+		this.characters = chars;
+		this.version++;
 	}
 	
-	public void addActor(Actor a) {
-		this.actors.put(a.getName().toLowerCase(), a);
+	public synchronized void addActor(Actor a) {
+		HashMap<String, Actor> as = new HashMap<String, Actor>(this.actors);
+		as.put(a.getName().toLowerCase(), a);
+		this.actors = as;
+		this.version++;
 	}
 	
-	public void addExit(Exit e) {
-		this.exits.put(e.getName().toLowerCase(), e);
+	public synchronized void addExit(Exit e) {
+		HashMap<String, Exit> es = new HashMap<String, Exit>(this.exits);
+		es.put(e.getName().toLowerCase(), e);
+		this.exits = es;
+		this.version++;
 	}
 	
 	//Removers
 	//-------------------------------------------------
-	public void removeRoomItem(GameObject item) {
-		this.roomItems.remove(item.getName().toLowerCase());
+	public synchronized void removeRoomItem(GameObject item) {
+		HashMap<String, GameObject> items = new HashMap<String, GameObject>(this.roomItems);
+		items.remove(item.getName().toLowerCase());
+		this.roomItems = items;
+		this.version++;
 	}
 	
-	public void removeCharacter(PlayerCharacter character) {
-		this.characters.remove(character.getName().toLowerCase());
+	public synchronized void removeCharacter(PlayerCharacter character) {
+		HashMap<String, PlayerCharacter> chars = new HashMap<String, PlayerCharacter>(this.characters);
+		chars.remove(character.getName().toLowerCase());
+		this.characters = chars;
+		this.version++;
 	}
 	
-	public void removeActor(Actor actor) {
-		this.actors.remove(actor.getName().toLowerCase());
+	public synchronized void removeActor(Actor actor) {
+		HashMap<String, Actor> as = new HashMap<String, Actor>(this.actors);
+		as.remove(actor.getName().toLowerCase());
+		this.actors = as;
+		this.version++;
 	}
 	
-	public void removeExit(Exit exit) {
-		this.exits.remove(exit.getName().toLowerCase());
+	public synchronized void removeExit(Exit exit) {
+		HashMap<String, Exit> es = new HashMap<String, Exit>(this.exits);
+		es.remove(exit.getName().toLowerCase());
+		this.exits = es;
+		this.version++;
 	}
 		
 	/**
@@ -0,0 +1,18 @@
+package com.guimonsters.server.game;
+
+/**
+ * Finds rooms by key. Exits that lead into another zone keep the key of
+ * their destination instead of the room itself, and look the room up
+ * through a RoomResolver, which may load the zone first.
+ * @author Elijah Atkinson
+ * @version 1.00, 2013-05-12
+ */
+public interface RoomResolver {
+
+	/**
+	 * Find a room.
+	 * @param key The name of the room, in any case.
+	 * @return room The Room, or null if there is no such room.
+	 */
+	public Room getRoom(String key);
+}
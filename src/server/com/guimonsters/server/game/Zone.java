@@ -0,0 +1,95 @@
+package com.guimonsters.server.game;
+
+import java.io.File;
+import java.util.Arrays;
+
+import com.guimonsters.server.file.WorldFile;
+
+/**
+ * A loaded zone of a sharded GameWorld: the rooms read from one zone file.
+ * The GameWorld unloads a zone once no player has been in or looked up
+ * any of its rooms for a while and none of its game events are waiting
+ * to run, saving it first. The events of an unloaded zone would run
+ * against rooms the world no longer holds, and be lost with them.
+ * @author Elijah Atkinson
+ * @version 1.00, 2013-05-12
+ */
+public class Zone {
+
+	//Data fields
+	private String name;
+	private File file;
+	private Room[] rooms;
+	private volatile long lastUsed;
+
+	/**
+	 * Create a loaded zone.
+	 * @param name The name of the zone.
+	 * @param file The zone file the rooms were read from.
+	 * @param rooms The rooms of the zone.
+	 */
+	public Zone(String name, File file, Room[] rooms) {
+		this.name = name;
+		this.file = file;
+		this.rooms = rooms;
+		for(Room room : rooms) {
+			room.setZoneName(name);
+		}
+		this.touch();
+	}
+
+	/**
+	 * Record that a room of this zone was just used.
+	 */
+	public void touch() {
+		this.lastUsed = System.nanoTime();
+	}
+
+	/**
+	 * Check if any player is in the zone or any game event is waiting to run in it.
+	 * @return empty True if none of the rooms hold a player or a waiting event.
+	 */
+	public boolean isEmpty() {
+		for(Room room : this.rooms) {
+			if(!room.getCharacters().isEmpty() || room.hasTimers()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Write the rooms of the zone back to its zone file.
+	 * @return success True if the file was written.
+	 */
+	public boolean save() {
+		return new WorldFile(this.file).writeZone(Arrays.asList(this.rooms));
+	}
+
+	/**
+	 * Take the rooms of the zone as they are right now, to write them to its zone file later.
+	 * @return snapshot The Snapshot of the zone.
+	 */
+	public WorldFile.Snapshot capture() {
+		return new WorldFile(this.file).captureZone(Arrays.asList(this.rooms));
+	}
+
+	//Getters and setters
+	//------------------------------
+
+	public String getName() {
+		return this.name;
+	}
+
+	public Room[] getRooms() {
+		return this.rooms;
+	}
+
+	/**
+	 * Get the time a room of this zone was last used.
+	 * @return lastUsed The System.nanoTime() of the last use.
+	 */
+	public long getLastUsed() {
+		return this.lastUsed;
+	}
+}
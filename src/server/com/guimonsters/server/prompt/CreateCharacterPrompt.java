@@ -1,18 +1,15 @@
 package com.guimonsters.server.prompt;
 
-import java.io.File;
-import java.util.HashMap;
-
 import com.guimonsters.network.Directive;
+import com.guimonsters.network.EncodedPacket;
 import com.guimonsters.network.Packet;
+import com.guimonsters.server.ConstantPackets;
 import com.guimonsters.server.MudServerThread;
-import com.guimonsters.server.game.Account;
+import com.guimonsters.server.game.CharacterNameIndex;
 import com.guimonsters.server.game.PlayerCharacter;
 
 public class CreateCharacterPrompt implements Prompt {
 	
-	//Account path name
-	private static final String ACCOUNT_PATH = "./accounts";
 	//Character creation prompt strings
 	private static final String CHARACTER_CREATION_WELCOME = "Welcome to the character creation prompt. You can return to a previous field with the 'back' command. You can exit this prompt at any time by typing 'exit'.";
 	private static final String CHARACTER_CREATE_NAME = "<< Please enter your desired character name. >>";
@@ -23,23 +20,23 @@ public class CreateCharacterPrompt implements Prompt {
 			" Your description should complete this sentence: 'Your character looks [description].' This description can be changed later. >>";
 	//Character creation error strings
 	//name strings
-	private static final String ERROR_NAME_TAKEN = "That character name is taken.";
-	private static final String ERROR_NAME_EMPTY = "Character name can not be empty.";
-	private static final String ERROR_NAME_FORMAT = "Character names must contain only letters.";
-	private static final String ERROR_NAME_LENGTH = "Character names must between 3 and 20 letters long.";
+	private static final EncodedPacket ERROR_NAME_TAKEN = ConstantPackets.register("That character name is taken.");
+	private static final EncodedPacket ERROR_NAME_EMPTY = ConstantPackets.register("Character name can not be empty.");
+	private static final EncodedPacket ERROR_NAME_FORMAT = ConstantPackets.register("Character names must contain only letters.");
+	private static final EncodedPacket ERROR_NAME_LENGTH = ConstantPackets.register("Character names must between 3 and 20 letters long.");
 	//race strings
-	private static final String ERROR_RACE_EMPTY = "Character race can not be empty.";
-	private static final String ERROR_RACE_FORMAT = "Character races must contain only letters.";
-	private static final String ERROR_RACE_LENGTH = "Character races must between 3 and 20 letters long.";
+	private static final EncodedPacket ERROR_RACE_EMPTY = ConstantPackets.register("Character race can not be empty.");
+	private static final EncodedPacket ERROR_RACE_FORMAT = ConstantPackets.register("Character races must contain only letters.");
+	private static final EncodedPacket ERROR_RACE_LENGTH = ConstantPackets.register("Character races must between 3 and 20 letters long.");
 	//sex strings
-	private static final String ERROR_SEX_EMPTY = "Character sex can not be empty.";
-	private static final String ERROR_SEX_FORMAT = "Character sex must be 'male' or 'female'.";
+	private static final EncodedPacket ERROR_SEX_EMPTY = ConstantPackets.register("Character sex can not be empty.");
+	private static final EncodedPacket ERROR_SEX_FORMAT = ConstantPackets.register("Character sex must be 'male' or 'female'.");
 	//class strings
-	private static final String ERROR_CLASS_EMPTY = "Character class can not be empty.";
-	private static final String ERROR_CLASS_FORMAT = "Character classes must contain only letters.";
-	private static final String ERROR_CLASS_LENGTH = "Character classes can not be longer than 20 letters.";
+	private static final EncodedPacket ERROR_CLASS_EMPTY = ConstantPackets.register("Character class can not be empty.");
+	private static final EncodedPacket ERROR_CLASS_FORMAT = ConstantPackets.register("Character classes must contain only letters.");
+	private static final EncodedPacket ERROR_CLASS_LENGTH = ConstantPackets.register("Character classes can not be longer than 20 letters.");
 	//description strings
-	private static final String ERROR_DESCRIPTION_LENGTH = "Character descriptions can not be longer than 200 letters.";
+	private static final EncodedPacket ERROR_DESCRIPTION_LENGTH = ConstantPackets.register("Character descriptions can not be longer than 200 letters.");
 	
 	//Prompt related strings
 	private static final String PROMPT_EXIT_STRING = "exit";
@@ -50,6 +47,8 @@ public class CreateCharacterPrompt implements Prompt {
 	
 	//Data fields
 	private MudServerThread serverThread;
+	private CharacterNameIndex names;
+	private String reservedName;
 	private boolean prompting;
 	private int promptCount;
 	private PlayerCharacter userCharacter;
@@ -65,6 +64,8 @@ public class CreateCharacterPrompt implements Prompt {
 	 */
 	public CreateCharacterPrompt(MudServerThread serverThread) {
 		this.serverThread = serverThread;
+		this.names = serverThread.getParentThread().getNameIndex();
+		this.reservedName = null;
 		this.prompting = false;
 		this.promptCount = 0;
 	}
@@ -79,6 +80,25 @@ public class CreateCharacterPrompt implements Prompt {
 	 *                 interrupted.
 	 */
 	public boolean run() {
+		boolean success = false;
+		try {
+			success = this.prompt();
+		}
+		finally {
+			//Free the character name if the character was not created.
+			if(!success) {
+				this.releaseName();
+			}
+		}
+		return success;
+	}
+	
+	/**
+	 * Prompt for every field in turn until they have all been filled in
+	 * properly, or until the user enters the prompt exit string.
+	 * @return success True if the character was created.
+	 */
+	private boolean prompt() {
 		boolean success = false;
 		this.prompting = true;
 		
@@ -90,6 +110,9 @@ public class CreateCharacterPrompt implements Prompt {
 			switch(this.promptCount) {
 				//Character name
 				case 0:
+					//Give up the name picked before backing up to this field.
+					this.releaseName();
+					
 					//Prompt user for character name.
 					name = promptUser(CHARACTER_CREATE_NAME);
 					
@@ -309,7 +332,7 @@ public class CreateCharacterPrompt implements Prompt {
 		boolean valid = true;
 		
 		//Make sure character name is available.
-		if(!characterNameAvailable(name)) {
+		if(!this.names.isAvailable(name)) {
 			valid = false;
 			serverThread.write(ERROR_NAME_TAKEN);
 		}
@@ -328,53 +351,36 @@ public class CreateCharacterPrompt implements Prompt {
 			valid = false;
 			serverThread.write(ERROR_NAME_LENGTH);
 		}
+		//Hold the name until the character is created, in case another player picks it too.
+		if(valid && !this.reserveName(name)) {
+			valid = false;
+			serverThread.write(ERROR_NAME_TAKEN);
+		}
 		
 		return valid;
 	}
 	
 	/**
-	 * Checks the character map of every account file for
-	 * the given name. Returns true the first time a name match
-	 * is found.
-	 * 
-	 * @param name The name string to search for.
-	 * @return success boolean, True if the character name is available.
-	 *                          False if the name is taken.
+	 * Reserve a character name in the server's character name index for this account.
+	 * @param name The character name to reserve.
+	 * @return success True if the name was reserved, false if it is taken.
+	 */
+	private boolean reserveName(String name) {
+		if(this.names.reserve(name, serverThread.getUser().getAccountName())) {
+			this.reservedName = name;
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Release the character name reserved by this prompt, if any.
 	 */
-	private boolean characterNameAvailable(String name) {
-		 //First make sure we're ignoring case.
-	     name = name.toLowerCase();
-	     
-	     //Create a file for the accounts directory.
-		 File dir = new File(ACCOUNT_PATH);
-		 
-		 //If the accounts directory exists, continue.
-		 if(dir.isDirectory()) {
-			 //Loop through every account file in the account directory.
-			 for(File accountFile : dir.listFiles()) {
-				 //Load the account file
-				 Account a = new Account(accountFile);
-				 boolean loadSuccess = a.load();
-				 
-				 if(loadSuccess) {
-					 //Get the character map from the account.
-					 HashMap<String, PlayerCharacter> accountCharacters = a.getCharacters();
-					 //If the name is in the account character map, then the name is taken
-					 //and we can end the search. Otherwise, check the next account file.
-					 if(accountCharacters.containsKey(name)) {
-						 return false;
-					 }
-				 }
-			 }
-			 //If we went through every account and character name,
-			 //then the character name is available.
-			 return true;
-		 }
-		 //If the account directory does not exist,
-		 //then we have no accounts, and all character names are available.
-		 else {
-			 return true;
-		 }
+	private void releaseName() {
+		if(this.reservedName != null) {
+			this.names.release(this.reservedName, serverThread.getUser().getAccountName());
+			this.reservedName = null;
+		}
 	}
 	
 	/**
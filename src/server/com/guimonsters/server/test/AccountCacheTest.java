@@ -0,0 +1,128 @@
+package com.guimonsters.server.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.guimonsters.server.game.Account;
+import com.guimonsters.server.game.AccountCache;
+
+/**
+ * Tests the AccountCache class.
+ * The test accounts are created in the server's account directory and deleted afterwards.
+ * @author Elijah Atkinson
+ * @version 1.00, 2013-05-12
+ */
+public class AccountCacheTest {
+
+	private static final String PASSWORD = "secret";
+
+	private Account first;
+	private Account second;
+
+	@Before
+	public void setUp() {
+		new File(Account.ACCOUNT_DIRECTORY).mkdirs();
+		this.first = new Account("cachetest"+System.nanoTime(), PASSWORD);
+		this.second = new Account("cachetest"+System.nanoTime(), PASSWORD);
+		assertTrue(this.first.create());
+		assertTrue(this.second.create());
+	}
+
+	@After
+	public void tearDown() {
+		new File(Account.ACCOUNT_DIRECTORY, this.first.getAccountName()+".ser").delete();
+		new File(Account.ACCOUNT_DIRECTORY, this.second.getAccountName()+".ser").delete();
+	}
+
+	/**
+	 * Test that a released account is served from the cache, and only with the right password.
+	 */
+	@Test
+	public void testHit() {
+		AccountCache cache = new AccountCache(10, 0);
+		Account account = cache.logIn(this.first.getAccountName(), PASSWORD);
+		assertNotNull(account);
+		assertEquals(1, cache.getMisses());
+		cache.release(account);
+
+		assertSame(account, cache.logIn(this.first.getAccountName(), PASSWORD));
+		assertEquals(1, cache.getHits());
+		assertNull(cache.logIn(this.first.getAccountName(), "wrong"));
+		assertNull(cache.logIn("nobody"+System.nanoTime(), PASSWORD));
+	}
+
+	/**
+	 * Test that an account is only served to the exact name it was created with,
+	 * even when its file can be opened under another case.
+	 */
+	@Test
+	public void testNamesAreCaseSensitive() throws IOException {
+		Account upper = new Account("CacheTest"+System.nanoTime(), PASSWORD);
+		assertTrue(upper.create());
+		File upperFile = new File(Account.ACCOUNT_DIRECTORY, upper.getAccountName()+".ser");
+		File lowerFile = new File(Account.ACCOUNT_DIRECTORY, upper.getAccountName().toLowerCase()+".ser");
+		//Give the lower case name a file on a file system that tells them apart,
+		//as one that ignores case would.
+		boolean copied = !lowerFile.exists();
+		if(copied) {
+			Files.copy(upperFile.toPath(), lowerFile.toPath());
+		}
+		try {
+			AccountCache cache = new AccountCache(10, 0);
+			Account account = cache.logIn(upper.getAccountName(), PASSWORD);
+			assertNotNull(account);
+			cache.release(account);
+
+			assertNull(cache.logIn(upper.getAccountName().toLowerCase(), PASSWORD));
+			assertSame(account, cache.logIn(upper.getAccountName(), PASSWORD));
+		}
+		finally {
+			upperFile.delete();
+			if(copied) {
+				lowerFile.delete();
+			}
+		}
+	}
+
+	/**
+	 * Test that the least recently used account is evicted first, and pinned accounts never are.
+	 */
+	@Test
+	public void testEviction() {
+		AccountCache cache = new AccountCache(1, 0);
+		Account a = cache.logIn(this.first.getAccountName(), PASSWORD);
+		Account b = cache.logIn(this.second.getAccountName(), PASSWORD);
+		assertEquals(2, cache.size());
+		assertEquals(2, cache.getPinnedCount());
+
+		cache.release(a);
+		cache.release(b);
+		assertEquals(1, cache.size());
+		assertEquals(1, cache.getEvictions());
+		assertSame(b, cache.logIn(this.second.getAccountName(), PASSWORD));
+	}
+
+	/**
+	 * Test that accounts with unsaved changes stay cached.
+	 */
+	@Test
+	public void testDirtyNotEvicted() {
+		AccountCache cache = new AccountCache(0, 1);
+		Account account = cache.logIn(this.first.getAccountName(), PASSWORD);
+		account.markDirty();
+		cache.release(account);
+		assertEquals(0, cache.sweep());
+		assertEquals(1, cache.size());
+
+		account.save();
+		assertEquals(1, cache.sweep());
+		assertEquals(0, cache.size());
+	}
+}
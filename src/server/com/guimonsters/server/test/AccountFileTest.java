@@ -0,0 +1,57 @@
+package com.guimonsters.server.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import com.guimonsters.server.file.AccountFile;
+import com.guimonsters.server.file.Serializer;
+
+/**
+ * Tests the AccountFile class.
+ * @author Elijah Atkinson
+ * @version 1.00, 2013-05-12
+ */
+public class AccountFileTest {
+
+	/**
+	 * Test that the header can be read on its own, and the object after it.
+	 */
+	@Test
+	public void testHeader() throws Exception {
+		File file = File.createTempFile("account", ".ser");
+		try {
+			assertTrue(new AccountFile(file, "payload", "alice", "hash").serialize());
+
+			AccountFile reader = new AccountFile(file);
+			assertTrue(reader.readHeader());
+			assertEquals("alice", reader.getAccountName());
+			assertEquals("hash", reader.getPasswordHash());
+			assertEquals("payload", reader.deserialize());
+		}
+		finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Test that a file written without a header is still read.
+	 */
+	@Test
+	public void testFileWithoutHeader() throws IOException, ClassNotFoundException {
+		File file = File.createTempFile("account", ".ser");
+		try {
+			assertTrue(new Serializer(file, "payload").serialize());
+
+			AccountFile reader = new AccountFile(file);
+			assertFalse(reader.readHeader());
+			assertEquals("payload", reader.deserialize());
+		}
+		finally {
+			file.delete();
+		}
+	}
+}
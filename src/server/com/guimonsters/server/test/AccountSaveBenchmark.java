@@ -0,0 +1,118 @@
+package com.guimonsters.server.test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+
+import com.guimonsters.server.file.AccountFile;
+import com.guimonsters.server.file.AtomicFile;
+import com.guimonsters.server.game.PlayerCharacter;
+
+/**
+ * Times saving many account files at once, as when many players log out together.
+ * Compares writing the files in place, replacing each file atomically with its own
+ * directory sync, and replacing them atomically with one shared directory sync.
+ * Run with: java com.guimonsters.server.test.AccountSaveBenchmark [accounts] [threads]
+ * @author Elijah Atkinson
+ * @version 1.00, 2013-05-12
+ */
+public class AccountSaveBenchmark {
+
+	private static final int CHARACTERS = 3;
+
+	public static void main(String[] args) throws Exception {
+		int accounts = args.length > 0 ? Integer.parseInt(args[0]) : 400;
+		int threads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+
+		File directory = File.createTempFile("accounts", "");
+		directory.delete();
+		directory.mkdirs();
+		try {
+			HashMap<String, PlayerCharacter> characters = createCharacters();
+			for(int round = 0; round < 2; round++) {
+				run("in place", directory, characters, accounts, threads, null, false);
+				run("atomic", directory, characters, accounts, threads, null, true);
+				run("batched", directory, characters, accounts, threads, new AtomicFile.SyncBatch(), true);
+			}
+		}
+		finally {
+			for(File file : directory.listFiles()) {
+				file.delete();
+			}
+			directory.delete();
+		}
+	}
+
+	private static HashMap<String, PlayerCharacter> createCharacters() {
+		HashMap<String, PlayerCharacter> characters = new HashMap<String, PlayerCharacter>();
+		for(int i = 0; i < CHARACTERS; i++) {
+			PlayerCharacter character = new PlayerCharacter("Hero"+i, "A hero of the realm.", "Fighter", "Human", "Female");
+			characters.put(character.getName().toLowerCase(), character);
+		}
+		return characters;
+	}
+
+	/**
+	 * Save every account once, split between threads, and print the throughput.
+	 */
+	private static void run(String name, final File directory, final HashMap<String, PlayerCharacter> characters,
+			final int accounts, int threads, final AtomicFile.SyncBatch batch, final boolean atomic) throws Exception {
+		Thread[] savers = new Thread[threads];
+		final IOException[] failure = new IOException[1];
+		long start = System.nanoTime();
+		for(int t = 0; t < threads; t++) {
+			final int first = t;
+			final int step = threads;
+			savers[t] = new Thread() {
+				public void run() {
+					for(int i = first; i < accounts; i += step) {
+						File file = new File(directory, "account"+i+".ser");
+						AccountFile accountFile = new AccountFile(file, characters, "account"+i, "hash");
+						try {
+							if(!atomic) {
+								saveInPlace(file, characters);
+							}
+							else if(!accountFile.serialize(batch)) {
+								throw new IOException("Could not save "+file);
+							}
+						}
+						catch (IOException e) {
+							failure[0] = e;
+						}
+					}
+				}
+			};
+			savers[t].start();
+		}
+		for(Thread saver : savers) {
+			saver.join();
+		}
+		long syncs = atomic ? accounts : 0;
+		if(batch != null) {
+			batch.sync();
+			syncs = batch.getSyncs();
+		}
+		long nanos = System.nanoTime() - start;
+		if(failure[0] != null) {
+			throw failure[0];
+		}
+
+		System.out.printf("%-9s %5d accounts, %2d threads: %8.1f ms, %8.0f saves/s, %5d directory syncs%n",
+				name, accounts, threads, nanos / 1e6, accounts / (nanos / 1e9), syncs);
+	}
+
+	/**
+	 * Write an account file the way it was written before, straight over the old file.
+	 */
+	private static void saveInPlace(File file, Object account) throws IOException {
+		ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(file));
+		try {
+			out.writeObject(account);
+		}
+		finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,97 @@
+package com.guimonsters.server.test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import com.guimonsters.network.Directive;
+import com.guimonsters.network.EncodedPacket;
+import com.guimonsters.network.FrameProtocol;
+import com.guimonsters.network.Packet;
+
+/**
+ * Times building the frames of one broadcast for 1, 100 and 5000 recipients,
+ * encoding the packet again for every recipient as broadcasts used to, and
+ * encoding it once into an EncodedPacket whose frame every recipient shares.
+ * Every case is run once to warm up the JIT and then timed.
+ * Heap allocation is measured where the JVM can report it for a thread.
+ * Run with: java com.guimonsters.server.test.BroadcastBenchmark [broadcasts]
+ * @author Elijah Atkinson
+ * @version 1.00, 2013-05-12
+ */
+public class BroadcastBenchmark {
+
+	private static final int[] RECIPIENTS = {1, 100, 5000};
+	private static final Packet CHAT = new Packet("Bob says, \"Has anyone seen the blacksmith? He owes me a sword.\"", Directive.MESSAGE);
+
+	//Keeps the JIT from throwing the frames away.
+	private static long sink;
+
+	public static void main(String[] args) throws Exception {
+		//Enough recipients in total for every case to take a similar time.
+		long frames = args.length > 0 ? Long.parseLong(args[0]) : 2000000;
+		byte[] codecs = {FrameProtocol.CODEC_BINARY, FrameProtocol.CODEC_SERIALIZED};
+		String[] codecNames = {"binary", "serialized"};
+
+		for(int round = 0; round < 2; round++) {
+			boolean print = round == 1;
+			if(print) {
+				System.out.printf("%-10s %10s %-8s %14s %14s %16s%n", "codec", "recipients", "encoding",
+						"ns/broadcast", "ns/recipient", "bytes/recipient");
+			}
+			for(int c = 0; c < codecs.length; c++) {
+				//The serialized codec is much slower, so it is given fewer frames.
+				long codecFrames = codecs[c] == FrameProtocol.CODEC_SERIALIZED ? frames / 10 : frames;
+				for(int recipients : RECIPIENTS) {
+					int broadcasts = (int) Math.max(1, codecFrames / recipients);
+					run(codecNames[c], codecs[c], recipients, broadcasts, false, print);
+					run(codecNames[c], codecs[c], recipients, broadcasts, true, print);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Build the frames of a number of broadcasts and print the time and heap they took.
+	 * @param shared True to share one EncodedPacket, false to encode for every recipient.
+	 */
+	private static void run(String codecName, byte codec, int recipients, int broadcasts,
+			boolean shared, boolean print) throws Exception {
+		long allocated = allocatedBytes();
+		long start = System.nanoTime();
+		for(int b = 0; b < broadcasts; b++) {
+			if(shared) {
+				EncodedPacket packet = new EncodedPacket(CHAT);
+				for(int r = 0; r < recipients; r++) {
+					ByteBuffer frame = packet.frame(codec);
+					sink += frame.remaining();
+				}
+			}
+			else {
+				for(int r = 0; r < recipients; r++) {
+					ByteBuffer frame = FrameProtocol.frame(CHAT, codec);
+					sink += frame.remaining();
+				}
+			}
+		}
+		long nanos = System.nanoTime() - start;
+		allocated = allocatedBytes() - allocated;
+
+		if(print) {
+			long frames = (long) broadcasts * recipients;
+			System.out.printf("%-10s %10d %-8s %14.0f %14.1f %16s%n", codecName, recipients, shared ? "shared" : "each",
+					nanos / (double) broadcasts, nanos / (double) frames,
+					allocated < 0 ? "n/a" : String.format("%.0f", allocated / (double) frames));
+		}
+	}
+
+	/**
+	 * Return the bytes this thread has allocated, or -1 if the JVM can not tell.
+	 */
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if(threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+}
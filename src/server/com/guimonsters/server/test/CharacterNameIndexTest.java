@@ -0,0 +1,133 @@
+package com.guimonsters.server.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.guimonsters.server.file.AccountFile;
+import com.guimonsters.server.game.Account;
+import com.guimonsters.server.game.CharacterNameIndex;
+import com.guimonsters.server.game.PlayerCharacter;
+
+/**
+ * Tests the CharacterNameIndex class.
+ * @author Elijah Atkinson
+ * @version 1.00, 2013-05-12
+ */
+public class CharacterNameIndexTest {
+
+	private File directory;
+	private CharacterNameIndex index;
+
+	@Before
+	public void setUp() throws IOException {
+		this.directory = Files.createTempDirectory("accounts").toFile();
+		this.index = new CharacterNameIndex(this.directory);
+		this.index.load();
+	}
+
+	@After
+	public void tearDown() {
+		for(File file : this.directory.listFiles()) {
+			file.delete();
+		}
+		this.directory.delete();
+	}
+
+	/**
+	 * Test that only one account can reserve a name, whatever its case.
+	 */
+	@Test
+	public void testReserve() {
+		assertTrue(this.index.isAvailable("Bob"));
+		assertTrue(this.index.reserve("Bob", "alice"));
+		assertFalse(this.index.isAvailable("bob"));
+		assertFalse(this.index.reserve("BOB", "carol"));
+		assertEquals("alice", this.index.getOwner("bob"));
+	}
+
+	/**
+	 * Test that a released name is free again, but a committed name can not be released.
+	 */
+	@Test
+	public void testRelease() {
+		this.index.reserve("Bob", "alice");
+		this.index.release("Bob", "alice");
+		assertTrue(this.index.isAvailable("Bob"));
+
+		this.index.reserve("Bob", "alice");
+		assertTrue(this.index.commit("Bob", "alice"));
+		this.index.release("Bob", "alice");
+		assertFalse(this.index.isAvailable("Bob"));
+	}
+
+	/**
+	 * Test that committed names are read back from the index file once their account is saved,
+	 * and names that were only reserved are not.
+	 */
+	@Test
+	public void testCommitIsSaved() {
+		this.index.reserve("Bob", "alice");
+		this.index.commit("Bob", "alice");
+		this.index.reserve("Dave", "carol");
+		assertEquals(1, this.index.getUnwrittenCount());
+
+		CharacterNameIndex reloaded = new CharacterNameIndex(this.directory);
+		assertEquals(0, reloaded.load());
+
+		this.index.accountSaved("alice", this.index.getCommits());
+		assertEquals(0, this.index.getUnwrittenCount());
+		reloaded = new CharacterNameIndex(this.directory);
+		assertEquals(1, reloaded.load());
+		assertEquals("alice", reloaded.getOwner("Bob"));
+		assertTrue(reloaded.isAvailable("Dave"));
+	}
+
+	/**
+	 * Test that a name committed after an account was saved waits for the next save.
+	 */
+	@Test
+	public void testCommitAfterSaveWaits() {
+		long commit = this.index.getCommits();
+		this.index.commit("Bob", "alice");
+		this.index.accountSaved("alice", commit);
+		assertEquals(1, this.index.getUnwrittenCount());
+
+		this.index.accountSaved("alice", this.index.getCommits());
+		assertEquals(0, this.index.getUnwrittenCount());
+	}
+
+	/**
+	 * Test that the characters of an account written after the index file are added on load,
+	 * as when the server stopped between saving the account and writing the index.
+	 */
+	@Test
+	public void testNewerAccountIsRead() throws IOException {
+		assertTrue(this.index.getIndexFile().setLastModified(System.currentTimeMillis() - 60000));
+		HashMap<String, PlayerCharacter> characters = new HashMap<String, PlayerCharacter>();
+		characters.put("bob", new PlayerCharacter("Bob", "tall", "Warrior", "Human", "male"));
+		Account account = new Account("alice", "password", characters);
+		assertTrue(new AccountFile(new File(this.directory, "alice.ser"), account, "alice", "hash").serialize());
+
+		CharacterNameIndex reloaded = new CharacterNameIndex(this.directory);
+		assertEquals(1, reloaded.load());
+		assertEquals("alice", reloaded.getOwner("Bob"));
+	}
+
+	/**
+	 * Test that a name owned by one account can not be committed to another.
+	 */
+	@Test
+	public void testCommitTakenName() {
+		this.index.reserve("Bob", "alice");
+		assertFalse(this.index.commit("Bob", "carol"));
+		assertEquals("alice", this.index.getOwner("Bob"));
+	}
+}
@@ -0,0 +1,179 @@
+package com.guimonsters.server.test;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.guimonsters.network.FrameProtocol;
+import com.guimonsters.network.Packet;
+import com.guimonsters.server.ServerConfig;
+import com.guimonsters.server.ServerSocketThread;
+
+/**
+ * Measures how many client sessions a connection mode holds on a fixed heap.
+ * Starts a server in this JVM, connects idle framed clients until the session count
+ * is reached or the server can not take another one, and prints the heap and threads
+ * each session costs. Then keeps a number of the sessions busy sending commands
+ * and prints the round trips per second.
+ * Run each mode in its own JVM with the same heap, for example:
+ * java -Xmx256m com.guimonsters.server.test.ConnectionCapacityBenchmark [thread|virtual|selector] [sessions] [active] [port]
+ * @author Elijah Atkinson
+ * @version 1.00, 2013-05-12
+ */
+public class ConnectionCapacityBenchmark {
+
+	private static final int STEP = 500;
+	private static final int TIMEOUT = 10000;
+	private static final long ACTIVE_NANOS = 3000000000L;
+
+	public static void main(String[] args) throws Exception {
+		String mode = args.length > 0 ? args[0] : "thread";
+		int sessions = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+		int active = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+		int port = args.length > 3 ? Integer.parseInt(args[3]) : 7790;
+
+		ServerConfig config = new ServerConfig();
+		config.set(ServerConfig.PORT, Integer.toString(port));
+		config.set(ServerConfig.CONNECTION_MODE, mode);
+		config.set(ServerConfig.JOURNAL_ENABLED, "false");
+		//Heartbeats would be read as command responses.
+		config.set(ServerConfig.HEARTBEAT_INTERVAL, "0");
+		config.set(ServerConfig.ADMISSION_MAX_SESSIONS, Integer.toString(sessions + 1));
+		config.set(ServerConfig.ADMISSION_MAX_PENDING, Integer.toString(sessions + 1));
+		config.set(ServerConfig.ADMISSION_PER_MINUTE, Integer.toString(sessions + 1));
+		config.set(ServerConfig.ADMISSION_BURST, Integer.toString(sessions + 1));
+		new ServerSocketThread(config).start();
+
+		List<Client> clients = new ArrayList<Client>();
+		clients.add(connect(port, true));
+		long baseHeap = usedHeap();
+		int baseThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+		long start = System.nanoTime();
+
+		//Idle sessions, added until the count is reached or the server runs out of room.
+		String stopped = null;
+		try {
+			while(clients.size() < sessions) {
+				clients.add(connect(port, false));
+				if(clients.size() % STEP == 0) {
+					System.out.printf("%-8s %6d sessions, %6.1f MB heap%n", mode, clients.size(), (usedHeap() - baseHeap) / 1e6);
+				}
+			}
+		}
+		catch (IOException | OutOfMemoryError e) {
+			stopped = e.toString();
+		}
+		long connectNanos = System.nanoTime() - start;
+		long heap = usedHeap() - baseHeap;
+		int threads = ManagementFactory.getThreadMXBean().getThreadCount() - baseThreads;
+		int held = clients.size() - 1;
+
+		System.out.printf("%-8s held %6d idle sessions in %6.1f s, max heap %5d MB%n",
+				mode, held, connectNanos / 1e9, Runtime.getRuntime().maxMemory() >> 20);
+		System.out.printf("%-8s %8.1f KB heap per session, %6d server threads (%5.2f per session)%n",
+				mode, heap / 1024.0 / held, threads, threads / (double) held);
+		if(stopped != null) {
+			System.out.println(mode+"  stopped by "+stopped);
+		}
+
+		//Active sessions, each with one command in flight at a time.
+		List<Client> busy = clients.subList(0, Math.min(active, clients.size()));
+		long commands = 0;
+		start = System.nanoTime();
+		while(System.nanoTime() - start < ACTIVE_NANOS) {
+			for(Client client : busy) {
+				client.send("help");
+			}
+			for(Client client : busy) {
+				client.receive();
+			}
+			commands += busy.size();
+		}
+		long activeNanos = System.nanoTime() - start;
+		System.out.printf("%-8s %6d active sessions: %8.0f commands/s, %6.2f ms per round%n",
+				mode, busy.size(), commands / (activeNanos / 1e9), activeNanos / 1e6 / (commands / busy.size()));
+
+		//The server has no world to save, so it is stopped with the JVM.
+		for(Client client : clients) {
+			client.close();
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Connect a framed client, and wait for the server to answer its handshake,
+	 * which the server only does once a session has started for it.
+	 */
+	private static Client connect(int port, boolean retry) throws IOException {
+		while(true) {
+			try {
+				return new Client(port);
+			}
+			catch (IOException e) {
+				if(!retry) {
+					throw e;
+				}
+				try {
+					Thread.sleep(100);
+				}
+				catch (InterruptedException interrupted) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		for(int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * A framed client using the binary codec.
+	 */
+	private static class Client {
+
+		private Socket socket;
+		private DataInputStream in;
+		private DataOutputStream out;
+
+		private Client(int port) throws IOException {
+			this.socket = new Socket(InetAddress.getLoopbackAddress(), port);
+			this.socket.setSoTimeout(TIMEOUT);
+			this.socket.setTcpNoDelay(true);
+			this.in = new DataInputStream(this.socket.getInputStream());
+			this.out = new DataOutputStream(new BufferedOutputStream(this.socket.getOutputStream()));
+			this.out.write(FrameProtocol.handshake(FrameProtocol.CODEC_BINARY));
+			this.out.flush();
+			this.in.readFully(new byte[FrameProtocol.HANDSHAKE_LENGTH]);
+		}
+
+		private void send(String command) throws IOException {
+			FrameProtocol.writeFrame(this.out, new Packet(command), FrameProtocol.CODEC_BINARY);
+			this.out.flush();
+		}
+
+		private Packet receive() throws IOException {
+			return FrameProtocol.readFrame(this.in, FrameProtocol.CODEC_BINARY);
+		}
+
+		private void close() {
+			try {
+				this.socket.close();
+			}
+			catch (IOException e) {
+				//Closed either way.
+			}
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package com.guimonsters.server.test;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import com.guimonsters.network.Directive;
+import com.guimonsters.network.FrameProtocol;
+import com.guimonsters.network.Packet;
+
+/**
+ * Tests the packet codecs of the FrameProtocol class.
+ * @author Elijah Atkinson
+ * @version 1.00, 2013-05-11
+ */
+public class FrameProtocolTest {
+
+	/**
+	 * Test that every directive survives a round trip through the binary codec.
+	 */
+	@Test
+	public void testBinaryRoundTrip() throws Exception {
+		for(Directive directive : Directive.values()) {
+			Packet p = new Packet("Hello é世!", directive);
+			byte[] payload = FrameProtocol.encode(p, FrameProtocol.CODEC_BINARY);
+			Packet decoded = FrameProtocol.decode(payload, 0, payload.length, FrameProtocol.CODEC_BINARY);
+			assertEquals(p.getMessage(), decoded.getMessage());
+			assertEquals(directive, decoded.getDirective());
+		}
+	}
+
+	/**
+	 * Test that null and empty messages are kept apart by the binary codec.
+	 */
+	@Test
+	public void testBinaryNullMessage() throws Exception {
+		byte[] payload = FrameProtocol.encode(new Packet(null, Directive.DISCONNECT), FrameProtocol.CODEC_BINARY);
+		assertNull(FrameProtocol.decode(payload, 0, payload.length, FrameProtocol.CODEC_BINARY).getMessage());
+
+		payload = FrameProtocol.encode(new Packet(""), FrameProtocol.CODEC_BINARY);
+		assertEquals("", FrameProtocol.decode(payload, 0, payload.length, FrameProtocol.CODEC_BINARY).getMessage());
+	}
+
+	/**
+	 * Test that a binary frame is smaller than a serialized one and holds the same packet.
+	 */
+	@Test
+	public void testBinaryFrame() throws Exception {
+		Packet p = new Packet("say hello");
+		ByteBuffer binary = FrameProtocol.frame(p, FrameProtocol.CODEC_BINARY);
+		ByteBuffer serialized = FrameProtocol.frame(p, FrameProtocol.CODEC_SERIALIZED);
+		assertTrue(binary.remaining() < serialized.remaining());
+
+		int length = binary.getInt();
+		assertEquals(binary.remaining(), length);
+		Packet decoded = FrameProtocol.decode(binary.array(), binary.position(), length, FrameProtocol.CODEC_BINARY);
+		assertEquals("say hello", decoded.getMessage());
+	}
+}
@@ -0,0 +1,47 @@
+package com.guimonsters.server.test;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.guimonsters.server.GameLoopGroup;
+import com.guimonsters.server.game.Room;
+
+/**
+ * Tests how the GameLoopGroup gives zones to its loops.
+ * @author Elijah Atkinson
+ * @version 1.00, 2013-05-12
+ */
+public class GameLoopGroupTest {
+
+	private static Room room(String name, String zoneName) {
+		Room room = new Room(name, "A room.");
+		room.setZoneName(zoneName);
+		return room;
+	}
+
+	/**
+	 * Test that every room of a zone has the same loop, and zones are spread over the loops.
+	 */
+	@Test
+	public void testZonesSpreadOverLoops() {
+		GameLoopGroup group = new GameLoopGroup(2, 50, true);
+		Room hall = room("Hall", "zone1");
+		Room kitchen = room("Kitchen", "zone1");
+		Room cave = room("Cave", "zone2");
+
+		assertSame(group.getOwner(hall), group.getOwner(kitchen));
+		assertNotSame(group.getOwner(hall), group.getOwner(cave));
+		assertEquals(group.getOwner(hall).getIndex(), group.getOwnerIndex("zone1"));
+		assertEquals(-1, group.getOwnerIndex("zone3"));
+	}
+
+	/**
+	 * Test that the rooms of a world that is not sharded all share one loop.
+	 */
+	@Test
+	public void testUnshardedWorldUsesOneLoop() {
+		GameLoopGroup group = new GameLoopGroup(4, 50, true);
+		assertSame(group.getOwner(room("Hall", null)), group.getOwner(room("Cave", null)));
+	}
+}
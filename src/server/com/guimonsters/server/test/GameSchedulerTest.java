@@ -0,0 +1,118 @@
+package com.guimonsters.server.test;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.guimonsters.server.GameScheduler;
+
+/**
+ * Tests the GameScheduler timer wheels.
+ * @author Elijah Atkinson
+ * @version 1.00, 2013-05-12
+ */
+public class GameSchedulerTest {
+
+	private GameScheduler scheduler;
+	private List<Long> runs;
+
+	@Before
+	public void setUp() {
+		this.scheduler = new GameScheduler();
+		this.runs = new ArrayList<Long>();
+		//The first tick makes this thread the scheduler's own thread.
+		this.scheduler.tick();
+	}
+
+	/**
+	 * Record the tick a task ran on.
+	 */
+	private Runnable record() {
+		return new Runnable() {
+			public void run() {
+				runs.add(scheduler.getTick());
+			}
+		};
+	}
+
+	private void advance(long ticks) {
+		for(long i = 0; i < ticks; i++) {
+			this.scheduler.tick();
+		}
+	}
+
+	/**
+	 * Test that events run on the tick they are due, including those moved down from the upper wheels.
+	 */
+	@Test
+	public void testRunsOnTime() {
+		long start = this.scheduler.getTick();
+		long[] delays = {1, 255, 256, 300, 16384, 70000};
+		for(long delay : delays) {
+			this.scheduler.schedule(this.record(), delay);
+		}
+		assertEquals(delays.length, this.scheduler.getPending());
+
+		this.advance(70001);
+		assertEquals(delays.length, this.runs.size());
+		for(int i = 0; i < delays.length; i++) {
+			assertEquals(start + delays[i], (long) this.runs.get(i));
+		}
+		assertEquals(0, this.scheduler.getPending());
+	}
+
+	/**
+	 * Test that a cancelled event never runs and leaves the wheel at once.
+	 */
+	@Test
+	public void testCancel() {
+		GameScheduler.Timer timer = this.scheduler.schedule(this.record(), 10);
+		this.scheduler.schedule(this.record(), 10);
+		timer.cancel();
+		assertTrue(timer.isCancelled());
+		assertEquals(1, this.scheduler.getPending());
+
+		this.advance(11);
+		assertEquals(1, this.runs.size());
+	}
+
+	/**
+	 * Test that a repeating event runs every period until it is cancelled.
+	 */
+	@Test
+	public void testRepeating() {
+		long start = this.scheduler.getTick();
+		GameScheduler.Timer timer = this.scheduler.scheduleRepeating(this.record(), 5, 100);
+		this.advance(306);
+		assertEquals(4, this.runs.size());
+		assertEquals(start + 305, (long) this.runs.get(3));
+
+		timer.cancel();
+		this.advance(200);
+		assertEquals(4, this.runs.size());
+	}
+
+	/**
+	 * Test that events scheduled by another thread are placed on the next tick.
+	 */
+	@Test
+	public void testScheduleFromOtherThread() throws InterruptedException {
+		Thread other = new Thread() {
+			public void run() {
+				scheduler.schedule(record(), 3);
+			}
+		};
+		other.start();
+		other.join();
+		assertEquals(0, this.scheduler.getPending());
+
+		long start = this.scheduler.getTick();
+		this.advance(4);
+		assertEquals(1, this.runs.size());
+		assertEquals(start + 3, (long) this.runs.get(0));
+	}
+}
@@ -0,0 +1,128 @@
+package com.guimonsters.server.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.guimonsters.server.file.Journal;
+import com.guimonsters.server.game.GameWorld;
+import com.guimonsters.server.game.PlayerCharacter;
+
+/**
+ * Tests replaying the Journal after the server stops.
+ * @author Elijah Atkinson
+ * @version 1.00, 2013-05-12
+ */
+public class JournalTest {
+
+	private File directory;
+
+	/**
+	 * A world that is never written to a file.
+	 */
+	private static class TestWorld extends GameWorld {
+
+		private static final long serialVersionUID = 1L;
+		private int saves;
+
+		public boolean save() {
+			this.saves++;
+			return true;
+		}
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		this.directory = File.createTempFile("journal", "");
+		this.directory.delete();
+		this.directory.mkdirs();
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = this.directory.listFiles();
+		if(files != null) {
+			for(File file : files) {
+				file.delete();
+			}
+		}
+		this.directory.delete();
+	}
+
+	private Journal open(GameWorld world) throws Exception {
+		Journal journal = new Journal(this.directory, "test", 0);
+		journal.open(world);
+		journal.start();
+		return journal;
+	}
+
+	/**
+	 * Test that the records before a record cut off by a crash are replayed,
+	 * and the damaged segment is deleted once the world is saved.
+	 */
+	@Test
+	public void testReplayTornSegment() throws Exception {
+		Journal journal = this.open(new TestWorld());
+		journal.roomAdded("Hall", "A long hall.");
+		journal.roomAdded("Cave", "A dark cave.");
+		journal.terminate();
+
+		//Cut the last record off part way through, as a crash during a write would.
+		File[] segments = this.directory.listFiles();
+		assertEquals(1, segments.length);
+		RandomAccessFile file = new RandomAccessFile(segments[0], "rw");
+		try {
+			file.setLength(file.length() - 3);
+		}
+		finally {
+			file.close();
+		}
+
+		TestWorld world = new TestWorld();
+		journal = this.open(world);
+		journal.terminate();
+		assertEquals(1, journal.getReplayed());
+		assertNotNull(world.getRoom("Hall"));
+		assertNull(world.getRoom("Cave"));
+		assertEquals(1, world.saves);
+		assertFalse(segments[0].exists());
+
+		//Nothing is replayed twice.
+		journal = this.open(new TestWorld());
+		journal.terminate();
+		assertEquals(0, journal.getReplayed());
+	}
+
+	/**
+	 * Test that a checkpoint keeps a new character until its account has been saved.
+	 */
+	@Test
+	public void testCharacterKeptUntilAccountSaved() throws Exception {
+		PlayerCharacter character = new PlayerCharacter("Bob", "A test.", "Warrior", "Human", "Male");
+		Journal journal = this.open(new TestWorld());
+		long record = journal.characterAdded("nobody", character);
+		assertTrue(journal.awaitCommit(record, 5000));
+
+		//A checkpoint deletes the segment the character was first written to.
+		journal.deleteSegmentsBefore(journal.rotate());
+		assertEquals(1, journal.getUnsavedCharacters());
+		journal.terminate();
+		journal = this.open(new TestWorld());
+		assertEquals(1, journal.getReplayed());
+
+		//Once the account is saved, the next checkpoint lets the character go.
+		record = journal.characterAdded("nobody", character);
+		journal.accountSaved("nobody", record);
+		assertEquals(0, journal.getUnsavedCharacters());
+		journal.deleteSegmentsBefore(journal.rotate());
+		journal.terminate();
+		journal = this.open(new TestWorld());
+		journal.terminate();
+		assertEquals(0, journal.getReplayed());
+	}
+}
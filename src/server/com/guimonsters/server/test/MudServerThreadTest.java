@@ -0,0 +1,91 @@
+package com.guimonsters.server.test;
+
+import static org.junit.Assert.*;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.guimonsters.network.ChannelConnection;
+import com.guimonsters.network.Directive;
+import com.guimonsters.network.FrameProtocol;
+import com.guimonsters.network.Packet;
+import com.guimonsters.server.MudServerThread;
+import com.guimonsters.server.ServerConfig;
+import com.guimonsters.server.ServerSocketThread;
+
+/**
+ * Tests how a MudServerThread reads the answers to its prompts.
+ * @author Elijah Atkinson
+ * @version 1.00, 2013-05-12
+ */
+public class MudServerThreadTest {
+
+	private ServerSocketChannel listener;
+	private SocketChannel client;
+	private SocketChannel accepted;
+	private Selector selector;
+	private ChannelConnection connection;
+	private MudServerThread session;
+
+	@Before
+	public void setUp() throws Exception {
+		this.listener = ServerSocketChannel.open();
+		this.listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		this.client = SocketChannel.open(this.listener.getLocalAddress());
+		this.accepted = this.listener.accept();
+		this.selector = Selector.open();
+
+		ServerConfig config = new ServerConfig();
+		this.connection = new ChannelConnection(this.accepted, this.selector, new ConcurrentLinkedQueue<ChannelConnection>(),
+				null, config.getConnectionOptions());
+		this.session = new MudServerThread(new ServerSocketThread(config), this.connection, "127.0.0.1");
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		this.client.close();
+		this.accepted.close();
+		this.listener.close();
+		this.selector.close();
+	}
+
+	/**
+	 * Send packets from the client and wait for the connection to decode them.
+	 * @param packets The Packets to send.
+	 */
+	private void send(Packet... packets) throws Exception {
+		this.client.write(ByteBuffer.wrap(FrameProtocol.handshake(FrameProtocol.CODEC_BINARY)));
+		for(Packet p : packets) {
+			this.client.write(FrameProtocol.frame(p, FrameProtocol.CODEC_BINARY));
+		}
+		int decoded = 0;
+		while(decoded < packets.length) {
+			decoded += this.connection.receive();
+		}
+	}
+
+	/**
+	 * Test that a heartbeat reply sent while a prompt waits is skipped,
+	 * and still counts as hearing from the client.
+	 */
+	@Test
+	public void testHeartbeatDuringPrompt() throws Exception {
+		this.send(new Packet(null, Directive.HEARTBEAT), new Packet("Bob"));
+
+		long before = System.nanoTime();
+		Packet answer = this.session.read();
+		assertNotNull(answer);
+		assertEquals("Bob", answer.getMessage());
+		assertTrue(this.session.getLastReceived() >= before);
+		assertFalse(this.connection.hasPackets());
+	}
+}
@@ -0,0 +1,120 @@
+package com.guimonsters.server.test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+
+import com.guimonsters.network.ClientConnection;
+import com.guimonsters.network.Directive;
+import com.guimonsters.network.FrameProtocol;
+import com.guimonsters.network.ManagedObjectOutputStream;
+import com.guimonsters.network.Packet;
+
+/**
+ * Compares the bytes on the wire and the time to encode and decode a packet
+ * with the binary codec, the serialized codec, and the object stream that
+ * legacy clients keep for the whole connection, reset on its default budgets.
+ * Every case is run once to warm up the JIT and then timed.
+ * Run with: java com.guimonsters.server.test.PacketCodecBenchmark [packets]
+ * @author Elijah Atkinson
+ * @version 1.00, 2013-05-12
+ */
+public class PacketCodecBenchmark {
+
+	private static final Packet[] PACKETS = {
+		new Packet("say hello"),
+		new Packet("Bob says, \"Has anyone seen the blacksmith? He owes me a sword.\"", Directive.MESSAGE),
+		new Packet("You are standing in a long stone hall. Torches flicker along the walls, and the "+
+				"floor is worn smooth by the boots of a thousand travellers. A heavy oak door leads "+
+				"north, and a narrow stair winds down into the dark. Exits: north, down.", Directive.MESSAGE),
+		new Packet(null, Directive.HEARTBEAT),
+	};
+	private static final String[] NAMES = {"command", "chat", "room", "heartbeat"};
+
+	//Keeps the JIT from throwing the results away.
+	private static long sink;
+
+	public static void main(String[] args) throws Exception {
+		int packets = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		for(int round = 0; round < 2; round++) {
+			boolean print = round == 1;
+			if(print) {
+				System.out.printf("%-10s %-10s %8s %12s %12s%n", "packet", "codec", "bytes", "encode ns", "decode ns");
+			}
+			for(int i = 0; i < PACKETS.length; i++) {
+				benchmarkFrame(NAMES[i], PACKETS[i], FrameProtocol.CODEC_BINARY, "binary", packets, print);
+				benchmarkFrame(NAMES[i], PACKETS[i], FrameProtocol.CODEC_SERIALIZED, "serialized", packets / 10, print);
+				benchmarkStream(NAMES[i], PACKETS[i], packets / 10, print);
+			}
+		}
+	}
+
+	/**
+	 * Time framing and decoding a packet on its own, as framed connections do.
+	 */
+	private static void benchmarkFrame(String name, Packet p, byte codec, String codecName, int packets, boolean print) throws IOException {
+		int bytes = FrameProtocol.frame(p, codec).remaining();
+
+		long start = System.nanoTime();
+		for(int i = 0; i < packets; i++) {
+			sink += FrameProtocol.frame(p, codec).remaining();
+		}
+		long encodeNanos = System.nanoTime() - start;
+
+		byte[] payload = FrameProtocol.encode(p, codec);
+		start = System.nanoTime();
+		for(int i = 0; i < packets; i++) {
+			sink += FrameProtocol.decode(payload, 0, payload.length, codec).getDirective().ordinal();
+		}
+		long decodeNanos = System.nanoTime() - start;
+
+		if(print) {
+			System.out.printf("%-10s %-10s %8d %12.0f %12.0f%n", name, codecName, bytes,
+					encodeNanos / (double) packets, decodeNanos / (double) packets);
+		}
+	}
+
+	/**
+	 * Time writing and reading a packet on one object stream kept open for
+	 * every packet, as legacy connections do. The class descriptions are only
+	 * sent again after a reset, so this shows the bytes of a packet once the stream is going.
+	 */
+	private static void benchmarkStream(String name, Packet p, int packets, boolean print) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ManagedObjectOutputStream out = new ManagedObjectOutputStream(bytes,
+				ClientConnection.DEFAULT_RESET_PACKETS, ClientConnection.DEFAULT_RESET_BYTES);
+		out.writePacket(copy(p));
+		out.flush();
+		int first = bytes.size();
+
+		long start = System.nanoTime();
+		for(int i = 0; i < packets; i++) {
+			out.writePacket(copy(p));
+		}
+		out.flush();
+		long encodeNanos = System.nanoTime() - start;
+		int perPacket = (bytes.size() - first) / packets;
+
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		in.readObject();
+		start = System.nanoTime();
+		for(int i = 0; i < packets; i++) {
+			sink += ((Packet) in.readObject()).getDirective().ordinal();
+		}
+		long decodeNanos = System.nanoTime() - start;
+
+		if(print) {
+			System.out.printf("%-10s %-10s %8d %12.0f %12.0f%n", name, "stream", perPacket,
+					encodeNanos / (double) packets, decodeNanos / (double) packets);
+		}
+	}
+
+	/**
+	 * Copy a packet and its message, as the server builds a new one for every response,
+	 * so the stream can not send a back reference to the last one.
+	 */
+	private static Packet copy(Packet p) {
+		return new Packet(p.getMessage() == null ? null : new String(p.getMessage()), p.getDirective());
+	}
+}
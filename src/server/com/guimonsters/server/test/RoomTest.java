@@ -0,0 +1,70 @@
+package com.guimonsters.server.test;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.guimonsters.server.game.Exit;
+import com.guimonsters.server.game.GameObject;
+import com.guimonsters.server.game.PlayerCharacter;
+import com.guimonsters.server.game.Room;
+import com.guimonsters.server.game.Visibility;
+
+/**
+ * Tests the room descriptions of the Room class.
+ * @author Elijah Atkinson
+ * @version 1.00, 2013-05-12
+ */
+public class RoomTest {
+
+	private Room room;
+	private PlayerCharacter alice;
+	private PlayerCharacter bob;
+
+	@Before
+	public void setUp() {
+		this.room = new Room("Hall", "A long hall.");
+		this.alice = new PlayerCharacter("Alice", "A hero.", "Fighter", "Human", "Female");
+		this.bob = new PlayerCharacter("Bob", "A hero.", "Wizard", "Elf", "Male");
+	}
+
+	/**
+	 * Test that the player looking is left out, and everyone else is listed.
+	 */
+	@Test
+	public void testDescribePlayers() {
+		this.room.addCharacter(this.alice);
+		assertEquals("A long hall.", this.room.descRoom("Alice"));
+
+		this.room.addCharacter(this.bob);
+		assertEquals("A long hall. You also see Bob.", this.room.descRoom("alice"));
+		assertEquals("A long hall. You also see Alice.", this.room.descRoom("Bob"));
+	}
+
+	/**
+	 * Test that the description changes when something enters or leaves the room.
+	 */
+	@Test
+	public void testDescriptionFollowsChanges() {
+		assertEquals("A long hall.", this.room.descRoom("Alice"));
+		long version = this.room.getVersion();
+
+		this.room.addRoomItem(new GameObject("Stone", "A smooth stone."));
+		this.room.addExit(new Exit("Door", "A wooden door.", this.room));
+		assertTrue(this.room.getVersion() > version);
+		assertEquals("A long hall. It contains Stone. Obvious exits are Door.", this.room.descRoom("Alice"));
+
+		this.room.removeRoomItem(this.room.getItem("stone"));
+		assertEquals("A long hall. Obvious exits are Door.", this.room.descRoom("Alice"));
+	}
+
+	/**
+	 * Test that invisible objects are not listed at all.
+	 */
+	@Test
+	public void testInvisibleObjects() {
+		this.room.addRoomItem(new GameObject("Ghost", "You can't see it.", Visibility.INVISIBILE));
+		assertEquals("A long hall.", this.room.descRoom("Alice"));
+	}
+}
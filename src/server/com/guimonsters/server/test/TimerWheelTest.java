@@ -0,0 +1,81 @@
+package com.guimonsters.server.test;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+import com.guimonsters.server.TimerWheel;
+
+/**
+ * Tests the TimerWheel class.
+ * @author Elijah Atkinson
+ * @version 1.00, 2013-05-12
+ */
+public class TimerWheelTest {
+
+	/**
+	 * Test that a task runs once its delay has passed, and not before.
+	 */
+	@Test
+	public void testTaskRunsAfterDelay() throws Exception {
+		TimerWheel wheel = new TimerWheel(10, 8);
+		wheel.start();
+		final CountDownLatch ran = new CountDownLatch(1);
+		long start = System.nanoTime();
+		wheel.schedule(new Runnable() {
+			public void run() {
+				ran.countDown();
+			}
+		}, 50, TimeUnit.MILLISECONDS);
+
+		assertTrue(ran.await(2, TimeUnit.SECONDS));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+		wheel.terminate();
+	}
+
+	/**
+	 * Test that a task due after more than one turn of the wheel
+	 * waits for the wheel to come round to it again.
+	 */
+	@Test
+	public void testTaskLongerThanWheel() throws Exception {
+		TimerWheel wheel = new TimerWheel(10, 4);
+		wheel.start();
+		final CountDownLatch ran = new CountDownLatch(1);
+		long start = System.nanoTime();
+		wheel.schedule(new Runnable() {
+			public void run() {
+				ran.countDown();
+			}
+		}, 100, TimeUnit.MILLISECONDS);
+
+		assertTrue(ran.await(2, TimeUnit.SECONDS));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+		wheel.terminate();
+	}
+
+	/**
+	 * Test that a cancelled task never runs.
+	 */
+	@Test
+	public void testCancel() throws Exception {
+		TimerWheel wheel = new TimerWheel(10, 8);
+		wheel.start();
+		final AtomicBoolean ran = new AtomicBoolean(false);
+		TimerWheel.Timeout timeout = wheel.schedule(new Runnable() {
+			public void run() {
+				ran.set(true);
+			}
+		}, 30, TimeUnit.MILLISECONDS);
+		timeout.cancel();
+
+		Thread.sleep(100);
+		assertFalse(ran.get());
+		assertTrue(timeout.isCancelled());
+		wheel.terminate();
+	}
+}
@@ -0,0 +1,95 @@
+package com.guimonsters.server.test;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.guimonsters.server.file.Serializer;
+import com.guimonsters.server.file.WorldFile;
+import com.guimonsters.server.game.Exit;
+import com.guimonsters.server.game.GameObject;
+import com.guimonsters.server.game.GameWorld;
+import com.guimonsters.server.game.Room;
+
+/**
+ * Times saving and loading worlds of 1k, 100k and 1M rooms in the binary
+ * world format and as serialized GameWorld objects.
+ * Every room has an item and exits to the rooms before and after it,
+ * so the rooms form one long chain.
+ * Run with a large heap, for example: java -Xmx4g com.guimonsters.server.test.WorldFileBenchmark
+ * @author Elijah Atkinson
+ * @version 1.00, 2013-05-12
+ */
+public class WorldFileBenchmark {
+
+	private static final int[] SIZES = {1000, 100000, 1000000};
+	private static final int DESCRIPTIONS = 50;
+
+	public static void main(String[] args) throws Exception {
+		for(int size : SIZES) {
+			GameWorld world = createWorld(size);
+			File file = File.createTempFile("benchmark", ".world");
+			try {
+				benchmarkWorldFile(world, file, size);
+				benchmarkSerializer(world, file, size);
+			}
+			finally {
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * Build a chain of rooms.
+	 * @param size The number of rooms.
+	 * @return world The new GameWorld.
+	 */
+	private static GameWorld createWorld(int size) {
+		GameWorld world = new GameWorld();
+		Room previous = null;
+		for(int i = 0; i < size; i++) {
+			Room room = new Room("Room "+i, "A plain room, style "+(i % DESCRIPTIONS)+".");
+			room.addRoomItem(new GameObject("Stone", "A smooth stone."));
+			if(previous != null) {
+				room.addExit(new Exit("Back", "The way you came.", previous));
+				previous.addExit(new Exit("Forward", "The way on.", room));
+			}
+			world.addRoom(room);
+			previous = room;
+		}
+		world.setStartingRoom(world.getRoom("Room 0"));
+		return world;
+	}
+
+	private static void benchmarkWorldFile(GameWorld world, File file, int size) throws IOException {
+		WorldFile worldFile = new WorldFile(file);
+		long start = System.nanoTime();
+		worldFile.write(world);
+		long written = System.nanoTime();
+		GameWorld loaded = worldFile.read();
+		long read = System.nanoTime();
+		print("world file", size, written - start, read - written, file.length(), loaded.getRoomList().size());
+	}
+
+	private static void benchmarkSerializer(GameWorld world, File file, int size) {
+		Serializer serial = new Serializer(file, world);
+		try {
+			long start = System.nanoTime();
+			serial.serialize();
+			long written = System.nanoTime();
+			GameWorld loaded = (GameWorld) new Serializer(file).deserialize();
+			long read = System.nanoTime();
+			print("serialized", size, written - start, read - written, file.length(), loaded.getRoomList().size());
+		}
+		catch (StackOverflowError e) {
+			System.out.printf("%-10s %8d rooms: stack overflow following the exits%n", "serialized", size);
+		}
+		catch (IOException | ClassNotFoundException e) {
+			System.out.printf("%-10s %8d rooms: %s%n", "serialized", size, e);
+		}
+	}
+
+	private static void print(String format, int size, long writeNanos, long readNanos, long bytes, int rooms) {
+		System.out.printf("%-10s %8d rooms: save %8.1f ms, load %8.1f ms, %10d bytes, %d rooms loaded%n",
+				format, size, writeNanos / 1e6, readNanos / 1e6, bytes, rooms);
+	}
+}
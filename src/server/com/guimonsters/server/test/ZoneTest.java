@@ -0,0 +1,85 @@
+package com.guimonsters.server.test;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.guimonsters.server.GameScheduler;
+import com.guimonsters.server.game.Room;
+import com.guimonsters.server.game.Zone;
+
+/**
+ * Tests when a Zone can be unloaded.
+ * @author Elijah Atkinson
+ * @version 1.00, 2013-05-12
+ */
+public class ZoneTest {
+
+	private GameScheduler scheduler;
+	private Room room;
+	private Zone zone;
+
+	@Before
+	public void setUp() {
+		this.scheduler = new GameScheduler();
+		//The first tick makes this thread the scheduler's own thread.
+		this.scheduler.tick();
+		GameScheduler.setLocator(new GameScheduler.Locator() {
+			public GameScheduler getScheduler(Room room) {
+				return scheduler;
+			}
+		});
+		this.room = new Room("Hall", "A room.");
+		this.zone = new Zone("zone1", new File("zone1.zone"), new Room[] {this.room});
+	}
+
+	@After
+	public void tearDown() {
+		GameScheduler.setLocator(null);
+	}
+
+	private static Runnable nothing() {
+		return new Runnable() {
+			public void run() {
+			}
+		};
+	}
+
+	private void advance(long ticks) {
+		for(long i = 0; i < ticks; i++) {
+			this.scheduler.tick();
+		}
+	}
+
+	/**
+	 * Test that a zone stays loaded until its room's event has run.
+	 */
+	@Test
+	public void testNotEmptyWhileEventWaits() {
+		assertTrue(this.zone.isEmpty());
+		this.room.schedule(nothing(), 10);
+		assertFalse(this.zone.isEmpty());
+
+		this.advance(10);
+		assertFalse(this.zone.isEmpty());
+		this.advance(1);
+		assertTrue(this.zone.isEmpty());
+	}
+
+	/**
+	 * Test that a repeating event keeps its zone loaded until it is cancelled.
+	 */
+	@Test
+	public void testNotEmptyUntilRepeatingEventCancelled() {
+		GameScheduler.Timer timer = this.room.scheduleRepeating(nothing(), 5, 5);
+		this.advance(100);
+		assertFalse(this.zone.isEmpty());
+
+		timer.cancel();
+		assertTrue(this.zone.isEmpty());
+	}
+}